@@ -1,6 +1,9 @@
 package pb;
 
 import java.io.IOException;
+import java.time.LocalTime;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -23,6 +26,12 @@ import pb.utils.Utils;
  * and terminate. Make sure the client does not send the event until the
  * SESSION_STARTED event has been emitted, etc. And the client should attempt to
  * cleanly terminate, not just system exit.
+ * <br/>
+ * With -stats the client asks the server for a snapshot of its endpoints and
+ * metrics, see {@link ServerManager#statsSnapshot()}, prints it and
+ * terminates. With -watch it asks again every so many seconds until it is
+ * killed, printing how much each counter changed since the last snapshot
+ * and its rate.
  * 
  * @see {@link pb.managers.ClientManager}
  * @see {@link pb.utils.Utils}
@@ -34,6 +43,24 @@ public class AdminClient  {
 	private static int port=Utils.serverPort; // default port number for the server
 	private static String host=Utils.serverHost; // default host for the server
 	
+	/**
+	 * How long (ms) to wait for a stats snapshot, none comes if the password
+	 * is wrong.
+	 */
+	private static final int statsTimeout=10000;
+	
+	/**
+	 * The counters in the last stats snapshot, and when it was taken, to
+	 * print how much they have changed. Only used by the endpoint thread.
+	 */
+	private static final Map<String,Long> lastCounters = new HashMap<>();
+	private static long lastTime=0;
+	
+	/**
+	 * Whether a stats snapshot has been received.
+	 */
+	private static volatile boolean statsReceived=false;
+	
 	private static void help(Options options){
 		String header = "PB Admin Client for Unimelb COMP90015\n\n";
 		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
@@ -42,6 +69,73 @@ public class AdminClient  {
 		System.exit(-1);
 	}
 	
+	/**
+	 * Ask the server for a stats snapshot and print it, then either ask again
+	 * after the interval or stop the client.
+	 * @param endpoint
+	 * @param password
+	 * @param interval ms between snapshots, 0 to print one and stop
+	 * @param clientManager
+	 */
+	private static void requestStats(Endpoint endpoint, String password, long interval,
+			ClientManager clientManager) {
+		endpoint.on(ServerManager.statsReply, (args)->{
+			statsReceived=true;
+			printStats((String) args[0]);
+			if(interval<=0) {
+				clientManager.shutdown();
+			} else {
+				Utils.getInstance().setTimeout(()->{
+					endpoint.emit(ServerManager.statsRequest, password);
+				}, interval);
+			}
+		});
+		Utils.getInstance().setTimeout(()->{
+			if(!statsReceived) {
+				System.out.println("no stats from the server, is the password right?");
+				clientManager.shutdown();
+			}
+		}, statsTimeout);
+		endpoint.emit(ServerManager.statsRequest, password);
+	}
+	
+	/**
+	 * Print a stats snapshot, with how much each counter has changed since
+	 * the last one, leaving out counters that haven't.
+	 * @param snapshot
+	 */
+	private static void printStats(String snapshot) {
+		long time=lastTime;
+		Map<String,Long> counters = new HashMap<>();
+		StringBuilder sb = new StringBuilder();
+		for(String line : snapshot.split("\n")) {
+			String[] fields = line.split(" ");
+			if(fields[0].equals("time") && fields.length==2) {
+				time=Long.parseLong(fields[1]);
+			} else if(fields[0].equals("counter") && fields.length==3) {
+				long value=Long.parseLong(fields[2]);
+				counters.put(fields[1], value);
+				Long last = lastCounters.get(fields[1]);
+				if(lastTime==0 || last==null) {
+					sb.append(String.format("%-64s %12d%n", fields[1], value));
+				} else if(value!=last) {
+					double seconds = Math.max(1, time-lastTime)/1000.0;
+					sb.append(String.format("%-64s %12d %+10d %10.1f/s%n", fields[1], value,
+							value-last, (value-last)/seconds));
+				}
+			} else if(fields[0].equals("gauge") && fields.length==3) {
+				sb.append(String.format("%-64s %12d%n", fields[1], Long.parseLong(fields[2])));
+			} else {
+				sb.append(line).append(System.lineSeparator());
+			}
+		}
+		System.out.println("---- server stats at "+LocalTime.now().withNano(0)+" ----");
+		System.out.print(sb);
+		lastCounters.clear();
+		lastCounters.putAll(counters);
+		lastTime=time;
+	}
+	
 	public static void main( String[] args ) throws IOException, InterruptedException
     {
     	// set a nice log format
@@ -55,7 +149,10 @@ public class AdminClient  {
         options.addOption("shutdown",false,"shutdown the server");
         options.addOption("force",false,"in conjuction with shutdown, asking sessions to stop");
         options.addOption("vader",false,"in conjuction with shutdown, closing endpoints immediately");
+        options.addOption("drain",false,"in conjuction with shutdown, asking sessions to stop a number at a time");
         options.addOption("password",true,"password for server");
+        options.addOption("stats",false,"print a snapshot of the server's stats");
+        options.addOption("watch",true,"print the server's stats every so many seconds, an integer");
         
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -78,6 +175,17 @@ public class AdminClient  {
         	host = cmd.getOptionValue("host");
         }
         
+        long watch=0;
+        if(cmd.hasOption("watch")) {
+        	try{
+        		watch = Math.max(1, Integer.parseInt(cmd.getOptionValue("watch")))*1000L;
+			} catch (NumberFormatException e){
+				System.out.println("-watch requires a number of seconds, parsed: "+cmd.getOptionValue("watch"));
+				help(options);
+			}
+        }
+        final long interval=watch;
+        
         // start up the client
         log.info("PB Client starting up");
         final CommandLine cmd2 = cmd;
@@ -87,17 +195,24 @@ public class AdminClient  {
         ClientManager clientManager = new ClientManager(host,port);
         clientManager.on(ClientManager.sessionStarted, (eventArgs)->{
         	Endpoint endpoint = (Endpoint) eventArgs[0];
+        	String password="";
+        	if(cmd2.hasOption("password")) {
+        		password=cmd2.getOptionValue("password");
+        	} else if(cmd2.hasOption("shutdown") || cmd2.hasOption("stats") || interval>0) {
+        		System.out.println("using a blank password");
+        	}
+        	if(cmd2.hasOption("stats") || interval>0) {
+        		// the client stops once the stats are done
+        		requestStats(endpoint, password, interval, clientManager);
+        		return;
+        	}
         	if(cmd2.hasOption("shutdown")) {
-        		String password="";
-        		if(cmd2.hasOption("password")) {
-        			password=cmd2.getOptionValue("password");
-        		} else {
-        			System.out.println("using a blank password");
-        		}
 	        	if(cmd2.hasOption("force")) {
 	        		endpoint.emit(ServerManager.forceShutdownServer, password);
 	        	} else if(cmd2.hasOption("vader")) {
 	        		endpoint.emit(ServerManager.vaderShutdownServer, password);
+	        	} else if(cmd2.hasOption("drain")) {
+	        		endpoint.emit(ServerManager.drainShutdownServer, password);
 	        	} else {
 	        		endpoint.emit(ServerManager.shutdownServer, password);
 	        	}
@@ -0,0 +1,292 @@
+package pb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pb.managers.endpoint.Endpoint;
+
+/**
+ * The connected peers and the boards they share, for the whiteboard server.
+ * Every endpoint thread updates the registry as boards are shared and
+ * unshared, so it is built from concurrent maps and copy-on-write sets: a
+ * change to one sharer only contends with other changes to the same sharer,
+ * and iterating the peers or boards never blocks and never sees a half made
+ * change.
+ * <br/>
+ * Every change to the shared boards advances the registry version, and the
+ * most recent changes are kept so that a peer that knows an earlier version
+ * can be sent just the changes since then. A change is written as
+ * "version+board" when the board is shared and "version-board" when it is no
+ * longer shared. Versions start again from zero in every epoch, i.e. whenever
+ * the server restarts.
+ *
+ * @see {@link pb.WhiteboardServer}
+ * @author aaron
+ *
+ */
+public class BoardRegistry {
+
+	/**
+	 * The number of most recent changes kept, a peer further behind than this
+	 * needs the entire directory.
+	 */
+	public static final int maxChanges = 1024;
+
+	/**
+	 * All the peers, peer id to endpoint.
+	 */
+	private final ConcurrentHashMap<String,Endpoint> clients = new ConcurrentHashMap<>();
+
+	/**
+	 * All the shared boards, sharer to the boards it shares. A sharer is only
+	 * present while it shares at least one board.
+	 */
+	private final ConcurrentHashMap<String,Set<String>> sharingBoards = new ConcurrentHashMap<>();
+
+	/**
+	 * Number of changes made to the shared boards.
+	 */
+	private final AtomicLong version = new AtomicLong();
+
+	/**
+	 * The most recent changes, version to change.
+	 */
+	private final ConcurrentSkipListMap<Long,String> changes = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Identifies this run of the registry, versions are meaningless across
+	 * epochs.
+	 */
+	private final long epoch = System.currentTimeMillis();
+
+	/**
+	 * A peer has connected.
+	 * @param clientId
+	 * @param endpoint
+	 */
+	public void addClient(String clientId, Endpoint endpoint) {
+		clients.put(clientId, endpoint);
+	}
+
+	/**
+	 * A peer has gone, along with the boards it was sharing.
+	 * @param clientId
+	 * @return the changes made, one per board the peer was sharing
+	 */
+	public List<String> removeClient(String clientId) {
+		clients.remove(clientId);
+		List<String> removed = new ArrayList<>();
+		sharingBoards.computeIfPresent(clientId, (key,boards)->{
+			boards.forEach((board)->removed.add(record('-',board)));
+			return null;
+		});
+		return removed;
+	}
+
+	/**
+	 * A peer has resumed its session on a new connection, it keeps the boards
+	 * it was sharing.
+	 * @param oldId the peer's id on the old connection
+	 * @param newId the peer's id on the new connection
+	 * @param endpoint the new connection
+	 */
+	public void moveClient(String oldId, String newId, Endpoint endpoint) {
+		clients.remove(oldId);
+		clients.put(newId, endpoint);
+		Set<String> boards = sharingBoards.remove(oldId);
+		if(boards!=null) sharingBoards.merge(newId, boards, (current,moved)->{
+			current.addAll(moved);
+			return current;
+		});
+	}
+
+	/**
+	 * A peer has shared a board.
+	 * @param sharer
+	 * @param board
+	 * @return the change made, or null if the board was already shared
+	 */
+	public String addBoard(String sharer, String board) {
+		String[] change = new String[1];
+		sharingBoards.compute(sharer, (key,boards)->{
+			if(boards==null) boards = new CopyOnWriteArraySet<>();
+			if(boards.add(board)) change[0]=record('+',board);
+			return boards;
+		});
+		return change[0];
+	}
+
+	/**
+	 * A peer no longer shares a board.
+	 * @param sharer
+	 * @param board
+	 * @return the change made, or null if the board was not shared
+	 */
+	public String removeBoard(String sharer, String board) {
+		String[] change = new String[1];
+		sharingBoards.computeIfPresent(sharer, (key,boards)->{
+			if(boards.remove(board)) change[0]=record('-',board);
+			return boards.isEmpty()?null:boards;
+		});
+		return change[0];
+	}
+
+	/**
+	 * The changes made since a given version, as far as they are known without
+	 * a gap. Changes to different sharers are made concurrently so the most
+	 * recent versions may not have been recorded yet, they are left out.
+	 * @param fromVersion
+	 * @return the changes in version order, or null if the changes since the
+	 * version are no longer kept
+	 */
+	public List<String> getChangesSince(long fromVersion) {
+		long current = version.get();
+		if(fromVersion<0 || fromVersion>current) return null;
+		if(fromVersion<current && (changes.isEmpty() || changes.firstKey()>fromVersion+1)) {
+			// trimmed away
+			return null;
+		}
+		List<String> since = new ArrayList<>();
+		long next = fromVersion+1;
+		for(Map.Entry<Long,String> change : changes.tailMap(fromVersion, false).entrySet()) {
+			if(change.getKey()!=next) break;
+			since.add(change.getValue());
+			next++;
+		}
+		return since;
+	}
+
+	/**
+	 *
+	 * @param change "version+board" or "version-board"
+	 * @return the version of the change
+	 */
+	public static long changeVersion(String change) {
+		int i=0;
+		while(Character.isDigit(change.charAt(i))) i++;
+		return Long.parseLong(change.substring(0,i));
+	}
+
+	/**
+	 *
+	 * @param change "version+board" or "version-board"
+	 * @return true if the board was shared, false if it is no longer shared
+	 */
+	public static boolean changeIsShare(String change) {
+		int i=0;
+		while(Character.isDigit(change.charAt(i))) i++;
+		return change.charAt(i)=='+';
+	}
+
+	/**
+	 *
+	 * @param change "version+board" or "version-board"
+	 * @return the board
+	 */
+	public static String changeBoard(String change) {
+		int i=0;
+		while(Character.isDigit(change.charAt(i))) i++;
+		return change.substring(i+1);
+	}
+
+	/**
+	 *
+	 * @param clientId
+	 * @return the endpoint of the peer, or null if it is not connected
+	 */
+	public Endpoint getClient(String clientId) {
+		return clients.get(clientId);
+	}
+
+	/**
+	 * A live view of the connected peers, safe to iterate while peers come and
+	 * go.
+	 * @return the endpoints of the connected peers
+	 */
+	public Collection<Endpoint> getClients() {
+		return clients.values();
+	}
+
+	/**
+	 *
+	 * @return the ids of the connected peers
+	 */
+	public Set<String> getClientIds() {
+		return clients.keySet();
+	}
+
+	/**
+	 * A snapshot of all the shared boards. Read {@link #getVersion()} first,
+	 * the snapshot then includes at least all changes up to that version.
+	 * @return the boards, in the format "host:port:boardid"
+	 */
+	public List<String> getBoards() {
+		List<String> boards = new ArrayList<>();
+		sharingBoards.values().forEach(boards::addAll);
+		return boards;
+	}
+
+	/**
+	 * A live view of the sharers, each with a snapshot of the boards it shares.
+	 * @return sharer to boards
+	 */
+	public Set<Map.Entry<String,Set<String>>> getSharers() {
+		return sharingBoards.entrySet();
+	}
+
+	/**
+	 *
+	 * @return the number of connected peers
+	 */
+	public int numClients() {
+		return clients.size();
+	}
+
+	/**
+	 *
+	 * @return the number of shared boards
+	 */
+	public int numBoards() {
+		int count=0;
+		for(Set<String> boards : sharingBoards.values()) count+=boards.size();
+		return count;
+	}
+
+	/**
+	 *
+	 * @return the number of changes made to the shared boards so far
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 *
+	 * @return the epoch of the registry
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Take the next version for a change and keep the change, forgetting the
+	 * oldest changes. Called while the sharer's boards are being updated.
+	 * @param kind '+' or '-'
+	 * @param board
+	 * @return the change
+	 */
+	private String record(char kind, String board) {
+		long changeVersion = version.incrementAndGet();
+		String change = changeVersion+String.valueOf(kind)+board;
+		changes.put(changeVersion, change);
+		if(changeVersion>maxChanges) changes.headMap(changeVersion-maxChanges, true).clear();
+		return change;
+	}
+}
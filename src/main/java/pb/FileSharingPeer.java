@@ -27,8 +27,12 @@ import org.apache.commons.codec.binary.Base64;
 import pb.managers.ClientManager;
 import pb.managers.IOThread;
 import pb.managers.PeerManager;
+import pb.managers.PooledConnection;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.Message;
+import pb.protocols.event.EventProtocol;
+import pb.utils.Eventable;
 import pb.utils.Utils;
 
 /**
@@ -106,13 +110,20 @@ public class FileSharingPeer {
 	 * If we have not reached the end of the file then set a timeout
 	 * to read some more bytes. Since this is using the timer thread
 	 * we have the danger that the transmission will block and that
-	 * this will block all the other timeouts. We could either use another
-	 * thread for each file transfer or else allow for buffering of
-	 * outgoing messages at the endpoint, to overcome this issue.
+	 * this will block all the other timeouts. The endpoint buffers outgoing
+	 * messages to overcome this issue, and while it is unwritable no more
+	 * chunks are read, see {@link Endpoint#isWritable()}.
 	 * @param in the file input stream
 	 * @param endpoint the endpoint to send the file
 	 */
 	public static void continueTransmittingFile(InputStream in,Endpoint endpoint) {
+		if(!endpoint.isWritable()) {
+			// the other side is not keeping up, try again later
+			Utils.getInstance().setTimeout(()->{
+				continueTransmittingFile(in,endpoint);
+			},100);
+			return;
+		}
 		try {
 			int read = in.read(buffer);
 			if(read==-1) {
@@ -262,24 +273,23 @@ public class FileSharingPeer {
 	 * @throws InterruptedException 
 	 */
 	private static void getFileFromPeer(PeerManager peerManager,String response) throws InterruptedException {
-		// Create a independent client manager (thread) for each download
+		// Borrow a session to the peer for each download, downloads from the
+		// same peer reuse the session
 		// response has the format: PeerIP:PeerPort:filename
 		String[] parts=response.split(":",3);
-		ClientManager clientManager;
+		PooledConnection connection;
 		try {
-			clientManager = peerManager.connect(Integer.valueOf(parts[1]),parts[0]);
+			connection = peerManager.connectPooled(Integer.valueOf(parts[1]),parts[0]);
 		} catch (NumberFormatException e) {
 			System.out.println("Response from index server is bad, port is not a number: "+parts[1]);
 			return;
-		} catch (UnknownHostException e) {
-			System.out.println("Could not find the peer IP address: "+parts[0]);
-			return;
 		}
 		try {
 			OutputStream out = new FileOutputStream(parts[2]);
-			clientManager.on(PeerManager.peerStarted, (args)->{
+			connection.on(PeerManager.peerStarted, (args)->{
 				Endpoint endpoint = (Endpoint)args[0];
-				endpoint.on(fileContents,(args2)->{
+				// file writes run off the endpoint thread, in the order they arrive
+				connection.onRemote(fileContents,(args2)->{
 					String chunk = (String) args2[0];
 					if(chunk.length()==0) {
 						// file download complete
@@ -288,7 +298,7 @@ public class FileSharingPeer {
 						} catch (IOException e) {
 							System.out.println("Possible error with downloaded file: "+parts[2]);
 						}
-						clientManager.shutdown();
+						connection.release();
 					} else {
 						try {
 							out.write(Base64.decodeBase64(chunk));
@@ -296,10 +306,10 @@ public class FileSharingPeer {
 							System.out.println("Error writing file chunk: "+chunk);
 						}
 					}
-				}).on(fileError, (args2)->{
+				}, Eventable.Policy.Ordered).onRemote(fileError, (args2)->{
 					System.out.println("Error downloading file");
-					clientManager.shutdown();
-				});
+					connection.release();
+				}, Eventable.Policy.Ordered);
 				System.out.println("Getting file "+parts[2]+" from "+endpoint.getOtherEndpointId());
 				endpoint.emit(getFile, parts[2]);
 			}).on(PeerManager.peerStopped, (args)->{
@@ -309,11 +319,13 @@ public class FileSharingPeer {
 				Endpoint endpoint = (Endpoint)args[0];
 				System.out.println("There was error while communication with peer: "
 						+endpoint.getOtherEndpointId());
+			}).on(ClientManager.connectFailed, (args)->{
+				System.out.println("Could not connect to peer: "+args[0]);
 			});
-			clientManager.start();
-			// we can't call clientManager.join() because the thread that called this method is
+			connection.open();
+			// we can't wait for the download here because the thread that called this method is
 			// the endpoint thread from the query to the index server, which needs
-			// to continue to process its session, so we can join with this later
+			// to continue to process its session, so we wait for all of them later
 		} catch (FileNotFoundException e) {
 			System.out.println("Could not create file: "+parts[2]);
 		}	
@@ -330,15 +342,15 @@ public class FileSharingPeer {
 		String query = String.join(",",keywords);
 		// connect to the index server and tell it the files we are sharing
 		PeerManager peerManager = new PeerManager(peerPort);
-        ClientManager clientManager = peerManager.connect(indexServerPort, host);
-        clientManager.on(PeerManager.peerStarted, (args)->{
+		PooledConnection connection = peerManager.connectPooled(indexServerPort, host);
+		connection.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Connected to index server: "+endpoint.getOtherEndpointId());
-			endpoint.on(IndexServer.queryResponse, (args2)->{
+			connection.onRemote(IndexServer.queryResponse, (args2)->{
 				String response = (String) args2[0];
 				if(response.length()==0) {
 					System.out.println("Received all responses.");
-					clientManager.shutdown();
+					connection.release();
 				} else {
 					System.out.println("Received query response: "+response);
 					try {
@@ -347,9 +359,9 @@ public class FileSharingPeer {
 						System.out.println("interrupted while trying to download: "+response);
 					}
 				}
-			}).on(IndexServer.queryError, (args2)->{
+			}).onRemote(IndexServer.queryError, (args2)->{
 				System.out.println("Index server did not accept the query: "+query);
-				clientManager.shutdown();
+				connection.release();
 			});
 			System.out.println("Sending query to the index server.");
 			endpoint.emit(IndexServer.queryIndex, query);
@@ -360,14 +372,17 @@ public class FileSharingPeer {
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("There was an error communicating with the index server: "
 					+endpoint.getOtherEndpointId());
+		}).on(ClientManager.connectFailed, (args)->{
+			System.out.println("Could not connect to the index server: "+args[0]);
 		});
-        clientManager.start();
-        clientManager.join(); // wait for the query to finish
-        /*
-         * We also have to join with any other client managers that were started for
-         * download purposes.
-         */
-        peerManager.joinWithClientManagers();
+		connection.open();
+		/*
+		 * Wait for the query and all of the downloads it started to finish, then
+		 * stop the pooled sessions and join with their client managers.
+		 */
+		peerManager.getConnectionPool().awaitIdle();
+		peerManager.shutdown();
+		peerManager.joinWithClientManagers();
 	}
 	
 	private static void help(Options options){
@@ -429,6 +444,11 @@ public class FileSharingPeer {
         }
         
         
+        // file chunks go on the bulk stream, so they don't hold up
+        // keep alives and other events; errors go with them to stay in order
+        EventProtocol.setPriority(fileContents, Message.Priority.Bulk);
+        EventProtocol.setPriority(fileError, Message.Priority.Bulk);
+        
         // start up the client
         log.info("PB Peer starting up");
  
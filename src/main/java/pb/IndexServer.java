@@ -22,6 +22,8 @@ import org.apache.commons.cli.ParseException;
 import pb.managers.IOThread;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.utils.Eventable;
+import pb.utils.Metrics;
 import pb.utils.Utils;
 
 /**
@@ -109,6 +111,11 @@ public class IndexServer {
 	 */
 	private static int port=Utils.indexServerPort; // default port number for the server
 	
+	/**
+	 * The port to serve metrics on, -1 to not serve them.
+	 */
+	private static int metricsPort=-1;
+	
 
 	/**
 	 * Update the index with the filename and peerport.
@@ -213,6 +220,7 @@ public class IndexServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("metricsport",true,"port to serve metrics on for scraping, an integer");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -232,6 +240,15 @@ public class IndexServer {
 			}
         }
         
+        if(cmd.hasOption("metricsport")){
+        	try{
+        		metricsPort = Integer.parseInt(cmd.getOptionValue("metricsport"));
+			} catch (NumberFormatException e){
+				System.out.println("-metricsport requires a port number, parsed: "+cmd.getOptionValue("metricsport"));
+				help(options);
+			}
+        }
+        
         // create a server manager and setup event handlers
         ServerManager serverManager;
         
@@ -240,6 +257,19 @@ public class IndexServer {
         } else {
         	serverManager = new ServerManager(port);
         }
+        serverManager.setMetricsPort(metricsPort);
+        
+        // the size of the index, only read when scraped
+        Metrics.getInstance().gauge("index_files",()->{
+        	synchronized(keyValueMap) {
+        		return keyValueMap.size();
+        	}
+        });
+        Metrics.getInstance().gauge("index_peers",()->{
+        	synchronized(lastTimeSeen) {
+        		return lastTimeSeen.size();
+        	}
+        });
         
         // event handlers
         // we must define the event handler callbacks BEFORE starting
@@ -247,6 +277,7 @@ public class IndexServer {
         serverManager.on(ServerManager.sessionStarted,(eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
         	log.info("Client session started: "+endpoint.getOtherEndpointId());
+        	// index work runs off the endpoint thread, in the order it arrives
         	endpoint.on(indexUpdate, (eventArgs2)->{
         		String update = (String) eventArgs2[0];
         		log.info("Received index update: "+update);
@@ -257,15 +288,15 @@ public class IndexServer {
 	        		String peerport = parts[0]+":"+parts[1];
 	        		indexUpdate(parts[2],peerport);
         		}
-        	}).on(queryIndex, (eventArgs2)->{
+        	}, Eventable.Policy.Ordered).on(queryIndex, (eventArgs2)->{
         		String query = (String) eventArgs2[0];
         		log.info("Received query: "+query);
         		queryIndex(query,endpoint);
-        	}).on(peerUpdate, (eventArgs2)->{
+        	}, Eventable.Policy.Ordered).on(peerUpdate, (eventArgs2)->{
         		String peerport = (String) eventArgs2[0];
         		log.info("Received peer update: "+peerport);
         		peerUpdate(peerport);
-        	});
+        	}, Eventable.Policy.Ordered);
         }).on(ServerManager.sessionStopped,(eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
         	log.info("Client session ended: "+endpoint.getOtherEndpointId());
@@ -25,6 +25,11 @@ public class Server {
 	private static Logger log = Logger.getLogger(Server.class.getName());
 	private static int port=Utils.serverPort; // default port number for the server
 	
+	/**
+	 * The port to serve metrics on, -1 to not serve them.
+	 */
+	private static int metricsPort=-1;
+	
 
 	private static void help(Options options){
 		String header = "PB Server for Unimelb COMP90015\n\n";
@@ -43,6 +48,7 @@ public class Server {
     	// parse command line options
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
+        options.addOption("metricsport",true,"port to serve metrics on for scraping, an integer");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -62,6 +68,15 @@ public class Server {
 			}
         }
         
+        if(cmd.hasOption("metricsport")){
+        	try{
+        		metricsPort = Integer.parseInt(cmd.getOptionValue("metricsport"));
+			} catch (NumberFormatException e){
+				System.out.println("-metricsport requires a port number, parsed: "+cmd.getOptionValue("metricsport"));
+				help(options);
+			}
+        }
+        
         
         // start up the server
         log.info("PB Server starting up");
@@ -69,6 +84,7 @@ public class Server {
         // the server manager will start an io thread and this will prevent
         // the JVM from terminating
         ServerManager serverManager = new ServerManager(port);
+        serverManager.setMetricsPort(metricsPort);
         serverManager.start();
         // The simple server does not do any application logic, but will
         // (when you have implemented it in the ServerManager class)
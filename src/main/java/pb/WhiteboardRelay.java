@@ -0,0 +1,412 @@
+package pb;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import pb.app.Whiteboard;
+import pb.app.WhiteboardApp;
+import pb.app.WhiteboardOperation;
+import pb.managers.ClientManager;
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.EventProtocol;
+
+/**
+ * Relays shared whiteboards for the whiteboard server. Rather than every
+ * listening peer connecting to the sharing peer, peers send their board
+ * events to the whiteboard server, which subscribes to the sharing peer once
+ * per board and fans the board updates out to all of the listening peers. The
+ * sharing peer then only ever has one listener per board, the server, no
+ * matter how big the audience is.
+ * <br/>
+ * The relay keeps a copy of each relayed board so that peers that join
+ * later are answered straight from the copy.
+ *
+ * @see {@link pb.WhiteboardServer}
+ * @see {@link pb.app.WhiteboardApp}
+ * @author aaron
+ *
+ */
+public class WhiteboardRelay {
+	private static Logger log = Logger.getLogger(WhiteboardRelay.class.getName());
+
+	/**
+	 * A board being relayed.
+	 */
+	private static class RelayedBoard {
+		/**
+		 * The relay's copy of the board, only valid once ready.
+		 */
+		final Whiteboard copy;
+
+		/**
+		 * Whether the board data has been received from the sharing peer.
+		 */
+		boolean ready=false;
+
+		/**
+		 * Peers listening to updates of the board.
+		 */
+		final Set<Endpoint> listeners = new HashSet<>();
+
+		/**
+		 * Peers waiting for the board data, with the version of the copy they
+		 * have or -1 if they asked for the entire board.
+		 */
+		final Map<Endpoint,Long> waiting = new HashMap<>();
+
+		RelayedBoard(String name) {
+			copy = new Whiteboard(name,true);
+		}
+	}
+
+	/**
+	 * A connection to a sharing peer, shared by all of the boards relayed from
+	 * that peer.
+	 */
+	private static class Upstream {
+		/**
+		 * The client manager for the connection.
+		 */
+		final ClientManager clientManager;
+
+		/**
+		 * The endpoint to the sharing peer, null until the session starts.
+		 */
+		Endpoint endpoint=null;
+
+		/**
+		 * Names of the boards relayed from this peer.
+		 */
+		final Set<String> boards = new HashSet<>();
+
+		/**
+		 * The session should stop as soon as it has started.
+		 */
+		boolean closing=false;
+
+		Upstream(ClientManager clientManager) {
+			this.clientManager=clientManager;
+		}
+	}
+
+	/**
+	 * Relayed boards, board name to board.
+	 */
+	private final Map<String,RelayedBoard> boards = new HashMap<>();
+
+	/**
+	 * Connections to sharing peers, "host:port" to connection.
+	 */
+	private final Map<String,Upstream> upstreams = new HashMap<>();
+
+	/**
+	 * Listen for board events from a peer that has connected to the whiteboard
+	 * server. Should be called once the session with the peer has started.
+	 * @param endpoint
+	 */
+	public void attach(Endpoint endpoint) {
+		endpoint.on(WhiteboardApp.getBoardData, (args)->{
+			String boardName = (String)args[0];
+			requestBoard(endpoint, boardName, -1);
+		}).on(WhiteboardApp.getBoardUpdates, (args)->{
+			String boardNameAndVersion = (String)args[0];
+			long version=-1;
+			try {
+				version = Long.parseLong(WhiteboardApp.getBoardData(boardNameAndVersion));
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				log.warning("malformed board updates request: "+boardNameAndVersion);
+			}
+			requestBoard(endpoint, WhiteboardApp.getBoardName(boardNameAndVersion), version);
+		}).on(WhiteboardApp.listenBoard, (args)->{
+			String boardName = (String)args[0];
+			listen(endpoint, boardName);
+		}).on(WhiteboardApp.unlistenBoard, (args)->{
+			String boardName = (String)args[0];
+			unlisten(endpoint, boardName);
+		}).on(WhiteboardApp.boardPathUpdate, (args)->{
+			forward(endpoint, WhiteboardApp.boardPathUpdate, (String)args[0]);
+		}).on(WhiteboardApp.boardUndoUpdate, (args)->{
+			forward(endpoint, WhiteboardApp.boardUndoUpdate, (String)args[0]);
+		}).on(WhiteboardApp.boardClearUpdate, (args)->{
+			forward(endpoint, WhiteboardApp.boardClearUpdate, (String)args[0]);
+		});
+	}
+
+	/**
+	 * A peer has gone, it no longer listens to any board.
+	 * @param endpoint
+	 */
+	public synchronized void detach(Endpoint endpoint) {
+		boards.values().forEach((board)->{
+			board.listeners.remove(endpoint);
+			board.waiting.remove(endpoint);
+		});
+	}
+
+	/**
+	 * A peer has resumed its session on a new connection, it keeps listening
+	 * to the same boards.
+	 * @param old the peer's old connection
+	 * @param endpoint the peer's new connection
+	 */
+	public synchronized void move(Endpoint old, Endpoint endpoint) {
+		boards.values().forEach((board)->{
+			if(board.listeners.remove(old)) board.listeners.add(endpoint);
+			Long version = board.waiting.remove(old);
+			if(version!=null) board.waiting.put(endpoint, version);
+		});
+	}
+
+	/**
+	 * A board is no longer shared, so stop relaying it.
+	 * @param boardName
+	 */
+	public synchronized void boardUnshared(String boardName) {
+		RelayedBoard board = boards.remove(boardName);
+		if(board==null) return;
+		EventProtocol.broadcast(board.listeners, WhiteboardApp.boardDeleted, boardName);
+		Upstream upstream = upstreams.get(sharerOf(boardName));
+		if(upstream==null) return;
+		upstream.boards.remove(boardName);
+		if(upstream.boards.isEmpty()) {
+			// nothing more to relay from this peer
+			upstreams.remove(sharerOf(boardName));
+			// if still connecting, the session is stopped once it starts
+			upstream.closing=true;
+			if(upstream.endpoint!=null) upstream.clientManager.shutdown();
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of boards being relayed
+	 */
+	public synchronized int numRelayedBoards() {
+		return boards.size();
+	}
+
+	/*
+	 * Methods called from peer events.
+	 */
+
+	/**
+	 * Answer a request for a board from the copy, or wait for the copy if it
+	 * has not arrived from the sharing peer yet.
+	 * @param endpoint
+	 * @param boardName
+	 * @param version the version of the peer's copy, or -1 for the entire board
+	 */
+	private synchronized void requestBoard(Endpoint endpoint, String boardName, long version) {
+		RelayedBoard board = boards.get(boardName);
+		if(board==null) {
+			board = new RelayedBoard(boardName);
+			try {
+				subscribe(boardName);
+			} catch (UnknownHostException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+				endpoint.emit(WhiteboardApp.boardError, "can not relay board: "+boardName);
+				return;
+			}
+			boards.put(boardName, board);
+		}
+		if(board.ready) {
+			sendBoard(endpoint, board, version);
+		} else {
+			board.waiting.put(endpoint, version);
+		}
+	}
+
+	private synchronized void listen(Endpoint endpoint, String boardName) {
+		RelayedBoard board = boards.get(boardName);
+		if(board==null) {
+			endpoint.emit(WhiteboardApp.boardError, "board is not being relayed: "+boardName);
+			return;
+		}
+		board.listeners.add(endpoint);
+	}
+
+	private synchronized void unlisten(Endpoint endpoint, String boardName) {
+		RelayedBoard board = boards.get(boardName);
+		if(board!=null) board.listeners.remove(endpoint);
+	}
+
+	/**
+	 * Pass an update from a listening peer on to the sharing peer. The sharing
+	 * peer will emit the accepted update back to the relay, which fans it out.
+	 * @param endpoint
+	 * @param event
+	 * @param updateData
+	 */
+	private synchronized void forward(Endpoint endpoint, String event, String updateData) {
+		String boardName = WhiteboardApp.getBoardName(updateData);
+		Upstream upstream = boards.containsKey(boardName)?upstreams.get(sharerOf(boardName)):null;
+		if(upstream==null || upstream.endpoint==null) {
+			endpoint.emit(WhiteboardApp.boardError, "board is not being relayed: "+boardName);
+			return;
+		}
+		upstream.endpoint.emit(event, updateData);
+	}
+
+	/*
+	 * Methods called from sharing peer events.
+	 */
+
+	/**
+	 * The board data has arrived from the sharing peer, so answer the waiting
+	 * peers and start listening for updates.
+	 * @param upstreamEndpoint
+	 * @param data
+	 */
+	private synchronized void onBoardData(Endpoint upstreamEndpoint, String data) {
+		String boardName = WhiteboardApp.getBoardName(data);
+		RelayedBoard board = boards.get(boardName);
+		if(board==null) return;
+		board.copy.whiteboardFromString(boardName, WhiteboardApp.getBoardData(data));
+		if(!board.ready) {
+			board.ready=true;
+			upstreamEndpoint.emit(WhiteboardApp.listenBoard, boardName);
+		}
+		board.waiting.forEach((endpoint,version)->{
+			sendBoard(endpoint, board, version);
+		});
+		board.waiting.clear();
+	}
+
+	/**
+	 * The sharing peer accepted an update, so fan it out to the listeners.
+	 * The update is applied to the copy as an operation, so that peers
+	 * that are a little behind can still catch up from its log.
+	 * @param event
+	 * @param type the operation that was accepted
+	 * @param data
+	 */
+	private synchronized void onBoardAccepted(String event, WhiteboardOperation.Type type, String data) {
+		String boardName = WhiteboardApp.getBoardName(data);
+		RelayedBoard board = boards.get(boardName);
+		if(board==null || !board.ready) return;
+		board.copy.applyUpdate(type, boardName, WhiteboardApp.getBoardData(data));
+		EventProtocol.broadcast(board.listeners, event, data);
+	}
+
+	/**
+	 * The connection to a sharing peer has gone, the boards relayed from it
+	 * can no longer be updated.
+	 * @param sharer
+	 * @param upstream
+	 */
+	private synchronized void onUpstreamLost(String sharer, Upstream upstream) {
+		if(upstreams.get(sharer)!=upstream) return;
+		upstreams.remove(sharer);
+		upstream.boards.forEach((boardName)->{
+			RelayedBoard board = boards.remove(boardName);
+			if(board==null) return;
+			List<Endpoint> peers = new ArrayList<>(board.listeners);
+			peers.addAll(board.waiting.keySet());
+			EventProtocol.broadcast(peers, WhiteboardApp.boardError,
+					"lost connection to the peer sharing board: "+boardName);
+		});
+	}
+
+	/*
+	 * Utility methods.
+	 */
+
+	/**
+	 * Make sure there is a connection to the sharing peer of a board, and ask
+	 * for the board data once there is.
+	 * @param boardName
+	 * @throws UnknownHostException
+	 */
+	private void subscribe(String boardName) throws UnknownHostException {
+		String sharer = sharerOf(boardName);
+		Upstream upstream = upstreams.get(sharer);
+		if(upstream==null) {
+			upstream = connect(sharer);
+			upstreams.put(sharer, upstream);
+		}
+		upstream.boards.add(boardName);
+		if(upstream.endpoint!=null) {
+			upstream.endpoint.emit(WhiteboardApp.getBoardData, boardName);
+		}
+	}
+
+	/**
+	 * Connect to a sharing peer.
+	 * @param sharer "host:port" of the peer
+	 * @return the connection
+	 * @throws UnknownHostException
+	 */
+	private Upstream connect(String sharer) throws UnknownHostException {
+		ClientManager clientManager;
+		try {
+			clientManager = new ClientManager(WhiteboardApp.getIP(sharer),
+					WhiteboardApp.getPort(sharer));
+		} catch (InterruptedException e) {
+			throw new UnknownHostException(sharer);
+		}
+		Upstream upstream = new Upstream(clientManager);
+		clientManager.on(ClientManager.sessionStarted, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			endpoint.on(WhiteboardApp.boardData, (args2)->{
+				onBoardData(endpoint, (String)args2[0]);
+			}).on(WhiteboardApp.boardPathAccepted, (args2)->{
+				onBoardAccepted(WhiteboardApp.boardPathAccepted, WhiteboardOperation.Type.add, (String)args2[0]);
+			}).on(WhiteboardApp.boardUndoAccepted, (args2)->{
+				onBoardAccepted(WhiteboardApp.boardUndoAccepted, WhiteboardOperation.Type.undo, (String)args2[0]);
+			}).on(WhiteboardApp.boardClearAccepted, (args2)->{
+				onBoardAccepted(WhiteboardApp.boardClearAccepted, WhiteboardOperation.Type.clear, (String)args2[0]);
+			}).on(WhiteboardApp.boardDeleted, (args2)->{
+				boardUnshared((String)args2[0]);
+			}).on(WhiteboardApp.boardError, (args2)->{
+				log.warning("sharing peer "+sharer+" reported: "+(String)args2[0]);
+			});
+			synchronized(this) {
+				upstream.endpoint=endpoint;
+				if(upstream.closing) {
+					// no longer needed by the time it connected
+					upstream.clientManager.shutdown();
+					return;
+				}
+				upstream.boards.forEach((boardName)->{
+					endpoint.emit(WhiteboardApp.getBoardData, boardName);
+				});
+			}
+		}).on(ClientManager.sessionStopped, (args)->{
+			onUpstreamLost(sharer, upstream);
+		}).on(ClientManager.sessionError, (args)->{
+			onUpstreamLost(sharer, upstream);
+		});
+		log.info("relaying boards from "+sharer);
+		clientManager.start();
+		return upstream;
+	}
+
+	/**
+	 * Send a peer the board, or just the operations it is missing.
+	 * @param endpoint
+	 * @param board
+	 * @param version the version of the peer's copy, or -1 for the entire board
+	 */
+	private static void sendBoard(Endpoint endpoint, RelayedBoard board, long version) {
+		String operations = version<0?null:board.copy.getOperationsSince(version);
+		if(operations==null) {
+			endpoint.emit(WhiteboardApp.boardData, board.copy.toString());
+		} else {
+			endpoint.emit(WhiteboardApp.boardUpdates, board.copy.getName()+"%"+operations);
+		}
+	}
+
+	/**
+	 *
+	 * @param boardName host:port:boardid
+	 * @return host:port
+	 */
+	private static String sharerOf(String boardName) {
+		return WhiteboardApp.getIP(boardName)+":"+WhiteboardApp.getPort(boardName);
+	}
+}
@@ -1,10 +1,7 @@
 package pb;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -19,6 +16,8 @@ import pb.app.WhiteboardApp;
 import pb.managers.ServerManager;
 import pb.managers.IOThread;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.EventProtocol;
+import pb.utils.Metrics;
 import pb.utils.Utils;
 
 import static pb.LogColor.*;
@@ -51,31 +50,36 @@ public class WhiteboardServer {
 	public static final String unshareBoard = "UNSHARE_BOARD";
 
 	/**
-	 * The server emits this event:
-	 * <ul>
-	 * <li>to all connected clients to tell them that a board is being shared</li>
-	 * <li>to a newly connected client, it emits this event several times, for all
-	 * boards that are currently known to be being shared</li>
-	 * </ul>
-	 * Argument has format "host:port:boardid"
+	 * Emitted by a client to ask the server for the boards being shared.
+	 * Argument is the empty string, or "epoch:version" of the directory the
+	 * client already has, in which case only the changes since then are sent
+	 * if the server still has them.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
 	 */
-	public static final String sharingBoard = "SHARING_BOARD";
+	public static final String getBoardDirectory = "GET_BOARD_DIRECTORY";
 
 	/**
 	 * The server emits this event:
 	 * <ul>
-	 * <li>to all connected clients to tell them that a board is no longer
-	 * shared</li>
+	 * <li>to a client that asked for the boards being shared, with the entire
+	 * directory or the changes since the version the client has</li>
+	 * <li>to all connected clients whenever a board is shared or no longer
+	 * shared, with that one change</li>
 	 * </ul>
-	 * Argument has format "host:port:boardid"
+	 * Argument has format "epoch:fromVersion:toVersion%ENTRIES" where ENTRIES
+	 * are separated by %. For the entire directory fromVersion is -1 and each
+	 * entry is a board "host:port:boardid". Otherwise each entry is a change
+	 * "version+host:port:boardid" when the board is shared or
+	 * "version-host:port:boardid" when it is no longer shared, applying to a
+	 * directory at fromVersion.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
+	 * @see {@link pb.BoardRegistry}
 	 */
-	public static final String unsharingBoard = "UNSHARING_BOARD";
+	public static final String boardDirectory = "BOARD_DIRECTORY";
 
 	/**
 	 * Emitted by the server to a client to let it know that there was an error in a
@@ -85,43 +89,56 @@ public class WhiteboardServer {
 	 * </ul>
 	 */
 	public static final String error = "ERROR";
+
+	/**
+	 * Emitted by the server to a newly connected client when the server is
+	 * relaying boards. The client should then send its board events for remote
+	 * boards to the server rather than connecting to the sharing peer. Argument
+	 * is the empty string.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 * @see {@link pb.WhiteboardRelay}
+	 */
+	public static final String relayMode = "RELAY_MODE";
 	
 	/**
 	 * Default port number.
 	 */
 	private static int port = Utils.indexServerPort;
+	
+	/**
+	 * The port to serve metrics on, -1 to not serve them.
+	 */
+	private static int metricsPort=-1;
 
-	//all the peers
-	private static Map<String, Endpoint> clients = new HashMap<>();
-
-	//all the sharing boards(sharer, sharingboards)
-	private static Map<String, List<String>> sharingBoards = new HashMap<>();
+	/**
+	 * All the peers and the boards they share.
+	 */
+	private static BoardRegistry registry = new BoardRegistry();
 
-	//the boards that are shared by each peer
-	//String: board name
-	//Endpoint: peers
-	//private static Map<String, Endpoint> sharedBoards = new HashMap<>();
+	/**
+	 * Relays shared boards to the peers, only when started with -relay.
+	 */
+	private static WhiteboardRelay relay = null;
 
-	private static void broadcast(List<String> users, Map<String,Endpoint> sessions,
-			String sharer, String event, String msg){
-		if(users.isEmpty())
-			return;
-		else{
-			for(int i = 0; i < users.size(); i++) {
-				String client = users.get(i);
-				if(!client.equals(sharer)) {
-					sessions.get(client).emit(event, msg);
-				}
-			}
-		}
+	/**
+	 * Emit a change to the directory to all of the peers.
+	 * @param change
+	 */
+	private static void broadcastChange(String change){
+		long changeVersion = BoardRegistry.changeVersion(change);
+		String msg = registry.getEpoch()+":"+(changeVersion-1)+":"+changeVersion+"%"+change;
+		// encoded once for all of the receivers
+		EventProtocol.broadcast(registry.getClients(), boardDirectory, msg);
 	}
 
 	private static void displayClientAlive(){
 
-		if(clients.size()>0){
+		if(registry.numClients()>0){
 			log.info(ANSI_GREEN + "--------------------start--------------------" + ANSI_RESET);
 			log.info(ANSI_GREEN + "The following is the client alive" + ANSI_RESET);
-			for(var client : clients.keySet()){
+			for(var client : registry.getClientIds()){
 				log.info(ANSI_CYAN + client + ANSI_RESET);
 			}
 			log.info(ANSI_GREEN + "--------------------end--------------------" + ANSI_RESET);
@@ -131,11 +148,11 @@ public class WhiteboardServer {
 	}
 
 	private static void displaySharedBoards(){
-		if(sharingBoards.size()>0){
+		if(registry.numBoards()>0){
 			log.info(ANSI_CYAN + "--------------------start--------------------" + ANSI_RESET);
 			log.info(ANSI_CYAN + "The following are boards shared" + ANSI_RESET);
-			for(var sharer : sharingBoards.keySet()){
-				log.info(ANSI_YELLOW + sharer + " : " + sharingBoards.get(sharer) + ANSI_RESET);
+			for(var sharer : registry.getSharers()){
+				log.info(ANSI_YELLOW + sharer.getKey() + " : " + sharer.getValue() + ANSI_RESET);
 			}
 			log.info(ANSI_CYAN + "--------------------end--------------------" + ANSI_RESET);
 		}else{
@@ -143,13 +160,50 @@ public class WhiteboardServer {
 		}
 	}
 
-	private static void sendSharingPeer(Endpoint endpoint) {
-		for(var sharer : sharingBoards.keySet()){
-			for( var board : sharingBoards.get(sharer))
-			endpoint.emit(WhiteboardServer.sharingBoard, board);
+	/**
+	 * Send a peer the directory of shared boards, just the changes since the
+	 * version it has when possible.
+	 * @param endpoint
+	 * @param known "" or "epoch:version" of the directory the peer has
+	 */
+	private static void sendBoardDirectory(Endpoint endpoint, String known) {
+		String[] parts = known.split(":");
+		if(parts.length==2) {
+			try {
+				long epoch = Long.parseLong(parts[0]);
+				long fromVersion = Long.parseLong(parts[1]);
+				List<String> changes = epoch==registry.getEpoch()?
+						registry.getChangesSince(fromVersion):null;
+				if(changes!=null) {
+					long toVersion = changes.isEmpty()?fromVersion:
+						BoardRegistry.changeVersion(changes.get(changes.size()-1));
+					endpoint.emit(boardDirectory, registry.getEpoch()+":"+fromVersion+":"
+							+toVersion+"%"+String.join("%", changes));
+					return;
+				}
+			} catch (NumberFormatException e) {
+				log.warning("malformed directory version: "+known);
+			}
 		}
+		// version first, the snapshot includes at least the changes up to it
+		long version = registry.getVersion();
+		List<String> boards = registry.getBoards();
+		endpoint.emit(boardDirectory, registry.getEpoch()+":-1:"+version+"%"
+				+String.join("%", boards));
 	}
-	
+
+	/**
+	 * A peer has gone, the boards it was sharing are no longer shared.
+	 * @param endpoint
+	 */
+	private static void clientGone(Endpoint endpoint) {
+		for(String change : registry.removeClient(endpoint.getOtherEndpointId())) {
+			if(relay!=null) relay.boardUnshared(BoardRegistry.changeBoard(change));
+			broadcastChange(change);
+		}
+		if(relay!=null) relay.detach(endpoint);
+	}
+
 	private static void help(Options options){
 		String header = "PB Whiteboard Server for Unimelb COMP90015\n\n";
 		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
@@ -159,28 +213,10 @@ public class WhiteboardServer {
 	}
 
 	public static void getConnectedPeer(){
-		log.info("size of structure" + clients.size());
-
-	}
-
-	public static void addShareBoard(String sharer, String boardToShare){
-		if(!sharingBoards.containsKey(sharer)){
-			sharingBoards.put(sharer, new ArrayList<>());
-		}
-		sharingBoards.get(sharer).add(boardToShare);
-	}
-	public static void removeShareBoard(String sharer, String sharingBoard){
-		if(!sharingBoards.containsKey(sharer))
-			return;
-
-		sharingBoards.get(sharer).remove(sharingBoard);
-
-		if(sharingBoards.get(sharer).isEmpty())
-			sharingBoards.remove(sharer);
+		log.info("size of structure" + registry.numClients());
 
 	}
 
-	
 	public static void main( String[] args ) throws IOException, InterruptedException
     {
     	// set a nice log format
@@ -191,6 +227,8 @@ public class WhiteboardServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("relay",false,"relay shared boards through the server");
+        options.addOption("metricsport",true,"port to serve metrics on for scraping, an integer");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -209,6 +247,19 @@ public class WhiteboardServer {
 				help(options);
 			}
         }
+        
+        if(cmd.hasOption("metricsport")){
+        	try{
+        		metricsPort = Integer.parseInt(cmd.getOptionValue("metricsport"));
+			} catch (NumberFormatException e){
+				System.out.println("-metricsport requires a port number, parsed: "+cmd.getOptionValue("metricsport"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("relay")) {
+        	relay = new WhiteboardRelay();
+        }
 
         // create a server manager and setup event handlers
         ServerManager serverManager;
@@ -218,6 +269,11 @@ public class WhiteboardServer {
         } else {
         	serverManager = new ServerManager(port);
         }
+        serverManager.setMetricsPort(metricsPort);
+        
+        // the boards being shared, only read when scraped
+        Metrics.getInstance().gauge("whiteboard_boards",()->registry.numBoards());
+        Metrics.getInstance().gauge("whiteboard_clients",()->registry.numClients());
         
         /**
          * TODO: Put some server related code here.
@@ -229,35 +285,50 @@ public class WhiteboardServer {
 				})
 				.on(ServerManager.sessionStarted, (arg)->{
 					Endpoint endpoint = (Endpoint)arg[0];
-					clients.put(endpoint.getOtherEndpointId(), endpoint);
+					registry.addClient(endpoint.getOtherEndpointId(), endpoint);
 
-					sendSharingPeer(endpoint);
+					if(relay!=null) {
+						endpoint.emit(relayMode, "");
+						relay.attach(endpoint);
+					}
 
 					endpoint
+							.on(getBoardDirectory, (Args)->{
+								String known = (String)Args[0];
+								sendBoardDirectory(endpoint, known);
+							})
 							.on(shareBoard,(Args)->{
 								String sharedBoard = (String)Args[0];
 								String eventRaiser = endpoint.getOtherEndpointId();
 
-								addShareBoard(eventRaiser, sharedBoard);
-								broadcast(new ArrayList<>(clients.keySet()), clients, eventRaiser, sharingBoard, sharedBoard);
+								String change = registry.addBoard(eventRaiser, sharedBoard);
+								if(change!=null) broadcastChange(change);
 							})
 							.on(unshareBoard, (Args)->{
 								String unSharedBoard = (String)Args[0];
 								String eventRaiser = endpoint.getOtherEndpointId();
-								removeShareBoard(eventRaiser, unSharedBoard);
-								broadcast(new ArrayList<>(clients.keySet()), clients, eventRaiser, unsharingBoard, unSharedBoard);
+								String change = registry.removeBoard(eventRaiser, unSharedBoard);
+								if(change!=null) {
+									if(relay!=null) relay.boardUnshared(unSharedBoard);
+									broadcastChange(change);
+								}
 							});
 				})
+				.on(ServerManager.sessionResumed, (arg)->{
+					Endpoint endpoint = (Endpoint)arg[0];
+					Endpoint old = (Endpoint)arg[1];
+					// the client keeps its boards and what it listens to
+					registry.moveClient(old.getOtherEndpointId(), endpoint.getOtherEndpointId(), endpoint);
+					if(relay!=null) relay.move(old, endpoint);
+				})
 				.on(ServerManager.sessionStopped, (arg)->{
 					Endpoint endpoint = (Endpoint)arg[0];
 
-					clients.remove(endpoint.getOtherEndpointId());
-					sharingBoards.remove(endpoint.getOtherEndpointId());
+					clientGone(endpoint);
 				})
 				.on(ServerManager.sessionError,(arg)->{
 					Endpoint endpoint = (Endpoint)arg[0];
-					sharingBoards.remove(endpoint.getOtherEndpointId());
-					clients.remove(endpoint.getOtherEndpointId());
+					clientGone(endpoint);
 				});
         
         // start up the server
@@ -39,6 +39,25 @@ public class Whiteboard {
 	 */
 	private boolean remote=false;
 	
+	/**
+	 * Number of operations dropped from the start of the log each time it
+	 * is trimmed. The operation log holds between this many and twice this
+	 * many operations, so peers that are a little behind can always catch
+	 * up from the log; peers further behind are sent the whole board.
+	 */
+	public static final int checkpointInterval = 64;
+	
+	/**
+	 * The version of the board that the operation log starts from.
+	 */
+	private long logVersion;
+	
+	/**
+	 * Append only log of the most recent operations, operation i takes the
+	 * board from version logVersion+i to logVersion+i+1.
+	 */
+	private ArrayList<WhiteboardOperation> operations;
+	
 	/**
 	 * Initialize the whiteboard.
 	 * @param remote is true if the whiteboard is remotely managed, otherwise
@@ -49,6 +68,8 @@ public class Whiteboard {
 		this.name=name;
 		this.version=0;
 		this.remote=remote;
+		logVersion = 0;
+		operations = new ArrayList<>();
 	}
 	
 	/**
@@ -57,11 +78,14 @@ public class Whiteboard {
 	 * @param name the board name, i.e. peer:port:boardid
 	 * @param data the board data, i.e. version%PATHS 
 	 */
-	public void whiteboardFromString(String name,String data) {
+	public synchronized void whiteboardFromString(String name,String data) {
 		String[] parts = data.split("%");
 		paths = new ArrayList<>();
 		this.name=name;
 		version=-1;
+		// whatever we had is no longer related to the new data
+		logVersion = -1;
+		operations = new ArrayList<>();
 		if(parts.length<1) {
 			log.severe("whiteboard data is malformed: "+data);
 			return;
@@ -80,6 +104,100 @@ public class Whiteboard {
 				}
 			}
 		}
+		// the log starts again from the loaded board
+		logVersion = version;
+	}
+	
+	/**
+	 * Bring the board up to date with a copy of it that has had one more
+	 * operation applied, as sent with path, undo and clear updates. The
+	 * operation is applied to the board, and so logged for peers catching
+	 * up, rather than the copy replacing the board; unless the board is not
+	 * exactly one operation behind the copy, in which case the copy does
+	 * replace it.
+	 * 
+	 * @param type the operation that was applied to the copy
+	 * @param name the board name, i.e. peer:port:boardid
+	 * @param data the copy's data, i.e. version%PATHS
+	 */
+	public synchronized void applyUpdate(WhiteboardOperation.Type type, String name, String data) {
+		String[] parts = data.split("%",2);
+		long newVersion;
+		try {
+			newVersion = Long.parseLong(parts[0]);
+		} catch (NumberFormatException e) {
+			log.severe("whiteboard data is malformed: "+data);
+			return;
+		}
+		if(newVersion==version+1 && name.equals(this.name)) {
+			switch(type) {
+			case add:
+				// the added path is the last one
+				String added = parts.length>1?parts[1].substring(parts[1].lastIndexOf('%')+1):"";
+				if(added.length()>0) {
+					addPath(new WhiteboardPath(added),version);
+					return;
+				}
+				break;
+			case undo: undo(version); return;
+			case clear: clear(version); return;
+			}
+		}
+		whiteboardFromString(name, data);
+	}
+	
+	/**
+	 * Get the operations needed to bring a copy of this board at the given
+	 * version up to the current version.
+	 * 
+	 * @param fromVersion the version of the copy
+	 * @return "fromVersion%OPS" where each operation is separated by a "%", or
+	 *         null if the log no longer (or never did) cover that version, in
+	 *         which case the entire board needs to be sent
+	 */
+	public synchronized String getOperationsSince(long fromVersion) {
+		if(fromVersion<logVersion || fromVersion>version) return null;
+		StringBuilder sb = new StringBuilder();
+		sb.append(fromVersion);
+		if(fromVersion==version) 
+			sb.append("%");
+		else {
+			for(int i=(int)(fromVersion-logVersion);i<operations.size();i++) {
+				sb.append("%"+operations.get(i));
+			}
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Apply operations, as given by {@link #getOperationsSince(long)}, to this
+	 * board.
+	 * 
+	 * @param data "fromVersion%OPS"
+	 * @return true if the operations were applied, false if fromVersion is not
+	 *         the current version or the data is malformed, in which case the
+	 *         board is unchanged
+	 */
+	public synchronized boolean applyOperations(String data) {
+		String[] parts = data.split("%");
+		ArrayList<WhiteboardOperation> ops = new ArrayList<>();
+		try {
+			if(Long.parseLong(parts[0])!=version) return false;
+			for(int i=1;i<parts.length;i++) {
+				if(parts[i].length()>0) ops.add(new WhiteboardOperation(parts[i]));
+			}
+		} catch (IllegalArgumentException e) {
+			log.severe("whiteboard operations are malformed: "+data);
+			return false;
+		}
+		for(WhiteboardOperation op : ops) {
+			switch(op.getType()) {
+			case add: addPath(op.getPath(),version); break;
+			case undo: undo(version); break;
+			case clear: clear(version); break;
+			}
+		}
+		return true;
 	}
 	
 	/**
@@ -128,6 +246,7 @@ public class Whiteboard {
 		if(version!=versionBeingUpdated) return false;
 		paths.add(newPath);
 		this.version++;
+		logOperation(new WhiteboardOperation(WhiteboardOperation.Type.add,newPath));
 		return true;
 	}
 	
@@ -140,6 +259,7 @@ public class Whiteboard {
 		if(version!=versionBeingUpdated) return false;
 		paths.clear();
 		this.version++;
+		logOperation(new WhiteboardOperation(WhiteboardOperation.Type.clear,null));
 		return true;
 	}
 	
@@ -152,9 +272,22 @@ public class Whiteboard {
 			paths.remove(paths.size()-1);
 		}
 		this.version++;
+		logOperation(new WhiteboardOperation(WhiteboardOperation.Type.undo,null));
 		return true;
 	}
 	
+	/**
+	 * Append an operation to the log, and drop the oldest operations once
+	 * the log is long enough.
+	 * @param op
+	 */
+	private void logOperation(WhiteboardOperation op) {
+		operations.add(op);
+		if(operations.size()<2*checkpointInterval) return;
+		operations = new ArrayList<>(operations.subList(checkpointInterval,operations.size()));
+		logVersion+=checkpointInterval;
+	}
+	
 	/**
 	 * 
 	 * @return peer:port:boardid%version
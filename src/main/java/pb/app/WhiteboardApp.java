@@ -1,11 +1,13 @@
 package pb.app;
 
+import pb.BoardRegistry;
 import pb.WhiteboardServer;
 import pb.managers.ClientManager;
 import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.EventProtocol;
 import pb.utils.Utils;
 
 import javax.swing.*;
@@ -64,6 +66,28 @@ public class WhiteboardApp {
 	 */
 	public static final String boardData = "BOARD_DATA";
 
+	/**
+	 * Emitted to another peer to get the updates for a given board since a given
+	 * version, i.e. the version of the copy the requesting peer already has.
+	 * Argument must have format "host:port:boardid%version".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String getBoardUpdates = "GET_BOARD_UPDATES";
+
+	/**
+	 * Emitted to another peer to give the operations that bring a copy of a board
+	 * from the given version to the current version. Argument must have format
+	 * "host:port:boardid%version%OPS", where each operation has the format
+	 * type:PATH. If the requested version is no longer covered by the board's
+	 * operation log then {@link #boardData} is emitted instead.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardUpdates = "BOARD_UPDATES";
+
 	/**
 	 * Emitted to another peer to add a path to a board managed by that peer.
 	 * Argument must have format "host:port:boardid%version%PATH". The numeric value
@@ -182,8 +206,37 @@ public class WhiteboardApp {
 	Endpoint endpointToSharePeer = null;
 	Endpoint endpointToWhiteboardServer = null;
 
+	/**
+	 * Whether the whiteboard server relays the shared boards, in which case
+	 * remote boards are fetched through the server endpoint.
+	 */
+	volatile boolean relayMode = false;
+
 	Map<String, List<String>> sharingBoards = new HashMap<>();
 
+	/**
+	 * Epoch and version of the board directory received from the whiteboard
+	 * server, -1 until the directory has been received.
+	 */
+	long directoryEpoch = -1;
+	long directoryVersion = -1;
+
+	/**
+	 * Directory changes that arrived before the directory itself, or while
+	 * missed changes were being asked for.
+	 */
+	List<String> pendingDirectoryChanges = new ArrayList<>();
+
+	/**
+	 * When (ms since the epoch) the outstanding request for the board
+	 * directory was made, 0 if none is. Only one request is outstanding at a
+	 * time, so that a burst of changes we can't apply doesn't become a burst
+	 * of requests; a request not answered within
+	 * {@link #directoryRequestTimeout} ms is given up on.
+	 */
+	long directoryRequested = 0;
+	static final long directoryRequestTimeout = 10000;
+
 
 	/**
 	 * Initialize the white board app.
@@ -209,6 +262,10 @@ public class WhiteboardApp {
 								String boardName = (String)arg[0];
 								onGetBoard(endpt, boardName);
 							})
+							.on(getBoardUpdates,(arg)->{
+								String boardNameAndVersion = (String)arg[0];
+								onGetBoardUpdates(endpt, boardNameAndVersion);
+							})
 							.on(listenBoard,(arg)->{
 								String boardToListen = (String)arg[0];
 								onBoardListen(endpt, boardToListen);
@@ -218,30 +275,21 @@ public class WhiteboardApp {
 								onBoardPath(updateData);
 
 								String targetBoard = getBoardName(updateData);
-								boardListeningLists.get(targetBoard).forEach((receiver)->{
-									Endpoint endpoint = sessions.get(receiver);
-									endpoint.emit(boardPathAccepted, updateData);
-								});
+								broadcastToListeners(targetBoard, boardPathAccepted, updateData);
 							})
 							.on(boardUndoUpdate, (arg)->{
 								String updateData = (String)arg[0];
 								onBoardUndo(updateData);
 
 								String targetBoard = getBoardName(updateData);
-								boardListeningLists.get(targetBoard).forEach((receiver)->{
-									Endpoint endpoint = sessions.get(receiver);
-									endpoint.emit(boardUndoAccepted, updateData);
-								});
+								broadcastToListeners(targetBoard, boardUndoAccepted, updateData);
 							})
 							.on(boardClearUpdate, (arg)->{
 								String updateData = (String)arg[0];
 								onBoardClear(updateData);
 
 								String targetBoard = getBoardName(updateData);
-								boardListeningLists.get(targetBoard).forEach(receiver->{
-									Endpoint endpoint = sessions.get(receiver);
-									endpoint.emit(boardClearAccepted, updateData);
-								});
+								broadcastToListeners(targetBoard, boardClearAccepted, updateData);
 							});
 				})
 				.on(PeerManager.peerStopped, (args)->{
@@ -277,14 +325,14 @@ public class WhiteboardApp {
 			// todo: ask the server for the shared board
 			this.endpointToWhiteboardServer = (Endpoint)args[0];
 			endpointToWhiteboardServer
-					.on(WhiteboardServer.sharingBoard,(arg)->{
-						String sharedBoard = (String)arg[0];
-						onShareBoard(sharedBoard);
+					.on(WhiteboardServer.boardDirectory,(arg)->{
+						String directory = (String)arg[0];
+						onBoardDirectory(directory);
 					})
-					.on(WhiteboardServer.unsharingBoard, (arg)->{
-						String unsharedBoard = (String)arg[0];
-						onUnshareBoard(unsharedBoard);
+					.on(WhiteboardServer.relayMode, (arg)->{
+						onRelayMode();
 					});
+			requestBoardDirectory(true);
 		});
 
 		this.peerport = InetAddress.getLoopbackAddress().getHostAddress() + ":" + peerPort;
@@ -387,6 +435,49 @@ public class WhiteboardApp {
 		endpoint.emit(boardData, sharedBoardData);
 	}
 
+	/*
+	 * Called by the sharer in setUpServerManager. This function emits
+	 * the operations the receiver is missing, or the entire board if
+	 * the receiver's version is too old.
+	 */
+	private void onGetBoardUpdates(Endpoint endpoint, String boardNameAndVersion) {
+		String boardName = getBoardName(boardNameAndVersion);
+		Whiteboard whiteboard = whiteboards.get(boardName);
+		if(whiteboard==null) {
+			endpoint.emit(boardError, "board does not exist: "+boardName);
+			return;
+		}
+		String operations = null;
+		try {
+			operations = whiteboard.getOperationsSince(Long.parseLong(getBoardData(boardNameAndVersion)));
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			log.warning("malformed board updates request: "+boardNameAndVersion);
+		}
+		if(operations==null) {
+			endpoint.emit(boardData, whiteboard.toString());
+		} else {
+			endpoint.emit(boardUpdates, boardName+"%"+operations);
+		}
+	}
+
+	/*
+	 * Called by the receiver to catch up its copy of the shared board. If
+	 * the operations can't be applied then the entire board is requested.
+	 */
+	private void onBoardUpdates(Endpoint endpoint, String data){
+		String boardName = getBoardName(data);
+
+		if(selectedBoard.getName().equals(boardName)){
+			if(!selectedBoard.applyOperations(getBoardData(data))) {
+				endpoint.emit(getBoardData, boardName);
+				return;
+			}
+			drawSelectedWhiteboard();
+		}
+
+		endpoint.emit(listenBoard, boardName);
+	}
+
 	/*
 	 * Called by the receiver to get the content on the shared board
 	 * from the sharer. After getting data, this function emits listenBoard
@@ -416,6 +507,22 @@ public class WhiteboardApp {
 
 	}
 
+	/*
+	 * Called by the sharer to send an event to every listener of a shared board. The
+	 * event is encoded once and queued on each listener's endpoint, so this does not
+	 * hold up the calling (often GUI) thread.
+	 */
+	private void broadcastToListeners(String boardName, String event, String data){
+		List<String> listeners = boardListeningLists.get(boardName);
+		if(listeners==null || listeners.isEmpty()) return;
+		List<Endpoint> receivers = new ArrayList<>();
+		for(String listener : listeners){
+			Endpoint endpoint = sessions.get(listener);
+			if(endpoint!=null) receivers.add(endpoint);
+		}
+		EventProtocol.broadcast(receivers, event, data);
+	}
+
 	/*
 	 * Called by the sharer to delete a listener from the list of the sharing whiteboard.
 	 */
@@ -440,7 +547,7 @@ public class WhiteboardApp {
 		String currentBoard = selectedBoard.getName();
 
 		if(currentBoard.equals(boardToUpdate)){
-			selectedBoard.whiteboardFromString(boardToUpdate, version + "%" + path);
+			selectedBoard.applyUpdate(WhiteboardOperation.Type.add, boardToUpdate, version + "%" + path);
 			drawSelectedWhiteboard();
 		}
 	}
@@ -455,7 +562,7 @@ public class WhiteboardApp {
 		String currentBoard = selectedBoard.getName();
 
 		if(currentBoard.equals(boardToUpdate)){
-			selectedBoard.whiteboardFromString(boardToUpdate, version + "%" + path);
+			selectedBoard.applyUpdate(WhiteboardOperation.Type.clear, boardToUpdate, version + "%" + path);
 			drawSelectedWhiteboard();
 		}
 	}
@@ -470,15 +577,159 @@ public class WhiteboardApp {
 		String currentBoard = selectedBoard.getName();
 
 		if(currentBoard.equals(boardToUpdate)){
-			selectedBoard.whiteboardFromString(boardToUpdate, version + "%" + path);
+			selectedBoard.applyUpdate(WhiteboardOperation.Type.undo, boardToUpdate, version + "%" + path);
 			drawSelectedWhiteboard();
 		}
 	}
 
 	// From whiteboard server
 
+	/**
+	 * The whiteboard server relays the shared boards, so the events for remote
+	 * boards arrive on the server endpoint.
+	 */
+	private void onRelayMode() {
+		log.info("whiteboard server is relaying boards");
+		listenToRemoteBoards(endpointToWhiteboardServer);
+		relayMode=true;
+	}
+
+	/**
+	 * Handle the events for remote boards arriving on an endpoint, either to
+	 * the sharing peer or to a relaying whiteboard server.
+	 * @param endpoint
+	 */
+	private void listenToRemoteBoards(Endpoint endpoint) {
+		endpoint
+				.on(boardData, (args)->{
+					String boardDataToRender = (String)args[0];
+					onBoardData(endpoint, boardDataToRender);
+				})
+				.on(boardUpdates, (args)->{
+					String boardUpdatesToApply = (String)args[0];
+					onBoardUpdates(endpoint, boardUpdatesToApply);
+				})
+				.on(boardPathAccepted, (args)->{
+					String boardDataToRender =(String)args[0];
+					onBoardPath(boardDataToRender);
+				})
+				.on(boardClearAccepted, (args)->{
+					String boardDataToRender =(String)args[0];
+					onBoardClear(boardDataToRender);
+				})
+				.on(boardUndoAccepted, (args)->{
+					String boardDataToRender =(String)args[0];
+					onBoardUndo(boardDataToRender);
+				})
+				.on(unlistenBoard,(args)->{
+					String boardNotToListen = (String)args[0];
+					onBoardUnListen(boardNotToListen);
+				})
+				.on(boardDeleted, (args)->{
+					String boardToDelete = (String)args[0];
+					onBoardDeleted(boardToDelete);
+				})
+				.on(boardError, (args)->{
+					String boardError = (String)args[0];
+					log.warning(boardError);
+				});
+	}
+
+	/**
+	 * Ask the whiteboard server for the boards being shared, only the changes
+	 * if we already have a version of the directory, unless a request is
+	 * already outstanding.
+	 * @param again true to ask even if a request is outstanding, e.g. on a
+	 * new connection
+	 */
+	private synchronized void requestBoardDirectory(boolean again) {
+		long now = System.currentTimeMillis();
+		if(!again && directoryRequested>0 && now-directoryRequested<directoryRequestTimeout) return;
+		directoryRequested=now;
+		endpointToWhiteboardServer.emit(WhiteboardServer.getBoardDirectory,
+				directoryVersion<0?"":directoryEpoch+":"+directoryVersion);
+	}
+
+	/**
+	 * Our copy of the directory has caught up, so apply the changes that
+	 * were waiting for it.
+	 */
+	private synchronized void directoryCaughtUp() {
+		directoryRequested=0;
+		List<String> pending = pendingDirectoryChanges;
+		pendingDirectoryChanges = new ArrayList<>();
+		pending.forEach(this::onBoardDirectory);
+	}
+
+	/**
+	 * Bring our copy of the board directory up to date.
+	 * @param directory epoch:fromVersion:toVersion%ENTRIES
+	 * @see {@link pb.WhiteboardServer#boardDirectory}
+	 */
+	private synchronized void onBoardDirectory(String directory) {
+		String[] entries = directory.split("%");
+		String[] header = entries[0].split(":");
+		long epoch, fromVersion, toVersion;
+		try {
+			epoch = Long.parseLong(header[0]);
+			fromVersion = Long.parseLong(header[1]);
+			toVersion = Long.parseLong(header[2]);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			log.severe("malformed board directory: "+entries[0]);
+			return;
+		}
+		if(fromVersion<0) {
+			// the entire directory
+			Set<String> boards = new HashSet<>();
+			for(int i=1;i<entries.length;i++) boards.add(entries[i]);
+			List<String> gone = new ArrayList<>();
+			sharingBoards.values().forEach((sharedBoards)->{
+				for(String board : sharedBoards) if(!boards.contains(board)) gone.add(board);
+			});
+			gone.forEach(this::onUnshareBoard);
+			boards.forEach(this::onShareBoard);
+			directoryEpoch=epoch;
+			directoryVersion=toVersion;
+			directoryCaughtUp();
+			return;
+		}
+		if(directoryVersion<0) {
+			pendingDirectoryChanges.add(directory);
+			return;
+		}
+		// epochs are the times the server started
+		if(epoch<directoryEpoch) return;
+		if(epoch!=directoryEpoch) {
+			// the server has restarted
+			directoryVersion=-1;
+			requestBoardDirectory(false);
+			return;
+		}
+		if(toVersion<=directoryVersion) return;
+		if(fromVersion>directoryVersion) {
+			// missed some changes, keep this until they arrive
+			pendingDirectoryChanges.add(directory);
+			requestBoardDirectory(false);
+			return;
+		}
+		for(int i=1;i<entries.length;i++) {
+			if(BoardRegistry.changeVersion(entries[i])<=directoryVersion) continue;
+			if(BoardRegistry.changeIsShare(entries[i])) {
+				onShareBoard(BoardRegistry.changeBoard(entries[i]));
+			} else {
+				onUnshareBoard(BoardRegistry.changeBoard(entries[i]));
+			}
+		}
+		directoryVersion=toVersion;
+		if(directoryRequested>0) directoryCaughtUp();
+	}
+
 	private void onShareBoard(String sharedBoard){
 		String sharer = getIP(sharedBoard)+":"+getPort(sharedBoard);
+		synchronized(whiteboards) {
+			// our own boards, or already known
+			if(whiteboards.containsKey(getBoardName(sharedBoard))) return;
+		}
 
 		if(!sharingBoards.containsKey(sharer)) {
 			sharingBoards.put(sharer, new ArrayList<>());
@@ -567,13 +818,8 @@ public class WhiteboardApp {
 					endpointToSharePeer.emit(boardPathUpdate, shareBoardData);
 				}else{	// sharer updates
 					String sharedBoardName = selectedBoard.getName();
-					boolean hasListeners = boardListeningLists.get(sharedBoardName)!=null
-							&& !boardListeningLists.get(sharedBoardName).isEmpty();
-
-					if(selectedBoard.isShared() && hasListeners){
-						boardListeningLists
-								.get(sharedBoardName)
-								.forEach(receiver-> sessions.get(receiver).emit(boardPathAccepted, shareBoardData));
+					if(selectedBoard.isShared()){
+						broadcastToListeners(sharedBoardName, boardPathAccepted, shareBoardData);
 					}
 					drawSelectedWhiteboard();
 				}
@@ -598,13 +844,8 @@ public class WhiteboardApp {
 					endpointToSharePeer.emit(boardClearUpdate, shareBoardData);
 				}else{
 					String sharedBoardName = selectedBoard.getName();
-					boolean hasListeners = boardListeningLists.get(sharedBoardName)!=null
-							&& !boardListeningLists.get(sharedBoardName).isEmpty();
-
-					if(selectedBoard.isShared() && hasListeners){
-						boardListeningLists
-								.get(sharedBoardName)
-								.forEach(receiver->sessions.get(receiver).emit(boardClearAccepted, shareBoardData));
+					if(selectedBoard.isShared()){
+						broadcastToListeners(sharedBoardName, boardClearAccepted, shareBoardData);
 					}
 					drawSelectedWhiteboard();
 				}
@@ -628,13 +869,8 @@ public class WhiteboardApp {
 					endpointToSharePeer.emit(boardUndoUpdate, shareBoardData);
 				}else{
 					String sharedBoardName = selectedBoard.getName();
-					boolean hasListeners = boardListeningLists.get(sharedBoardName)!=null
-							&& !boardListeningLists.get(sharedBoardName).isEmpty();
-
-					if(selectedBoard.isShared() && hasListeners){
-						boardListeningLists
-								.get(sharedBoardName)
-								.forEach((receiver)->sessions.get(receiver).emit(boardUndoAccepted, shareBoardData));
+					if(selectedBoard.isShared()){
+						broadcastToListeners(sharedBoardName, boardUndoAccepted, shareBoardData);
 					}
 					drawSelectedWhiteboard();
 				}
@@ -657,6 +893,15 @@ public class WhiteboardApp {
 			String peerIP = getIP(selectedBoardName);
 			int peerServerPort = getPort(selectedBoardName);
 			String boardID = getBoardIdAndData(selectedBoardName);
+			Whiteboard remoteBoard = selectedBoard;
+
+			if(relayMode) {
+				// the server already has the handlers, see onRelayMode
+				endpointToSharePeer = endpointToWhiteboardServer;
+				endpointToSharePeer.emit(getBoardUpdates,
+						selectedBoardName+"%"+remoteBoard.getVersion());
+				return;
+			}
 
 			try {
 				log.info("try to connect");
@@ -665,36 +910,14 @@ public class WhiteboardApp {
 				clientMangr
 						.on(PeerManager.peerStarted, (args)->{
 							endpointToSharePeer = (Endpoint)args[0];
+							listenToRemoteBoards(endpointToSharePeer);
 							endpointToSharePeer
-									.on(boardData, (args1)->{
-										String boardDataToRender = (String)args1[0];
-										onBoardData(endpointToSharePeer, boardDataToRender);
-									})
-									.on(boardPathAccepted, (args1)->{
-										String boardDataToRender =(String)args1[0];
-										onBoardPath(boardDataToRender);
-									})
-									.on(boardClearAccepted, (args1)->{
-										String boardDataToRender =(String)args1[0];
-										onBoardClear(boardDataToRender);
-									})
-									.on(boardUndoAccepted, (args1)->{
-										String boardDataToRender =(String)args1[0];
-										onBoardUndo(boardDataToRender);
-									})
-									.on(unlistenBoard,(args1)->{
-										String boardNotToListen = (String)args1[0];
-										onBoardUnListen(boardNotToListen);
-									})
 									.on(boardDeleted, (args1)->{
-										String boardToDelete = (String)args1[0];
-										onBoardDeleted(boardToDelete);
 										clientMangr.shutdown();
-									})
-									.on(boardError, (args1)->{
-										String boardError = (String)args1[0];
 									});
-							endpointToSharePeer.emit(getBoardData, selectedBoardName);
+							// only the operations since our copy's version are needed
+							endpointToSharePeer.emit(getBoardUpdates,
+									selectedBoardName+"%"+remoteBoard.getVersion());
 						})
 						.on(PeerManager.peerStopped, (args)->{
 							Endpoint endpoint = (Endpoint)args[0];
@@ -0,0 +1,92 @@
+package pb.app;
+
+import java.util.logging.Logger;
+
+/**
+ * A single update applied to a whiteboard: adding a path, undoing the last
+ * path or clearing the board. Each operation advances the board version by
+ * exactly one, so a sequence of operations starting at a known version is
+ * enough to bring a copy of the board up to date.
+ * @author aaron
+ *
+ */
+public class WhiteboardOperation {
+	private static Logger log = Logger.getLogger(WhiteboardOperation.class.getName());
+
+	/**
+	 * The kinds of operations that change a board.
+	 */
+	public static enum Type {
+		add,
+		undo,
+		clear
+	}
+
+	/**
+	 * The kind of operation.
+	 */
+	private Type type;
+
+	/**
+	 * The path added, only for {@link Type#add} operations.
+	 */
+	private WhiteboardPath path;
+
+	/**
+	 * Create an operation.
+	 * @param type
+	 * @param path the path added, or null for undo and clear
+	 */
+	public WhiteboardOperation(Type type, WhiteboardPath path) {
+		this.type=type;
+		this.path=path;
+	}
+
+	/**
+	 * Initialize an operation from a string, in the format type:PATH
+	 * where PATH is only present for add operations.
+	 * @param data
+	 * @throws IllegalArgumentException if the data is not an operation
+	 */
+	public WhiteboardOperation(String data) {
+		String[] parts = data.split(":",2);
+		try {
+			type = Type.valueOf(parts[0]);
+		} catch (IllegalArgumentException e) {
+			log.severe("invalid operation ["+data+"]");
+			throw e;
+		}
+		if(type==Type.add) {
+			if(parts.length<2 || parts[1].length()==0) {
+				log.severe("add operation without a path ["+data+"]");
+				throw new IllegalArgumentException(data);
+			}
+			path = new WhiteboardPath(parts[1]);
+		}
+	}
+
+	/**
+	 *
+	 * @return the kind of operation
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 *
+	 * @return the path added, or null if this is not an add operation
+	 */
+	public WhiteboardPath getPath() {
+		return path;
+	}
+
+	/**
+	 *
+	 * @return the operation as a string in the format type:PATH
+	 */
+	public String toString() {
+		if(type==Type.add) return type+":"+path;
+		return type+":";
+	}
+}
@@ -9,17 +9,22 @@ import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
-import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
-import pb.protocols.event.EventProtocol;
+import pb.protocols.ProtocolRegistry;
 import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
-import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
 import pb.protocols.session.SessionProtocol;
 
 /**
- * Manages the connection to the server and the client's state.
+ * Manages the connection to the server and the client's state. If the
+ * connection fails the client manager reconnects according to its
+ * {@link ReconnectPolicy}.
+ * <br/>
+ * When it may reconnect, the client manager asks the server for a resume
+ * token, and on reconnecting resumes the session with it: the session is
+ * started, and {@link #sessionStarted} emitted, as soon as the request is
+ * sent rather than when the server replies.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -62,6 +67,26 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String sessionError="SESSION_ERROR";
 	
+	/**
+	 * Emitted before each attempt to reconnect, after a connection
+	 * failed or ended in error.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Integer} the number of the attempt, from 1</li>
+	 * <li>{@code args[1] instanceof Long} ms until the attempt</li>
+	 * </ul>
+	 */
+	public static final String reconnecting="RECONNECTING";
+	
+	/**
+	 * Emitted when the client manager gives up connecting, because the
+	 * host is unknown, the reconnect policy allows no more attempts, or
+	 * the host's circuit breaker is open.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String} the host:port</li>
+	 * </ul>
+	 */
+	public static final String connectFailed="CONNECT_FAILED";
+	
 	/**
 	 * The session protocol for this client, so we can stop the
 	 * session when we need to.
@@ -86,7 +111,17 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	/**
 	 * When a connection fails, should we retry.
 	 */
-	private boolean shouldWeRetry=false;
+	private volatile boolean shouldWeRetry=false;
+	
+	/**
+	 * Whether a session started on the current connection.
+	 */
+	private volatile boolean sessionWasStarted=false;
+	
+	/**
+	 * How to reconnect.
+	 */
+	private ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
 	
 	/**
 	 * Initialise the client manage with a host and port to connect to.
@@ -105,27 +140,66 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 		sessionProtocol.stopSession();
 	}
 	
+	/**
+	 * Set how to reconnect, before the client manager is started.
+	 * @param reconnectPolicy
+	 */
+	public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+		this.reconnectPolicy=reconnectPolicy;
+	}
+	
 	@Override
 	public void run() {
-		int retries=10;
-		while(retries-- > 0) {
-			if(attemptToConnect(host,port)) {
-				// the connection ended in error, so let's just
-				// try to get it back up, transparently to the
-				// higher layer
+		String key = host+":"+port;
+		long start = System.nanoTime();
+		int attempt=0;
+		while(true) {
+			if(!reconnectPolicy.allowAttempt(key)) {
+				// wait for the circuit to let an attempt through, with jitter
+				// so that the clients waiting on it don't all try at once
+				long delay = Math.max(1, reconnectPolicy.getOpenDelay(key)+reconnectPolicy.getDelay(attempt));
+				long elapsed = (System.nanoTime()-start)/1000000;
+				if(!reconnectPolicy.shouldRetry(attempt, elapsed, delay)) {
+					log.severe("too many failed connections to "+key+", not trying for now");
+					localEmit(connectFailed,key);
+					return;
+				}
+				log.warning("too many failed connections to "+key+", waiting "+delay+" ms");
 				try {
-					Thread.sleep(5000); // short pause before retrying
+					Thread.sleep(delay);
 				} catch (InterruptedException e) {
-					continue;
-				} 
-			} else {
+					// check again
+				}
+				continue;
+			}
+			if(!attemptToConnect(host,port)) {
 				// connection ended cleanly, so we can terminate this manager
 				return;
 			}
+			// the connection ended in error, so let's just
+			// try to get it back up, transparently to the
+			// higher layer
+			if(sessionWasStarted) {
+				// the connection worked for a while, start backing off afresh
+				attempt=0;
+				start=System.nanoTime();
+			}
+			long delay = reconnectPolicy.getDelay(attempt);
+			long elapsed = (System.nanoTime()-start)/1000000;
+			if(!reconnectPolicy.shouldRetry(attempt, elapsed, delay)) break;
+			attempt++;
+			log.warning("reconnecting to "+key+" in "+delay+" ms, attempt "+attempt);
+			localEmit(reconnecting,attempt,delay);
+			try {
+				Thread.sleep(delay); // pause before retrying
+			} catch (InterruptedException e) {
+				continue;
+			}
 		}
 		log.severe("no more retries, giving up");
-		
+		localEmit(connectFailed,key);
 	}
+	
 	/**
 	 * Attempt to connect.
 	 * @param host
@@ -135,9 +209,20 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	private boolean attemptToConnect(final String host,final int port) {
 		shouldWeRetry=false; // may be set to true by another thread
 						     // if errors occur on the connection
-		log.info("attempting to connect to "+host+":"+port);
+		sessionWasStarted=false;
+		String key = host+":"+port;
+		log.info("attempting to connect to "+key);
 		try {
-			socket=new Socket(InetAddress.getByName(host),port);
+			boolean connected=false;
+			try {
+				socket=new Socket(InetAddress.getByName(host),port);
+				connected=true;
+			} finally {
+				// however the attempt ended, so a half open circuit is never
+				// left waiting for it
+				if(connected) reconnectPolicy.connected(key);
+				else reconnectPolicy.failed(key);
+			}
 			Endpoint endpoint = new Endpoint(socket,this);
 			endpoint.start();
 
@@ -149,6 +234,8 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 				endpoint.close();
 			}
 		} catch (UnknownHostException e) {
+			log.severe("unknown host: "+host);
+			localEmit(connectFailed,key);
 			return false; // we wont retry
 		} catch (IOException e1) {
 			shouldWeRetry=true;
@@ -170,20 +257,22 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointReady(Endpoint endpoint) {
 		log.info("connection with server established");
+		// the token of the session on the previous connection, if any
+		String token = sessionProtocol==null?null:sessionProtocol.getToken();
+		// every protocol is handled from the start, the KeepAlive protocol starts now
+		ProtocolRegistry.install(endpoint,this,false);
 		sessionProtocol = new SessionProtocol(endpoint,this);
 		try {
 			// we need to add it to the endpoint before starting it
 			endpoint.handleProtocol(sessionProtocol);
-			sessionProtocol.startAsClient();
-		} catch (ProtocolAlreadyRunning e) {
-			// hmmm, so the server is requesting a session start?
-			log.warning("server initiated the session protocol... weird");
-		}
-		KeepAliveProtocol keepAliveProtocol = new KeepAliveProtocol(endpoint,this);
-		try {
-			// we need to add it to the endpoint before starting it
-			endpoint.handleProtocol(keepAliveProtocol);
-			keepAliveProtocol.startAsClient();
+			if(!reconnectPolicy.allowsRetries()) {
+				sessionProtocol.startAsClient();
+			} else if(token==null) {
+				sessionProtocol.startResumableAsClient();
+			} else {
+				log.info("resuming session with server");
+				sessionProtocol.resumeAsClient(token);
+			}
 		} catch (ProtocolAlreadyRunning e) {
 			// hmmm, so the server is requesting a session start?
 			log.warning("server initiated the session protocol... weird");
@@ -253,48 +342,32 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStarted(Endpoint endpoint) {
 		log.info("session has started with server");
+		sessionWasStarted=true;
 		
-		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
-		try {
-			endpoint.handleProtocol(eventProtocol);
-			eventProtocol.startAsServer();
-		} catch (ProtocolAlreadyRunning e) {
-			// hmmm... already requested by the client
-		}
+		ProtocolRegistry.start(endpoint,ProtocolRegistry.Stage.Session,false);
 		
 		localEmit(sessionStarted,endpoint);
 	}
 
 	/**
-	 * The session protocol is indicating that the session has stopped. 
+	 * Sessions are only resumed by the server.
 	 * @param endpoint
+	 * @param resume
+	 * @return null
 	 */
 	@Override
-	public void sessionStopped(Endpoint endpoint) {
-		log.info("session has stopped with server");
-		localEmit(sessionStopped,endpoint);
-		endpoint.close(); // this will stop all the protocols as well
+	public String sessionToken(Endpoint endpoint, String resume) {
+		return null;
 	}
-	
 
 	/**
-	 * The endpoint has requested a protocol to start. If the protocol
-	 * is allowed then the manager should tell the endpoint to handle it
-	 * using {@link pb.managers.endpoint.Endpoint#handleProtocol(Protocol)}
-	 * before returning true.
-	 * @param protocol
-	 * @return true if the protocol was started, false if not (not allowed to run)
+	 * The session protocol is indicating that the session has stopped. 
+	 * @param endpoint
 	 */
 	@Override
-	public boolean protocolRequested(Endpoint endpoint, Protocol protocol) {
-		// the only protocols in this system are this kind...
-		try {
-			((IRequestReplyProtocol)protocol).startAsClient();
-			endpoint.handleProtocol(protocol);
-			return true;
-		} catch (ProtocolAlreadyRunning e) {
-			// even more weird... should log this too
-			return false;
-		}
+	public void sessionStopped(Endpoint endpoint) {
+		log.info("session has stopped with server");
+		localEmit(sessionStopped,endpoint);
+		endpoint.close(); // this will stop all the protocols as well
 	}
 }
@@ -0,0 +1,387 @@
+package pb.managers;
+
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import pb.managers.endpoint.Endpoint;
+import pb.utils.Utils;
+
+/**
+ * Keeps sessions to other peers and servers open after use, keyed by
+ * host:port, so that the next connection to the same host skips connecting
+ * and starting the session. A session is lent to one
+ * {@link PooledConnection} at a time. At most {@link #getMaxPerHost()}
+ * sessions are kept to each host, further connections wait for one to be
+ * released, and sessions that have been idle for
+ * {@link #getIdleTimeout()} ms are stopped.
+ *
+ * @see {@link pb.managers.PeerManager#connectPooled(int, String)}
+ * @see {@link pb.managers.PooledConnection}
+ * @author aaron
+ *
+ */
+public class ConnectionPool {
+	private static Logger log = Logger.getLogger(ConnectionPool.class.getName());
+
+	/**
+	 * A session in the pool.
+	 */
+	static class Connection {
+		final String key;
+		final ClientManager clientManager;
+
+		/**
+		 * The endpoint, once the session has started.
+		 */
+		volatile Endpoint endpoint;
+
+		/**
+		 * Who the session is lent to, null if it is idle.
+		 */
+		PooledConnection lentTo;
+
+		/**
+		 * When the session became idle, to tell eviction checks apart.
+		 */
+		long idleSince;
+
+		/**
+		 * The session should stop as soon as it has started.
+		 */
+		boolean closing=false;
+
+		Connection(String key, ClientManager clientManager) {
+			this.key=key;
+			this.clientManager=clientManager;
+		}
+	}
+
+	/**
+	 * The sessions and waiting connections for one host.
+	 */
+	private static class Host {
+		final List<Connection> connections = new ArrayList<>();
+		final ArrayDeque<PooledConnection> waiting = new ArrayDeque<>();
+	}
+
+	/**
+	 * The peer manager that makes the client managers.
+	 */
+	private final PeerManager peerManager;
+
+	/**
+	 * host:port to its sessions, guarded by this.
+	 */
+	private final Map<String,Host> hosts = new HashMap<>();
+
+	/**
+	 * All client managers made for the pool.
+	 */
+	private final Set<ClientManager> owned = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Number of connections borrowed or waiting, guarded by this.
+	 */
+	private int inUse=0;
+
+	private volatile int maxPerHost = 4;
+	private volatile int idleTimeout = 30000;
+	private boolean shutdown=false;
+
+	ConnectionPool(PeerManager peerManager) {
+		this.peerManager=peerManager;
+	}
+
+	static String key(String host, int port) {
+		return host+":"+port;
+	}
+
+	/**
+	 *
+	 * @return the most sessions kept to each host
+	 */
+	public int getMaxPerHost() {
+		return maxPerHost;
+	}
+
+	/**
+	 * @param maxPerHost the most sessions kept to each host, at least 1
+	 */
+	public void setMaxPerHost(int maxPerHost) {
+		this.maxPerHost=Math.max(1, maxPerHost);
+	}
+
+	/**
+	 *
+	 * @return ms a session may be idle before it is stopped
+	 */
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @param idleTimeout ms a session may be idle before it is stopped
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout=idleTimeout;
+	}
+
+	/**
+	 * Lend a session to a pooled connection: an idle one if there is one, or
+	 * else a new one if the host has fewer than the maximum, or else the first
+	 * one released.
+	 * @param pooled
+	 */
+	void acquire(PooledConnection pooled) {
+		synchronized(this) {
+			if(shutdown) {
+				log.warning("connection pool is shut down, not connecting to "+pooled.getKey());
+				return;
+			}
+			inUse++;
+		}
+		lend(pooled);
+	}
+
+	/**
+	 * Lend a session to a pooled connection that is already counted as in
+	 * use.
+	 * @param pooled
+	 */
+	private void lend(PooledConnection pooled) {
+		Connection lent = null;
+		Connection created = null;
+		synchronized(this) {
+			Host host = hosts.computeIfAbsent(pooled.getKey(), (key)->new Host());
+			for(Connection connection : host.connections) {
+				if(connection.lentTo==null && connection.endpoint!=null && !connection.closing) {
+					lent=connection;
+					break;
+				}
+			}
+			if(lent!=null) {
+				lent.lentTo=pooled;
+				pooled.setConnection(lent);
+			} else if(host.connections.size()<maxPerHost) {
+				created = newConnection(pooled);
+				if(created==null) {
+					inUse--;
+					notifyAll();
+					return;
+				}
+				host.connections.add(created);
+				created.lentTo=pooled;
+				pooled.setConnection(created);
+			} else {
+				host.waiting.add(pooled);
+			}
+		}
+		if(lent!=null) {
+			log.info("reusing session to "+pooled.getKey());
+			pooled.localEmit(PeerManager.peerStarted, lent.endpoint, lent.clientManager);
+		} else if(created!=null) {
+			created.clientManager.start();
+		}
+	}
+
+	/**
+	 * Take back a session, lending it to the next waiting connection if there
+	 * is one.
+	 * @param pooled
+	 * @param close stop the session rather than keep it
+	 */
+	void release(PooledConnection pooled, boolean close) {
+		Connection connection;
+		synchronized(this) {
+			connection = pooled.getConnection();
+			if(connection==null) {
+				// never lent, stop waiting
+				Host host = hosts.get(pooled.getKey());
+				if(host!=null && host.waiting.remove(pooled)) inUse--;
+				notifyAll();
+				return;
+			}
+			if(connection.lentTo!=pooled) return;
+			connection.lentTo=null;
+			inUse--;
+			notifyAll();
+			if(close || shutdown) {
+				stop(connection);
+			} else {
+				connection.idleSince=System.nanoTime();
+			}
+		}
+		if(!close) scheduleEviction(connection, connection.idleSince);
+		lendToWaiting(connection.key);
+	}
+
+	/**
+	 * Stop all sessions, and stop lending them.
+	 */
+	public void shutdown() {
+		List<Connection> all = new ArrayList<>();
+		synchronized(this) {
+			shutdown=true;
+			hosts.values().forEach((host)->{
+				all.addAll(host.connections);
+				inUse-=host.waiting.size();
+				host.waiting.clear();
+			});
+			notifyAll();
+		}
+		for(Connection connection : all) {
+			synchronized(this) {
+				stop(connection);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param clientManager
+	 * @return true if the client manager was made for the pool
+	 */
+	public boolean owns(ClientManager clientManager) {
+		return owned.contains(clientManager);
+	}
+
+	/**
+	 * Wait until no connections are borrowed or waiting to be.
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while(inUse>0) wait();
+	}
+
+	/**
+	 * Make a new session for a pooled connection. Call while synchronized.
+	 * @param pooled
+	 * @return the session, not yet started, or null if the host is unknown
+	 */
+	private Connection newConnection(PooledConnection pooled) {
+		ClientManager clientManager;
+		try {
+			clientManager = peerManager.connect(pooled.getPort(), pooled.getHost());
+		} catch (UnknownHostException e) {
+			log.warning("unknown host: "+pooled.getHost());
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		// a failed session leaves the pool, the next borrower makes a new one
+		clientManager.setReconnectPolicy(new ReconnectPolicy().setMaxAttempts(0));
+		owned.add(clientManager);
+		Connection connection = new Connection(pooled.getKey(), clientManager);
+		clientManager.on(PeerManager.peerStarted, (args)->{
+			started(connection, (Endpoint)args[0]);
+		}).on(PeerManager.peerStopped, (args)->{
+			ended(connection, PeerManager.peerStopped, args);
+		}).on(PeerManager.peerError, (args)->{
+			ended(connection, PeerManager.peerError, args);
+		}).on(ClientManager.connectFailed, (args)->{
+			ended(connection, ClientManager.connectFailed, args);
+		});
+		return connection;
+	}
+
+	/**
+	 * A session has started.
+	 * @param connection
+	 * @param endpoint
+	 */
+	private void started(Connection connection, Endpoint endpoint) {
+		PooledConnection pooled;
+		synchronized(this) {
+			connection.endpoint=endpoint;
+			if(connection.closing) {
+				// released or shut down while connecting
+				connection.clientManager.shutdown();
+				return;
+			}
+			pooled=connection.lentTo;
+			if(pooled==null) connection.idleSince=System.nanoTime();
+		}
+		if(pooled!=null) {
+			pooled.localEmit(PeerManager.peerStarted, endpoint, connection.clientManager);
+		} else {
+			scheduleEviction(connection, connection.idleSince);
+			lendToWaiting(connection.key);
+		}
+	}
+
+	/**
+	 * A session has stopped, or failed. It leaves the pool, and whoever it
+	 * was lent to is told.
+	 * @param connection
+	 * @param eventName {@link PeerManager#peerStopped},
+	 * {@link PeerManager#peerError} or {@link ClientManager#connectFailed}
+	 * @param args the event args from the client manager
+	 */
+	private void ended(Connection connection, String eventName, Object[] args) {
+		PooledConnection pooled;
+		synchronized(this) {
+			Host host = hosts.get(connection.key);
+			if(host!=null) host.connections.remove(connection);
+			pooled=connection.lentTo;
+			connection.lentTo=null;
+			if(pooled!=null) inUse--;
+			// the client manager may reconnect on its own, but not for the pool
+			connection.closing=true;
+			notifyAll();
+		}
+		if(pooled!=null) pooled.localEmit(eventName, args);
+		lendToWaiting(connection.key);
+	}
+
+	/**
+	 * Lend an idle session, or make a new one, for the next waiting connection
+	 * to a host, if there is one.
+	 * @param key host:port
+	 */
+	private void lendToWaiting(String key) {
+		PooledConnection next;
+		synchronized(this) {
+			Host host = hosts.get(key);
+			if(host==null || (next=host.waiting.poll())==null) return;
+		}
+		lend(next);
+	}
+
+	/**
+	 * Stop an idle session after the idle timeout, if it is still idle since
+	 * the same time by then.
+	 * @param connection
+	 * @param idleSince
+	 */
+	private void scheduleEviction(Connection connection, long idleSince) {
+		Utils.getInstance().setTimeout(()->{
+			synchronized(this) {
+				if(connection.lentTo!=null || connection.idleSince!=idleSince
+						|| connection.closing) return;
+				log.info("closing idle session to "+connection.key);
+				stop(connection);
+			}
+		}, idleTimeout);
+	}
+
+	/**
+	 * Take a session out of the pool and stop it, once it has started. Call
+	 * while synchronized.
+	 * @param connection
+	 */
+	private void stop(Connection connection) {
+		Host host = hosts.get(connection.key);
+		if(host!=null) host.connections.remove(connection);
+		boolean wasClosing = connection.closing;
+		connection.closing=true;
+		if(connection.endpoint!=null && !wasClosing) connection.clientManager.shutdown();
+	}
+}
@@ -5,6 +5,7 @@ import pb.managers.endpoint.Endpoint;
 import pb.managers.endpoint.IEndpointHandler;
 import pb.protocols.IProtocolHandler;
 import pb.protocols.Protocol;
+import pb.protocols.keepalive.KeepAliveScheduler;
 import pb.utils.Eventable;
 
 /**
@@ -17,6 +18,21 @@ import pb.utils.Eventable;
  */
 public class Manager extends Eventable implements IProtocolHandler, IEndpointHandler{
 	
+	/**
+	 * Keeps the deadlines of the KeepAlive protocols on this manager's
+	 * endpoints, made when first needed.
+	 */
+	private KeepAliveScheduler keepAliveScheduler;
+	
+	/**
+	 * 
+	 * @return the KeepAlive scheduler shared by this manager's endpoints
+	 */
+	public synchronized KeepAliveScheduler getKeepAliveScheduler() {
+		if(keepAliveScheduler==null) keepAliveScheduler = new KeepAliveScheduler();
+		return keepAliveScheduler;
+	}
+	
 	/**
 	 * Shut this manager down, closing all connections gracefully where possible.
 	 */
@@ -80,22 +96,5 @@ public class Manager extends Eventable implements IProtocolHandler, IEndpointHan
 	public void protocolViolation(Endpoint endpoint,Protocol protocol) {
 		
 	}
-	
-
-	/**
-	 * The endpoint has requested a protocol to start. If the protocol
-	 * is allowed then the manager should tell the endpoint to handle it
-	 * using {@link pb.managers.endpoint.Endpoint#handleProtocol(Protocol)}
-	 * before returning true.
-	 * @param protocol
-	 * @return true if the protocol was started, false if not (not allowed to run)
-	 */
-	@Override
-	public boolean protocolRequested(Endpoint endpoint, Protocol protocol) {
-		return false;
-	}
-
-	
-
 
 }
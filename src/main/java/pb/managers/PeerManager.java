@@ -1,8 +1,8 @@
 package pb.managers;
 
 import java.net.UnknownHostException;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
@@ -11,6 +11,8 @@ import pb.managers.endpoint.Endpoint;
 
 /**
  * The Peer Manager manages both a number of ClientManagers and a ServerManager.
+ * Connections made with {@link #connectPooled(int, String)} share sessions
+ * through a {@link ConnectionPool}.
  * @author aaron
  *
  */
@@ -65,9 +67,15 @@ public class PeerManager extends Manager {
 	
 	/**
 	 * The client managers are for connecting to the server and other peers.
+	 * Client managers are added by whichever thread connects.
 	 */
 	private Set<ClientManager> clientManagers;
 	
+	/**
+	 * Sessions kept for reuse by {@link #connectPooled(int, String)}.
+	 */
+	private final ConnectionPool connectionPool;
+	
 	/**
 	 * The server manager is for accepting connections from other peers.
 	 */
@@ -84,7 +92,8 @@ public class PeerManager extends Manager {
 	 * @param myServerPort
 	 */
 	public PeerManager(int myServerPort) {
-		clientManagers = new HashSet<>();
+		clientManagers = ConcurrentHashMap.newKeySet();
+		connectionPool = new ConnectionPool(this);
 		this.myServerPort=myServerPort;
 	}
 	
@@ -121,6 +130,27 @@ public class PeerManager extends Manager {
 		return clientManager;
 	}
 	
+	/**
+	 * Connect to either a server or another peer, reusing a session to the
+	 * same host and port if one is idle in the pool. Call
+	 * {@link PooledConnection#open()} after adding callbacks to the returned
+	 * connection, and {@link PooledConnection#release()} when done with it.
+	 * @param serverPort the port of the server/peer to connect to
+	 * @param host the hostname of the server/peer to connect to
+	 * @return the pooled connection, not yet open
+	 */
+	public PooledConnection connectPooled(int serverPort,String host) {
+		return new PooledConnection(connectionPool,host,serverPort);
+	}
+	
+	/**
+	 * 
+	 * @return the pool of sessions used by {@link #connectPooled(int, String)}
+	 */
+	public ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+	
 	/**
 	 * Close the server and all remaining connections.
 	 * We will do a graceful shutdown here, to allow any other peers that
@@ -129,9 +159,12 @@ public class PeerManager extends Manager {
 	 */
 	@Override
 	public void shutdown() {
-		serverManager.shutdown();
+		if(serverManager!=null) serverManager.shutdown();
+		// pooled sessions are stopped by the pool, which knows which have started
+		connectionPool.shutdown();
 		clientManagers.forEach((clientManager)->{
-			clientManager.shutdown(); // client manager will send a session stop
+			if(!connectionPool.owns(clientManager))
+				clientManager.shutdown(); // client manager will send a session stop
 		});
 	}
 	
@@ -0,0 +1,171 @@
+package pb.managers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.IEventCallback;
+import pb.utils.Eventable;
+
+/**
+ * A connection borrowed from a {@link ConnectionPool}, see
+ * {@link PeerManager#connectPooled(int, String)}. It emits the same events as
+ * a client manager made by {@link PeerManager#connect(int, String)}:
+ * {@link PeerManager#peerStarted} when the session is ready for use, which
+ * may be straight away if the pool already has a session to the host, and
+ * {@link PeerManager#peerStopped} or {@link PeerManager#peerError} if the
+ * session ends while it is borrowed, or {@link ClientManager#connectFailed}
+ * if no session could be made.
+ * <br/>
+ * Use {@link #onRemote(String, IEventCallback)} rather than
+ * {@link Endpoint#on(String, IEventCallback)} for callbacks on the endpoint,
+ * so that they are removed when the connection goes back to the pool, and
+ * call {@link #release()} instead of shutting the client manager down.
+ *
+ * @see {@link pb.managers.ConnectionPool}
+ * @author aaron
+ *
+ */
+public class PooledConnection extends Eventable {
+
+	/**
+	 * The pool the connection is borrowed from.
+	 */
+	private final ConnectionPool pool;
+
+	private final String host;
+	private final int port;
+
+	/**
+	 * The pool's connection that has been lent, once it has been.
+	 */
+	private volatile ConnectionPool.Connection connection;
+
+	/**
+	 * Event names and callbacks added to the endpoint with
+	 * {@link #onRemote(String, IEventCallback)}, guarded by this.
+	 */
+	private final List<Object[]> remoteCallbacks = new ArrayList<>();
+
+	/**
+	 * Whether the connection has been given back to the pool.
+	 */
+	private boolean released=false;
+
+	PooledConnection(ConnectionPool pool, String host, int port) {
+		this.pool=pool;
+		this.host=host;
+		this.port=port;
+	}
+
+	/**
+	 * Borrow a connection from the pool. Add the callbacks for
+	 * {@link PeerManager#peerStarted} first, it may be emitted before this
+	 * method returns.
+	 */
+	public void open() {
+		pool.acquire(this);
+	}
+
+	/**
+	 * Add a callback for an event on the borrowed endpoint, to be removed when
+	 * the connection is released. Call after {@link PeerManager#peerStarted}.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @return this pooled connection for chaining
+	 */
+	public PooledConnection onRemote(String eventName, IEventCallback callback) {
+		return onRemote(eventName, callback, Policy.Inline);
+	}
+
+	/**
+	 * Add a callback for an event on the borrowed endpoint, to run according
+	 * to the given policy, to be removed when the connection is released.
+	 * Call after {@link PeerManager#peerStarted}.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @param policy where the callback runs
+	 * @return this pooled connection for chaining
+	 */
+	public PooledConnection onRemote(String eventName, IEventCallback callback, Policy policy) {
+		getEndpoint().on(eventName, callback, policy);
+		synchronized(this) {
+			remoteCallbacks.add(new Object[] {eventName, callback});
+		}
+		return this;
+	}
+
+	/**
+	 * Give the connection back to the pool, for the next user of a connection
+	 * to the same host. The session stays up until it has been idle for a
+	 * while.
+	 */
+	public void release() {
+		if(!removeRemoteCallbacks()) return;
+		pool.release(this, false);
+	}
+
+	/**
+	 * Give the connection back to the pool and stop its session, e.g. if it
+	 * may have been left in a bad state.
+	 */
+	public void close() {
+		if(!removeRemoteCallbacks()) return;
+		pool.release(this, true);
+	}
+
+	/**
+	 *
+	 * @return the endpoint of the borrowed connection, or null if it has not
+	 * been lent yet
+	 */
+	public Endpoint getEndpoint() {
+		ConnectionPool.Connection current = connection;
+		return current==null?null:current.endpoint;
+	}
+
+	/**
+	 *
+	 * @return the host:port the connection is to
+	 */
+	public String getKey() {
+		return ConnectionPool.key(host, port);
+	}
+
+	String getHost() {
+		return host;
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	ConnectionPool.Connection getConnection() {
+		return connection;
+	}
+
+	void setConnection(ConnectionPool.Connection connection) {
+		this.connection=connection;
+	}
+
+	/**
+	 * Remove the callbacks added to the endpoint, once.
+	 * @return false if the connection was already released
+	 */
+	private boolean removeRemoteCallbacks() {
+		List<Object[]> added;
+		synchronized(this) {
+			if(released) return false;
+			released=true;
+			added = new ArrayList<>(remoteCallbacks);
+			remoteCallbacks.clear();
+		}
+		Endpoint endpoint = getEndpoint();
+		if(endpoint!=null) {
+			for(Object[] callback : added) {
+				endpoint.off((String)callback[0], (IEventCallback)callback[1]);
+			}
+		}
+		return true;
+	}
+}
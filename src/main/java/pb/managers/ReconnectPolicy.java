@@ -0,0 +1,195 @@
+package pb.managers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How a {@link ClientManager} reconnects after its connection fails. The
+ * delay before each retry grows exponentially, from the initial delay up to
+ * the maximum delay, and the actual delay is chosen at random between zero and
+ * that ("full jitter"), so that clients which lost their connections at the
+ * same time, e.g. because the server restarted, don't all reconnect at the
+ * same time. Retries stop after a maximum number of attempts or a maximum
+ * elapsed time, whichever comes first.
+ * <br/>
+ * A circuit breaker is kept for each host:port, shared by all client
+ * managers. After a number of failed connection attempts in a row the
+ * circuit opens and no connections to the host are attempted until the
+ * open time has passed, client managers wait for it within their maximum
+ * elapsed time; then one attempt is let through, and if it succeeds the
+ * circuit closes again. Every attempt let through must be recorded with
+ * {@link #connected(String)} or {@link #failed(String)}.
+ * <br/>
+ * Setters return the policy, for chaining.
+ *
+ * @see {@link pb.managers.ClientManager#setReconnectPolicy(ReconnectPolicy)}
+ * @author aaron
+ *
+ */
+public class ReconnectPolicy {
+
+	/**
+	 * The circuit breaker state of one host:port.
+	 */
+	private static class CircuitBreaker {
+		private int failures=0;
+		private long openUntil=0;
+		private boolean open=false;
+		private boolean trying=false;
+
+		synchronized boolean allowAttempt() {
+			if(!open) return true;
+			if(System.nanoTime()-openUntil<0 || trying) return false;
+			// half open, let one attempt through
+			trying=true;
+			return true;
+		}
+
+		synchronized long untilAttempt() {
+			if(!open) return 0;
+			return Math.max(0, (openUntil-System.nanoTime())/1000000L);
+		}
+
+		synchronized void success() {
+			failures=0;
+			open=false;
+			trying=false;
+		}
+
+		synchronized void failure(int threshold, long openTime) {
+			failures++;
+			trying=false;
+			if(failures>=threshold) {
+				open=true;
+				openUntil=System.nanoTime()+openTime*1000000L;
+			}
+		}
+	}
+
+	/**
+	 * host:port to its circuit breaker.
+	 */
+	private static final ConcurrentHashMap<String,CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+	private long initialDelay = 250;
+	private long maxDelay = 10000;
+	private long maxElapsed = 30000;
+	private int maxAttempts = 10;
+	private int failureThreshold = 5;
+	private long openTime = 30000;
+
+	/**
+	 * @param initialDelay ms, the largest delay before the first retry
+	 * @return this policy
+	 */
+	public ReconnectPolicy setInitialDelay(long initialDelay) {
+		this.initialDelay=Math.max(1, initialDelay);
+		return this;
+	}
+
+	/**
+	 * @param maxDelay ms, the largest delay before any retry
+	 * @return this policy
+	 */
+	public ReconnectPolicy setMaxDelay(long maxDelay) {
+		this.maxDelay=maxDelay;
+		return this;
+	}
+
+	/**
+	 * @param maxElapsed ms, no retry is started after this long since the
+	 * first attempt, or since the last session that started
+	 * @return this policy
+	 */
+	public ReconnectPolicy setMaxElapsed(long maxElapsed) {
+		this.maxElapsed=maxElapsed;
+		return this;
+	}
+
+	/**
+	 * @param maxAttempts the most retries in a row, 0 to never retry
+	 * @return this policy
+	 */
+	public ReconnectPolicy setMaxAttempts(int maxAttempts) {
+		this.maxAttempts=maxAttempts;
+		return this;
+	}
+
+	/**
+	 * @param failureThreshold failed connection attempts in a row to a host
+	 * that open its circuit
+	 * @param openTime ms the circuit stays open before an attempt is let
+	 * through
+	 * @return this policy
+	 */
+	public ReconnectPolicy setCircuitBreaker(int failureThreshold, long openTime) {
+		this.failureThreshold=failureThreshold;
+		this.openTime=openTime;
+		return this;
+	}
+
+	/**
+	 *
+	 * @return true if any retries may be made
+	 */
+	public boolean allowsRetries() {
+		return maxAttempts>0 && maxElapsed>0;
+	}
+
+	/**
+	 *
+	 * @param attempt the number of retries already made, from 0
+	 * @return ms to wait before the next retry
+	 */
+	public long getDelay(int attempt) {
+		long cap = Math.min(maxDelay, initialDelay<<Math.min(attempt, 30));
+		return ThreadLocalRandom.current().nextLong(cap+1);
+	}
+
+	/**
+	 *
+	 * @param attempt the number of retries already made, from 0
+	 * @param elapsed ms since the first attempt
+	 * @param delay ms before the next retry would start
+	 * @return true if the next retry should be made
+	 */
+	public boolean shouldRetry(int attempt, long elapsed, long delay) {
+		return attempt<maxAttempts && elapsed+delay<=maxElapsed;
+	}
+
+	/**
+	 *
+	 * @param key host:port
+	 * @return false if the host's circuit is open and no attempt should be
+	 * made
+	 */
+	public boolean allowAttempt(String key) {
+		return breakers.computeIfAbsent(key, (k)->new CircuitBreaker()).allowAttempt();
+	}
+
+	/**
+	 *
+	 * @param key host:port
+	 * @return ms until the host's circuit lets an attempt through, 0 if it
+	 * is not open or the open time has passed
+	 */
+	public long getOpenDelay(String key) {
+		return breakers.computeIfAbsent(key, (k)->new CircuitBreaker()).untilAttempt();
+	}
+
+	/**
+	 * Record that a connection to the host was made.
+	 * @param key host:port
+	 */
+	public void connected(String key) {
+		breakers.computeIfAbsent(key, (k)->new CircuitBreaker()).success();
+	}
+
+	/**
+	 * Record that a connection to the host could not be made.
+	 * @param key host:port
+	 */
+	public void failed(String key) {
+		breakers.computeIfAbsent(key, (k)->new CircuitBreaker()).failure(failureThreshold, openTime);
+	}
+}
@@ -1,25 +1,55 @@
 package pb.managers;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
-import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
-import pb.protocols.event.EventProtocol;
+import pb.protocols.ProtocolRegistry;
 import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
 import pb.protocols.session.SessionProtocol;
+import pb.utils.Metrics;
+import pb.utils.MetricsExporter;
+import pb.utils.Utils;
 
 
 /**
  * Manages all of the clients for the server and the server's state.
+ * <br/>
+ * Clients that ask for it are given a resume token for their session. If
+ * the client's connection fails, the session is suspended rather than ended
+ * for {@link #getResumeWindow()} ms, and {@link #sessionError} is only
+ * emitted once that has passed. If the client reconnects with the token in
+ * time, {@link #sessionResumed} is emitted so that the state kept for the
+ * old endpoint can be carried over to the new one.
+ * <br/>
+ * A drain shutdown, see {@link #drainShutdown()}, stops accepting clients and
+ * asks the sessions to stop, at most {@link #getDrainConcurrency()} at a
+ * time, starting the next as soon as one has closed, and emits
+ * {@link #drainProgress} as they close.
+ * <br/>
+ * If a metrics port is set, see {@link #setMetricsPort(int)}, the server
+ * serves {@link Metrics} on it for scraping while it runs.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.IOThread}
@@ -63,6 +93,18 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String sessionError="SESSION_ERROR";
 	
+	/**
+	 * Emitted when a client resumes a suspended session on a new endpoint,
+	 * after {@link #sessionStarted} for the new endpoint. No
+	 * {@link #sessionError} is emitted for the old endpoint, unless there
+	 * are no callbacks for this event.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint} the new endpoint</li>
+	 * <li>{@code args[1] instanceof Endpoint} the old endpoint</li>
+	 * </ul>
+	 */
+	public static final String sessionResumed="SESSION_RESUMED";
+	
 	/**
 	 * Emitted when a session should shutdown. Message is reason
 	 * for shutting down.
@@ -90,6 +132,51 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String vaderShutdownServer="SERVER_VADER_SHUTDOWN";
 	
+	/**
+	 * Emitted when a session should shutdown, and will ask sessions to
+	 * stop a number at a time. Message is reason for shutting down.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String drainShutdownServer="SERVER_DRAIN_SHUTDOWN";
+	
+	/**
+	 * Emitted while the server drains, when it starts and then each time
+	 * another percent of the endpoints that were live when it started have
+	 * closed, the last time with none left. Emitted on the thread that closed
+	 * the endpoint.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Integer} endpoints still live</li>
+	 * <li>{@code args[1] instanceof Integer} endpoints live when draining
+	 * started</li>
+	 * </ul>
+	 */
+	public static final String drainProgress="SERVER_DRAIN_PROGRESS";
+	
+	/**
+	 * Emitted by an admin client to ask for a snapshot of the server, which
+	 * is sent back with {@link #statsReply}. Message is the password.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String statsRequest="SERVER_STATS";
+	
+	/**
+	 * Emitted to an admin client with a snapshot of the server, see
+	 * {@link #statsSnapshot()}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String statsReply="SERVER_STATS_REPLY";
+	
+	/**
+	 * The most endpoints, and event names, listed in a stats snapshot.
+	 */
+	private static final int statsTop = 20;
+	
 	
 	/**
 	 * The io thread accepts connections and informs the server manager
@@ -120,11 +207,99 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private volatile boolean vaderShutdown=false;
 	
+	/**
+	 * Should we ask endpoints to stop a number at a time.
+	 */
+	private volatile boolean drainShutdown=false;
+	
+	/**
+	 * The most sessions being asked to stop at the same time while draining.
+	 */
+	private volatile int drainConcurrency = 1000;
+	
+	/**
+	 * Endpoints asked to stop by the drain that have not closed yet, each
+	 * holding one of the {@link #drainPermits}.
+	 */
+	private final Set<Endpoint> draining = ConcurrentHashMap.newKeySet();
+	
+	private final Semaphore drainPermits = new Semaphore(0);
+	
+	/**
+	 * Endpoints live when draining started, 0 if it hasn't.
+	 */
+	private volatile int drainTotal=0;
+	
+	/**
+	 * Percent of the drain last reported by {@link #drainProgress}.
+	 */
+	private final AtomicInteger drainReported = new AtomicInteger(-1);
+	
+	/**
+	 * Port to serve metrics on, or -1 to not serve them.
+	 */
+	private volatile int metricsPort=-1;
+	
+	/**
+	 * Clients accepted, made when the server starts.
+	 */
+	private volatile Metrics.Counter accepted;
+	
 	/**
 	 * Password if given
 	 */
 	private String password=null;
 	
+	/**
+	 * A session that the client may resume.
+	 */
+	private static class Resumable {
+		final String token;
+		
+		/**
+		 * The endpoint the session is on, or was on while suspended.
+		 */
+		Endpoint endpoint;
+		
+		/**
+		 * Whether the endpoint has failed and the session is waiting to be
+		 * resumed.
+		 */
+		boolean suspended=false;
+		
+		Resumable(String token, Endpoint endpoint) {
+			this.token=token;
+			this.endpoint=endpoint;
+		}
+	}
+	
+	/**
+	 * Resume token to its session, guarded by itself.
+	 */
+	private final Map<String,Resumable> resumable = new HashMap<>();
+	
+	/**
+	 * Endpoint to its resumable session, including endpoints whose session
+	 * has been resumed on another endpoint. Guarded by {@link #resumable}.
+	 */
+	private final Map<Endpoint,Resumable> sessionOf = new HashMap<>();
+	
+	/**
+	 * New endpoint to the old endpoint of the session it resumes, until the
+	 * session has started. Guarded by {@link #resumable}.
+	 */
+	private final Map<Endpoint,Endpoint> resumedFrom = new HashMap<>();
+	
+	/**
+	 * How long (ms) a session is kept for its client to resume.
+	 */
+	private volatile int resumeWindow = 30000;
+	
+	/**
+	 * Makes resume tokens.
+	 */
+	private static final SecureRandom random = new SecureRandom();
+	
 	/**
 	 * Initialise the ServerManager with a port number for the io thread to listen on.
 	 * @param port to use when creating the io thread
@@ -174,6 +349,62 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		ioThread.shutDown();
 	}
 	
+	public void drainShutdown() { // one row at a time, please
+		log.warning("server drain shutdown called");
+		drainShutdown=true; // this will send session stops a number at a time
+		ioThread.shutDown();
+	}
+	
+	/**
+	 * 
+	 * @return the most sessions asked to stop at the same time while draining
+	 */
+	public int getDrainConcurrency() {
+		return drainConcurrency;
+	}
+	
+	/**
+	 * @param drainConcurrency the most sessions asked to stop at the same
+	 * time while draining, at least 1
+	 */
+	public void setDrainConcurrency(int drainConcurrency) {
+		this.drainConcurrency=Math.max(1, drainConcurrency);
+	}
+	
+	/**
+	 * 
+	 * @return how long (ms) a session is kept for its client to resume
+	 */
+	public int getResumeWindow() {
+		return resumeWindow;
+	}
+	
+	/**
+	 * Set how long a session is kept for its client to resume, before the
+	 * server is started.
+	 * @param resumeWindow ms, 0 to not resume sessions
+	 */
+	public void setResumeWindow(int resumeWindow) {
+		this.resumeWindow=resumeWindow;
+	}
+	
+	/**
+	 * 
+	 * @return the port metrics are served on, or -1 if they are not
+	 */
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+	
+	/**
+	 * Serve metrics for scraping while the server runs, set before the
+	 * server is started.
+	 * @param metricsPort the port to serve them on, or -1 to not serve them
+	 */
+	public void setMetricsPort(int metricsPort) {
+		this.metricsPort=metricsPort;
+	}
+	
 	/**
 	 * Convenience wrapper
 	 * @return the number of live endpoints
@@ -187,6 +418,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void run() {
 		log.info("started");
+		accepted = Metrics.getInstance().counter("server_accepted_total","port",""+port);
 		// when the IO thread terminates, and all endpoints have terminated,
 		// then the server will terminate
 		try {
@@ -195,6 +427,15 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			log.severe("could not start the io thread");
 			return;
 		}
+		Metrics.getInstance().gauge("server_live_endpoints",this::numLiveEndpoints,"port",""+port);
+		MetricsExporter exporter=null;
+		if(metricsPort>=0) {
+			try {
+				exporter = new MetricsExporter(metricsPort);
+			} catch (IOException e) {
+				log.warning("could not serve metrics on port "+metricsPort+": "+e.getMessage());
+			}
+		}
 		
 		try {
 			// just wait for this thread to terminate
@@ -218,7 +459,9 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		
 		// if we want to tell clients to end session
 		// it is indeed possible that both may be set true
-		if(forceShutdown && !vaderShutdown) {
+		if(drainShutdown && !vaderShutdown) {
+			drain(currentEndpoints);
+		} else if(forceShutdown && !vaderShutdown) {
 			// let's send a stop session to existing clients
 			currentEndpoints.forEach((endpoint)->{
 				SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol("SessionProtocol");
@@ -236,29 +479,168 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			});
 		}
 		
-		// let's wait for the remaining clients if we can
-		while(numLiveEndpoints()>0 && !vaderShutdown) {
-			log.warning("still waiting for "+numLiveEndpoints()+" to finish");
-			try {
-				Thread.sleep(1000); // just wait a little longer
-			} catch (InterruptedException e) {
-				if(numLiveEndpoints()>0) {
-					log.severe("terminating server with "+numLiveEndpoints()+
+		// let's wait for the remaining clients if we can, each endpoint
+		// that closes wakes us up
+		Endpoint[] missed=null;
+		synchronized(liveEndpoints) {
+			long lastWarned=0;
+			while(!liveEndpoints.isEmpty()) {
+				if(vaderShutdown) {
+					// maybe we missed some earlier
+					missed = liveEndpoints.toArray(new Endpoint[0]);
+					break;
+				}
+				if(System.currentTimeMillis()-lastWarned>=1000) {
+					log.warning("still waiting for "+liveEndpoints.size()+" to finish");
+					lastWarned=System.currentTimeMillis();
+				}
+				try {
+					liveEndpoints.wait(1000); // just wait a little longer
+				} catch (InterruptedException e) {
+					log.severe("terminating server with "+liveEndpoints.size()+
 							" still unfinished");
+					break;
 				}
-				break;
 			}
-			if(vaderShutdown) {
-				// maybe we missed some earlier
-				synchronized(liveEndpoints) {
-					currentEndpoints = new HashSet<>(liveEndpoints);
+		}
+		if(missed!=null) {
+			for(Endpoint endpoint : missed) endpoint.close();
+		}
+		// suspended sessions can't be resumed any more, and their resume
+		// window timers must not end them again
+		List<Endpoint> suspended = new ArrayList<>();
+		synchronized(resumable) {
+			resumable.values().forEach((session)->{
+				if(session.suspended) suspended.add(session.endpoint);
+				session.suspended=false;
+			});
+			resumable.clear();
+			sessionOf.clear();
+		}
+		suspended.forEach((endpoint)->localEmit(sessionError,endpoint));
+		Metrics.getInstance().remove("server_live_endpoints","port",""+port);
+		if(exporter!=null) exporter.stop();
+		log.info("terminated");
+	}
+	
+	/**
+	 * A snapshot of the server, one item per line, each line a kind followed
+	 * by fields separated by spaces:
+	 * <ul>
+	 * <li><code>time ms</code> when the snapshot was taken, since the epoch</li>
+	 * <li><code>endpoints count</code> the live endpoints</li>
+	 * <li><code>counter key value</code> for each counter in {@link Metrics},
+	 * but only the busiest events received</li>
+	 * <li><code>gauge key value</code> for each gauge in {@link Metrics}</li>
+	 * <li><code>endpoint id out=chars in=chars rtt=ms writable=bool</code>
+	 * for the endpoints with the most queued to be written, see
+	 * {@link Endpoint#getPendingOutbound()}; rtt is -1 if not measured</li>
+	 * </ul>
+	 * @return the snapshot
+	 */
+	public String statsSnapshot() {
+		Endpoint[] endpoints;
+		synchronized(liveEndpoints) {
+			endpoints = liveEndpoints.toArray(new Endpoint[0]);
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("time ").append(System.currentTimeMillis()).append('\n');
+		sb.append("endpoints ").append(endpoints.length).append('\n');
+		List<long[]> events = new ArrayList<>();
+		List<Metrics.Metric> metrics = Metrics.getInstance().getMetrics();
+		for(int i=0;i<metrics.size();i++) {
+			Metrics.Metric metric = metrics.get(i);
+			if(metric instanceof Metrics.Counter) {
+				long value = ((Metrics.Counter)metric).get();
+				if(metric.getName().equals("events_received_total")) {
+					events.add(new long[] {value, i});
+				} else {
+					sb.append("counter ").append(metric.getKey()).append(' ').append(value).append('\n');
 				}
-				currentEndpoints.forEach((endpoint)->{
-						endpoint.close();
-				});
+			} else if(metric instanceof Metrics.Gauge) {
+				sb.append("gauge ").append(metric.getKey()).append(' ')
+					.append(((Metrics.Gauge)metric).get()).append('\n');
 			}
 		}
-		log.info("terminated");
+		// values are read once, they keep changing while we sort
+		events.sort(Comparator.comparingLong((long[] event)->event[0]).reversed());
+		for(int i=0;i<events.size() && i<statsTop;i++) {
+			sb.append("counter ").append(metrics.get((int)events.get(i)[1]).getKey())
+				.append(' ').append(events.get(i)[0]).append('\n');
+		}
+		long[][] pending = new long[endpoints.length][];
+		for(int i=0;i<endpoints.length;i++) pending[i] = new long[] {endpoints[i].getPendingOutbound(), i};
+		Arrays.sort(pending, Comparator.comparingLong((long[] endpoint)->endpoint[0]).reversed());
+		for(int i=0;i<pending.length && i<statsTop;i++) {
+			Endpoint endpoint = endpoints[(int)pending[i][1]];
+			Protocol keepAlive = endpoint.getProtocol(KeepAliveProtocol.protocolName);
+			long rtt = keepAlive instanceof KeepAliveProtocol?
+					Math.round(((KeepAliveProtocol)keepAlive).getSmoothedRtt()):-1;
+			sb.append("endpoint ").append(endpoint.getOtherEndpointId().replace(' ', '_'))
+				.append(" out=").append(pending[i][0])
+				.append(" in=").append(endpoint.getPendingInbound())
+				.append(" rtt=").append(rtt)
+				.append(" writable=").append(endpoint.isWritable()).append('\n');
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Ask the sessions to stop, at most {@link #drainConcurrency} at a time,
+	 * asking the next as soon as one of them has closed. Sessions that start
+	 * after this are asked to stop when they start.
+	 * @param endpoints the endpoints live when draining started
+	 */
+	private void drain(Collection<Endpoint> endpoints) {
+		int total = endpoints.size();
+		log.warning("draining "+total+" sessions, "+drainConcurrency+" at a time");
+		drainTotal=total;
+		reportDrain(total);
+		drainPermits.release(drainConcurrency);
+		for(Endpoint endpoint : endpoints) {
+			try {
+				while(!drainPermits.tryAcquire(1000, TimeUnit.MILLISECONDS)) {
+					if(vaderShutdown) return; // the rest are closed straight away
+				}
+			} catch (InterruptedException e) {
+				log.severe("drain interrupted, "+numLiveEndpoints()+" sessions not asked to stop");
+				Thread.currentThread().interrupt();
+				return;
+			}
+			draining.add(endpoint);
+			boolean live;
+			synchronized(liveEndpoints) {
+				live=liveEndpoints.contains(endpoint);
+			}
+			if(!live) {
+				// closed before it was added, so nobody else gives its permit back
+				if(draining.remove(endpoint)) drainPermits.release();
+				continue;
+			}
+			SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol(SessionProtocol.protocolName);
+			if(sessionProtocol!=null)
+				sessionProtocol.stopSession();
+		}
+	}
+	
+	/**
+	 * Emit {@link #drainProgress} if another percent of the drain has been
+	 * done since it was last emitted.
+	 * @param remaining endpoints still live
+	 */
+	private void reportDrain(int remaining) {
+		int total = drainTotal;
+		int percent = total==0?100:Math.max(0, (total-remaining)*100/total);
+		if(remaining==0) percent=100;
+		int reported = drainReported.get();
+		while(percent>reported) {
+			if(drainReported.compareAndSet(reported, percent)) {
+				log.info("drained "+percent+"%, "+remaining+" endpoints left");
+				localEmit(drainProgress, remaining, total);
+				return;
+			}
+			reported = drainReported.get();
+		}
 	}
 	
 	/**
@@ -268,6 +650,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @param clientSocket the socket connection for the client.
 	 */
 	public void acceptClient(Socket clientSocket) {
+		accepted.increment();
 		Endpoint endpoint = new Endpoint(clientSocket,this);
 		endpoint.start();
 	}
@@ -275,7 +658,8 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	/**
 	 * Called by a client endpoint to signal that it is now ready for
 	 * use, the server can send data and it may start receiving messages
-	 * from the client, etc. The server will now start the KeepAlive protocol
+	 * from the client, etc. The server will now handle every registered
+	 * protocol and start the KeepAlive protocol
 	 * so as to detect clients that are dead. The server will wait for the
 	 * client to start the session protocol, or else terminate the connection
 	 * if it does not stay alive.
@@ -314,17 +698,25 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 				} else {
 					vaderShutdown();
 				}
-			});
+			}).on(drainShutdownServer, (args)->{
+				String msg = (String) args[0];
+				if(!msg.equals(password)) {
+					log.warning("incorrect password given by client: "+endpoint.getOtherEndpointId());
+				} else {
+					drainShutdown();
+				}
+			}).on(statsRequest, (args)->{
+				String msg = (String) args[0];
+				if(!msg.equals(password)) {
+					log.warning("incorrect password given by client: "+endpoint.getOtherEndpointId());
+				} else {
+					endpoint.emit(statsReply, statsSnapshot());
+				}
+			}, Policy.Executor); // a snapshot of many endpoints takes a while
 		}
 		
-		KeepAliveProtocol keepAliveProtocol = new KeepAliveProtocol(endpoint,this);
-		try {
-			// we need to add it to the endpoint before starting it
-			endpoint.handleProtocol(keepAliveProtocol);
-			keepAliveProtocol.startAsServer();
-		} catch (ProtocolAlreadyRunning e) {
-			// hmmm... already requested by the client
-		}
+		// every protocol is handled from the start, the KeepAlive protocol starts now
+		ProtocolRegistry.install(endpoint,this,true);
 		SessionProtocol sessionProtocol = new SessionProtocol(endpoint,this);
 		try {
 			endpoint.handleProtocol(sessionProtocol);
@@ -342,9 +734,14 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	@Override
 	public void endpointClosed(Endpoint endpoint) {
+		int remaining;
 		synchronized(liveEndpoints) {
 			liveEndpoints.remove(endpoint);
+			remaining=liveEndpoints.size();
+			liveEndpoints.notifyAll();
 		}
+		if(draining.remove(endpoint)) drainPermits.release();
+		if(drainTotal>0) reportDrain(remaining);
 	}
 
 	/**
@@ -356,7 +753,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public void sessionStarted(Endpoint endpoint) {
 		log.info("session has started with client: "+endpoint.getOtherEndpointId());
 		
-		if(forceShutdown) {
+		if(forceShutdown || drainShutdown) {
 			// ask the client to stop now
 			SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol("SessionProtocol");
 			if(sessionProtocol!=null)
@@ -364,18 +761,117 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		}
 		
 		// now start the event protocol
-		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
-		try {
-			endpoint.handleProtocol(eventProtocol);
-			eventProtocol.startAsServer();
-		} catch (ProtocolAlreadyRunning e) {
-			// hmmm... already requested by the client
-		}
+		ProtocolRegistry.start(endpoint,ProtocolRegistry.Stage.Session,true);
 		
 		// the event protocol has started but still no events
 		// could have been received at this point
 		localEmit(sessionStarted,endpoint);
 		
+		Endpoint old;
+		synchronized(resumable) {
+			old = resumedFrom.remove(endpoint);
+		}
+		if(old!=null) {
+			log.info("session resumed by client: "+endpoint.getOtherEndpointId());
+			if(!localEmit(sessionResumed,endpoint,old)) {
+				// nothing carries the old session over, so it has ended
+				localEmit(sessionError,old);
+			}
+		}
+	}
+	
+	/**
+	 * The client has asked to start a session. If it gives the token of a
+	 * session it can resume then the session moves to the new endpoint,
+	 * closing the old one if it hasn't failed yet, otherwise a new token is
+	 * made if the client asked for one.
+	 * @param endpoint
+	 * @param resume the token the client gave, empty to ask for one, or null
+	 * @return the session's resume token, or null if it is not resumable
+	 */
+	@Override
+	public String sessionToken(Endpoint endpoint, String resume) {
+		if(resume==null || resumeWindow<=0) return null;
+		Endpoint old=null;
+		boolean wasSuspended=false;
+		String token;
+		synchronized(resumable) {
+			Resumable session = resume.isEmpty()?null:resumable.get(resume);
+			if(session!=null) {
+				token=resume;
+				old=session.endpoint;
+				wasSuspended=session.suspended;
+				session.endpoint=endpoint;
+				session.suspended=false;
+				resumedFrom.put(endpoint, old);
+			} else {
+				token=new BigInteger(128,random).toString(36);
+				session = new Resumable(token,endpoint);
+				resumable.put(token, session);
+			}
+			sessionOf.put(endpoint, session);
+		}
+		if(old!=null) {
+			final Endpoint superseded = old;
+			if(!wasSuspended) {
+				// the client has given up on the old connection before we noticed
+				Utils.getInstance().execute(superseded::close);
+			}
+			// the old endpoint may still report its failure for a while
+			Utils.getInstance().setTimeout(()->{
+				synchronized(resumable) {
+					sessionOf.remove(superseded);
+				}
+			}, resumeWindow);
+		} else if(!resume.isEmpty()) {
+			log.info("client gave an unknown resume token, starting a new session");
+		}
+		return token;
+	}
+	
+	/**
+	 * The endpoint has failed. If its session is resumable then suspend it,
+	 * and end it if it hasn't been resumed within the resume window.
+	 * Otherwise the session has ended in error.
+	 * @param endpoint
+	 */
+	private void sessionLost(Endpoint endpoint) {
+		synchronized(resumable) {
+			Resumable session = sessionOf.get(endpoint);
+			if(session!=null) {
+				// already suspended, or resumed elsewhere
+				if(session.suspended || session.endpoint!=endpoint) return;
+				session.suspended=true;
+				Utils.getInstance().setTimeout(()->{
+					synchronized(resumable) {
+						if(!session.suspended || session.endpoint!=endpoint) return;
+						resumable.remove(session.token);
+						sessionOf.remove(endpoint);
+					}
+					log.info("session was not resumed: "+endpoint.getOtherEndpointId());
+					localEmit(sessionError,endpoint);
+				}, resumeWindow);
+				log.info("session suspended for "+resumeWindow+" ms: "+endpoint.getOtherEndpointId());
+				return;
+			}
+		}
+		localEmit(sessionError,endpoint);
+	}
+	
+	/**
+	 * The session on the endpoint has ended and can't be resumed.
+	 * @param endpoint
+	 * @return false if the session was resumed elsewhere, so has not ended
+	 */
+	private boolean sessionEnded(Endpoint endpoint) {
+		synchronized(resumable) {
+			Resumable session = sessionOf.get(endpoint);
+			if(session==null) return true;
+			if(session.endpoint!=endpoint) return false;
+			resumable.remove(session.token);
+			sessionOf.remove(endpoint);
+			return true;
+		}
 	}
 
 	/**
@@ -389,35 +885,12 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with client: "+endpoint.getOtherEndpointId());
 		
-		localEmit(sessionStopped,endpoint);
+		if(sessionEnded(endpoint)) localEmit(sessionStopped,endpoint);
 		
 		// we can now signal the client endpoint to close and forget this client
 		endpoint.close(); // will stop all remaining protocols
 	}
 	
-	/**
-	 * The endpoint has requested a protocol to start. If the protocol
-	 * is allowed then the manager should tell the endpoint to handle it
-	 * using {@link pb.managers.endpoint.Endpoint#handleProtocol(Protocol)}
-	 * before returning true.
-	 * @param protocol
-	 * @return true if the protocol was started, false if not (not allowed to run)
-	 */
-	@Override
-	public boolean protocolRequested(Endpoint endpoint, Protocol protocol) {
-		// the only protocols in this system are this kind...
-		try {
-			((IRequestReplyProtocol)protocol).startAsServer();
-			endpoint.handleProtocol(protocol);
-			return true;
-		} catch (ProtocolAlreadyRunning e) {
-			// even more weird...
-			return true;
-		}
-		
-	}
-
-	
 	/*
 	 * Everything below here is handling error conditions that could
 	 * arise with the client connection. Typically on error we terminate
@@ -434,7 +907,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void protocolViolation(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" violated the protocol "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
+		if(sessionEnded(endpoint)) localEmit(sessionError,endpoint);
 		endpoint.close();
 	}
 	
@@ -447,7 +920,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
 		log.severe("client disconnected abruptly "+endpoint.getOtherEndpointId());
-		localEmit(sessionError,endpoint);
+		sessionLost(endpoint);
 		endpoint.close();
 	}
 	
@@ -459,7 +932,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointSentInvalidMessage(Endpoint endpoint) {
 		log.severe("client sent an invalid message "+endpoint.getOtherEndpointId());
-		localEmit(sessionError,endpoint);
+		if(sessionEnded(endpoint)) localEmit(sessionError,endpoint);
 		endpoint.close();
 	}
 
@@ -472,7 +945,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointTimedOut(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" has timed out on protocol "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
+		sessionLost(endpoint);
 		endpoint.close();
 	}
 
@@ -1,36 +1,63 @@
 package pb.managers.endpoint;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import pb.utils.Eventable;
 import pb.utils.Utils;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
+import pb.protocols.MessageDecoder;
 import pb.protocols.Protocol;
-import pb.protocols.event.EventProtocol;
-import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.ICallback;
 import pb.protocols.IRequestReplyProtocol;
-import pb.protocols.keepalive.IKeepAliveProtocolHandler;
-import pb.protocols.keepalive.KeepAliveProtocol;
-import pb.protocols.session.ISessionProtocolHandler;
-import pb.protocols.session.SessionProtocol;
 
 /**
  * The endpoint is a thread that blocking reads incoming messages (on a socket)
  * and sends them to the appropriate protocol for processing; thus a
- * thread-per-connection model is being used. It also provides a synchronized
- * method to send data to the socket which will be sent to the other endpoint.
+ * thread-per-connection model is being used. Outgoing messages are encoded by
+ * the sending thread and placed on an outbound queue, which a second writer
+ * thread drains to the socket, so senders never block on the network.
+ * Messages are sent on one of three streams, control, interactive and bulk,
+ * see {@link Message.Priority}. Each stream keeps its messages in order, and
+ * the writer thread interleaves the streams a frame at a time: control
+ * messages go first, and bulk frames get one turn in every
+ * {@link #interactiveTurns}+1 so that they are never starved. Messages too
+ * large to write in one go are written in fragments, see {@link Fragments},
+ * so a large message on one stream does not hold up the others.
  * Any number of protocols can be handled by the endpoint, but there can be only
- * one instance of each protocol running at a time.
+ * one instance of each protocol running at a time. The manager hands the
+ * endpoint all of its protocols when it is ready, see
+ * {@link pb.protocols.ProtocolRegistry}; messages for a protocol that is not
+ * being handled are dropped.
+ * <br/>
+ * Both directions are bounded by high and low watermarks, counted in
+ * characters of encoded messages. When more than the outbound high watermark
+ * is queued to be written the endpoint emits {@link #unwritable}, and when the
+ * writer thread has brought it down to the low watermark it emits
+ * {@link #writable}; senders are expected to hold back in between, as the
+ * event protocol does. Inbound, event data handed to callbacks that run on
+ * other threads, see {@link Eventable.Policy}, is counted until the callbacks
+ * have run, and when more than the inbound high watermark is waiting the
+ * endpoint stops reading the socket until it is down to the low watermark,
+ * so that TCP holds back the other side rather than this side's heap
+ * filling up. Past the outbound limit, a hard cap well above the high
+ * watermark, the other side is taken to have stopped keeping up: further
+ * messages are refused and the endpoint is disconnected, see
+ * {@link #disconnectOverloaded()}.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.protocols.session.SessionProtocol}
@@ -41,6 +68,27 @@ import pb.protocols.session.SessionProtocol;
 public class Endpoint extends Eventable {
 	private static Logger log = Logger.getLogger(Endpoint.class.getName());
 	
+	/**
+	 * Emitted locally when more than the outbound high watermark is queued
+	 * to be written, senders should hold back until {@link #writable}. Emitted
+	 * on the sending thread.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Long} characters queued</li>
+	 * </ul>
+	 */
+	public static final String unwritable = "UNWRITABLE";
+	
+	/**
+	 * Emitted locally when the writer thread has brought what is queued to be
+	 * written down to the outbound low watermark, after {@link #unwritable}.
+	 * Emitted on the writer thread, so callbacks should not wait on the
+	 * network.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Long} characters queued</li>
+	 * </ul>
+	 */
+	public static final String writable = "WRITABLE";
+	
 	/**
 	 * The socket this endpoint is wrapped around.
 	 */
@@ -81,6 +129,144 @@ public class Endpoint extends Eventable {
 	 */
 	private volatile boolean stopped=true; // the use of send will return false always
 	
+	/**
+	 * An encoded message waiting to be written to the socket.
+	 */
+	private static class Queued {
+		final String encoded;
+		final int stream;
+		final boolean barrier;
+		
+		Queued(String encoded, Message.Priority priority, boolean barrier) {
+			this.encoded=encoded;
+			this.stream=priority.ordinal();
+			this.barrier=barrier;
+		}
+	}
+	
+	/**
+	 * Messages of one stream waiting to be written, only used by the writer
+	 * thread.
+	 */
+	private static class Stream {
+		final ArrayDeque<Queued> queue = new ArrayDeque<>();
+		
+		/**
+		 * The message of this stream being written in fragments, if any.
+		 */
+		Fragments.Outgoing large;
+		
+		boolean isEmpty() {
+			return large==null && queue.isEmpty();
+		}
+	}
+	
+	/**
+	 * Encoded messages waiting to be handed to the writer thread's streams,
+	 * in order.
+	 */
+	private final LinkedBlockingQueue<Queued> outbound;
+	
+	/**
+	 * Placed on the outbound queue to tell the writer thread to finish,
+	 * compared by identity.
+	 */
+	private static final Queued endOfOutbound = new Queued("",Message.Priority.Control,false);
+	
+	/**
+	 * How many frames the interactive stream may write in a row while the
+	 * bulk stream is waiting.
+	 */
+	private static final int interactiveTurns = 4;
+	
+	/**
+	 * Id of the next message to be fragmented, only used by the writer thread.
+	 */
+	private int fragmentId=0;
+	
+	/**
+	 * Reassembles fragmented messages, only used by the endpoint thread.
+	 */
+	private final Fragments.Incoming fragments = new Fragments.Incoming();
+	
+	/**
+	 * The thread that writes the outbound queue to the socket.
+	 */
+	private Thread writer;
+	
+	/**
+	 * The type of the writer threads, so they can be told apart.
+	 */
+	private static class WriterThread extends Thread {
+		WriterThread(Runnable runnable) {
+			super(runnable,"EndpointWriter");
+		}
+	}
+	
+	/**
+	 * Set by the first call to {@link #close()}.
+	 */
+	private final AtomicBoolean closing = new AtomicBoolean();
+	
+	/**
+	 * Maximum time (ms) to wait on close for queued messages to be written.
+	 */
+	private int drainTimeout = 5000;
+	
+	/**
+	 * Time (ms since the epoch) that a frame was last read from the socket,
+	 * a message or a fragment of one, of any protocol.
+	 */
+	private volatile long timeLastReceived;
+	
+	/**
+	 * Time (ms since the epoch) that a frame was last written to the socket.
+	 */
+	private volatile long timeLastSent;
+	
+	/**
+	 * Characters of encoded messages queued but not yet written.
+	 */
+	private final AtomicLong outboundPending = new AtomicLong();
+	
+	/**
+	 * Whether the outbound queue is below its high watermark, or has come
+	 * back down to its low watermark since. Changed while synchronized on
+	 * {@link #outboundLock}, which is notified when it becomes true.
+	 */
+	private volatile boolean canWrite=true;
+	
+	private final Object outboundLock = new Object();
+	private volatile long outboundHighWatermark = 4*1024*1024;
+	private volatile long outboundLowWatermark = 1024*1024;
+	private volatile long outboundLimit = 16*1024*1024;
+	
+	/**
+	 * Set once the endpoint has been disconnected for not keeping up.
+	 */
+	private final AtomicBoolean overloaded = new AtomicBoolean();
+	
+	/**
+	 * Characters of event data handed to callbacks on other threads, that
+	 * have not run yet.
+	 */
+	private final AtomicLong inboundPending = new AtomicLong();
+	
+	/**
+	 * Whether the endpoint thread has stopped reading until the callbacks
+	 * catch up. Notified on {@link #inboundLock}.
+	 */
+	private volatile boolean readPaused=false;
+	
+	private final Object inboundLock = new Object();
+	private volatile long inboundHighWatermark = 4*1024*1024;
+	private volatile long inboundLowWatermark = 1024*1024;
+	
+	/**
+	 * Decodes the messages read by this endpoint, reused for every message.
+	 */
+	private final MessageDecoder decoder = new MessageDecoder();
+	
 	/**
 	 * Initialise the endpoint with a socket and a manager.
 	 * @param socket
@@ -91,28 +277,191 @@ public class Endpoint extends Eventable {
 		this.manager = manager;
 		protocols = new HashMap<>();
 		outstandingIds = new HashSet<>();
+		outbound = new LinkedBlockingQueue<>();
 		setName("Endpoint"); // name the thread
 	}
 	
 	/**
-	 * Send a Message on the socket for this endpoint. This is synchronized
-	 * to avoid multiple concurrent messages overwriting each other on the socket.
+	 * Send a Message on the socket for this endpoint. The message is encoded
+	 * by the calling thread and queued; the writer thread writes queued messages
+	 * in order, so concurrent messages do not overwrite each other on the socket.
 	 * @param msg
-	 * @return true if the message was sent, false otherwise
+	 * @return true if the message was queued for sending, false otherwise
+	 */
+	public boolean send(Message msg) {
+		long start = System.nanoTime();
+		String encoded = msg.toJsonString();
+		ProtocolMetrics.of(msg.getProtocolName()).encodeTime.recordMicrosSince(start);
+		return sendEncoded(msg,encoded);
+	}
+	
+	/**
+	 * Send a message that has already been encoded, e.g. when the same message
+	 * is being sent to many endpoints and the encoding is shared between them.
+	 * @param msg the message, used for logging only
+	 * @param encoded the result of {@link Message#toJsonString()} for the message
+	 * @return true if the message was queued for sending, false otherwise,
+	 * including when queueing it would go past the outbound limit
 	 */
-	public synchronized boolean send(Message msg) {
+	public boolean sendEncoded(Message msg,String encoded) {
 		if(stopped) return false;
+		if(outboundPending.get()+encoded.length()>outboundLimit) {
+			log.warning("refusing "+msg.getName()+" for protocol "+msg.getProtocolName()
+				+", the outbound limit has been reached for "+getOtherEndpointId());
+			disconnectOverloaded();
+			return false;
+		}
+		log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
+		if(!outbound.offer(new Queued(encoded,msg.getPriority(),msg.getKind().barrier))) return false;
+		ProtocolMetrics.of(msg.getProtocolName()).sent.increment();
+		long pending = outboundPending.addAndGet(encoded.length());
+		if(canWrite && pending>outboundHighWatermark) outboundChanged();
+		return true;
+	}
+	
+	/**
+	 * Record that part of the outbound queue has been written.
+	 * @param count characters written
+	 */
+	private void wrote(int count) {
+		long pending = outboundPending.addAndGet(-count);
+		if(!canWrite && pending<=outboundLowWatermark) outboundChanged();
+	}
+	
+	/**
+	 * Check the outbound queue against the watermarks, and emit
+	 * {@link #unwritable} or {@link #writable} if it has crossed one.
+	 */
+	private void outboundChanged() {
+		long pending;
+		boolean nowWritable;
+		synchronized(outboundLock) {
+			pending = outboundPending.get();
+			if(canWrite && pending>outboundHighWatermark) {
+				canWrite=false;
+			} else if(!canWrite && pending<=outboundLowWatermark) {
+				canWrite=true;
+				outboundLock.notifyAll();
+			} else {
+				return;
+			}
+			nowWritable=canWrite;
+		}
+		if(nowWritable) {
+			log.info("endpoint is writable again: "+getOtherEndpointId());
+		} else {
+			log.info("endpoint is unwritable, "+pending+" characters queued: "+getOtherEndpointId());
+		}
+		localEmit(nowWritable?writable:unwritable, pending);
+	}
+	
+	/**
+	 * Write queued messages to the socket until told to finish, a frame at a
+	 * time, choosing the stream for each frame with {@link #nextStream}. The
+	 * stream is only flushed when the queue is empty, so a burst of messages
+	 * goes out in as few socket writes as possible. When told to finish, all
+	 * messages already queued are written first.
+	 */
+	private void writeOutbound() {
+		DataOutputStream out = this.out; // close() may null the field
+		Stream[] streams = new Stream[Message.Priority.values().length];
+		for(int i=0;i<streams.length;i++) streams[i]=new Stream();
+		boolean finishing=false;
+		int turns=0; // interactive frames written in a row while bulk waited
 		try {
-			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
+			while(true) {
+				// hand newly queued messages to their streams, waiting if there
+				// is nothing else to write
+				Stream stream = nextStream(streams);
+				Queued queued = stream==null && !finishing?outbound.take():outbound.poll();
+				while(queued!=null) {
+					if(queued==endOfOutbound) finishing=true;
+					else streams[queued.stream].queue.add(queued);
+					queued=outbound.poll();
+				}
+				stream = nextStream(streams);
+				if(stream==null) {
+					if(finishing) break;
+					continue;
+				}
+				// take turns between interactive and bulk
+				Stream interactive = streams[Message.Priority.Interactive.ordinal()];
+				Stream bulk = streams[Message.Priority.Bulk.ordinal()];
+				if(stream==interactive && isReady(bulk,streams)) {
+					if(turns==interactiveTurns) {
+						stream=bulk;
+						turns=0;
+					} else {
+						turns++;
+					}
+				} else if(stream==bulk) {
+					turns=0;
+				}
+				writeFrame(out,stream);
+				if(outbound.isEmpty()) out.flush();
+			}
 			out.flush();
 		} catch (IOException e) {
-			manager.endpointDisconnectedAbruptly(this);
-			return false;
+			if(!stopped) manager.endpointDisconnectedAbruptly(this);
+		} catch (InterruptedException e) {
+			// nothing more will be written
+		}
+	}
+	
+	/**
+	 * 
+	 * @param streams
+	 * @return the highest priority stream that is ready to write a frame, or
+	 * null if none are
+	 */
+	private static Stream nextStream(Stream[] streams) {
+		for(Stream stream : streams) {
+			if(isReady(stream,streams)) return stream;
+		}
+		return null;
+	}
+	
+	/**
+	 * 
+	 * @param stream
+	 * @param streams
+	 * @return true if the stream has a frame to write, and if it is a barrier
+	 * that every other stream is empty
+	 */
+	private static boolean isReady(Stream stream, Stream[] streams) {
+		if(stream.isEmpty()) return false;
+		if(stream.large!=null || !stream.queue.peek().barrier) return true;
+		for(Stream other : streams) {
+			if(other!=stream && !other.isEmpty()) return false;
 		}
 		return true;
 	}
 	
+	/**
+	 * Write the next frame of a stream: the next fragment of its large
+	 * message, or its next message, which is the first fragment if the
+	 * message is too large to write in one go.
+	 * @param out
+	 * @param stream
+	 * @throws IOException
+	 */
+	private void writeFrame(DataOutputStream out, Stream stream) throws IOException {
+		if(stream.large==null) {
+			String encoded = stream.queue.poll().encoded;
+			if(!Fragments.needsFragments(encoded)) {
+				out.writeUTF(encoded);
+				timeLastSent=System.currentTimeMillis();
+				wrote(encoded.length());
+				return;
+			}
+			stream.large = new Fragments.Outgoing(fragmentId++,encoded);
+		}
+		int count = stream.large.writeNext(out);
+		timeLastSent=System.currentTimeMillis();
+		wrote(count);
+		if(stream.large.isDone()) stream.large=null;
+	}
+	
 	/**
 	 * Send a message and attach a timeout identifier to it. The callback
 	 * is triggered if no reply to the message was seen within the given
@@ -158,11 +507,21 @@ public class Endpoint extends Eventable {
 	/**
 	 * Closes the endpoint, which closes the socket. Both the endpoint thread
 	 * and the timer thread may end up attempting to do this in the event that
-	 * they detect problems.
+	 * they detect problems, only the first call does anything. The protocols
+	 * are stopped straight away, while waiting for the writer thread and
+	 * closing the socket is done on the shared pool of threads, so that
+	 * neither the timer thread nor callers holding this endpoint wait on the
+	 * network; {@link IEndpointHandler#endpointClosed(Endpoint)} is called
+	 * when that is done.
 	 */
-	public synchronized void close() {
+	public void close() {
+		if(!closing.compareAndSet(false, true)) return;
 		// we are stopping this endpoint, the send method will return false always now.
 		stopped=true;
+		// nobody should wait for the queue to drain any more
+		synchronized(outboundLock) {
+			outboundLock.notifyAll();
+		}
 		/* 
 	    * Tell all of the protocols to stop - they may not be able to correctly complete
 		* their intended function however - and this should be flagged as an error
@@ -175,18 +534,43 @@ public class Endpoint extends Eventable {
 		if(protocolNames!=null)
 			protocolNames.forEach((protocolName)->{stopProtocol(protocolName);});
 		
+		/*
+		 * Give the writer thread a chance to write what is already queued,
+		 * e.g. a session stop reply, before the socket goes away.
+		 */
+		outbound.offer(endOfOutbound);
+		try {
+			Utils.getInstance().execute(this::finishClose);
+		} catch (RejectedExecutionException e) {
+			// the system is exiting, the pool is gone
+			finishClose();
+		}
+	}
+	
+	/**
+	 * Wait for the writer thread to write what is queued, for at most
+	 * {@link #drainTimeout} ms, then close the socket.
+	 */
+	private void finishClose() {
+		if(writer!=null && writer!=Thread.currentThread()) {
+			try {
+				writer.join(drainTimeout);
+			} catch (InterruptedException e) {
+				// close anyway
+			}
+		}
+		
 		/*
 		 *  The endpoint thread itself will not process any more messages if we
 		 *  interrupt it.
-		 *  Note that it currently may be processing a message, indeed it may
-		 *  be this thread and interrupting itself.
+		 *  Note that it currently may be processing a message.
 		 */
 		interrupt();
 		
 		/**
 		 * At this point there may be exactly one _currently executing_ timer
-		 * thread callback (which is a pain, but it can't be inside the
-		 * send methods because these methods are synchronized), plus there may
+		 * thread callback (which is a pain, but its sends will be refused
+		 * because stopped has been set), plus there may
 		 * be pending timer thread callbacks that will want to use this endpoint
 		 * (which wont run since protocol stopped has been set in the protocols).
 		 * The endpoint is at this point just "closing", not closed.
@@ -212,19 +596,32 @@ public class Endpoint extends Eventable {
 	@Override
 	public void run() {
 		try {
-			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
+			in = new DataInputStream(new ProtocolMetrics.CountingInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(
+					new ProtocolMetrics.CountingOutputStream(socket.getOutputStream())));
 		} catch (IOException e){
 			manager.endpointDisconnectedAbruptly(this);
 			return;
 		}
+		writer = new WriterThread(this::writeOutbound);
+		writer.start();
 		stopped=false; // allow use of the out stream
 		manager.endpointReady(this);
 		log.info("endpoint has started to: "+getOtherEndpointId());
 		while(!isInterrupted()) {
 			try {
+				awaitInboundCapacity();
 				String line=in.readUTF();
-				Message msg = Message.toMessage(line);
+				timeLastReceived=System.currentTimeMillis();
+				if(Fragments.Incoming.isFragment(line)) {
+					line = fragments.add(line);
+					if(line==null) continue; // more fragments to come
+				}
+				long start = System.nanoTime();
+				Message msg = decoder.decode(line);
+				ProtocolMetrics metrics = ProtocolMetrics.of(msg.getProtocolName());
+				metrics.decodeTime.recordMicrosSince(start);
+				metrics.received.increment();
 				// cancel any related time out
 				if(msg.getType()==Message.Type.Reply) {
 					synchronized(outstandingIds) {
@@ -237,20 +634,9 @@ public class Endpoint extends Eventable {
 					protocol=protocols.get(msg.getProtocolName());
 				}
 				if(protocol==null) {
-					switch(msg.getProtocolName()) {
-					case SessionProtocol.protocolName:
-						protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
-						break;
-					case KeepAliveProtocol.protocolName:
-						protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
-						break;
-					case EventProtocol.protocolName:
-						protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
-					}
-					if(!manager.protocolRequested(this,protocol)) {
-						log.info("message dropped due to no protocol available: "+line);
-						continue;
-					}
+					// protocols are all handled from the start, this one was stopped or not agreed on
+					log.info("message dropped due to no protocol available: "+msg.getName());
+					continue;
 				}
 				log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
 				switch(msg.getType()) {
@@ -262,14 +648,20 @@ public class Endpoint extends Eventable {
 					break;
 				}
 			} catch (IOException e) {
-				manager.endpointDisconnectedAbruptly(this);
+				// unless the socket was closed by close(), which may still be finishing
+				if(!stopped) manager.endpointDisconnectedAbruptly(this);
 				// we can't continue here
 				break;
 			} catch (InvalidMessage e) {
 				manager.endpointSentInvalidMessage(this);
 				// up to the client what to do
+			} catch (InterruptedException e) {
+				// closed while waiting for the callbacks to catch up
+				break;
 			}
 		}
+		// make sure the writer thread finishes as well
+		outbound.offer(endOfOutbound);
 		try {
 			in.close();
 		} catch (IOException e) {
@@ -278,6 +670,181 @@ public class Endpoint extends Eventable {
 		log.info("endpoint has terminated to: "+getOtherEndpointId());
 	}
 	
+	/**
+	 * Stop reading while more than the inbound high watermark of event data
+	 * is waiting for callbacks on other threads, until it is down to the low
+	 * watermark.
+	 * @throws InterruptedException if the endpoint is closed while waiting
+	 */
+	private void awaitInboundCapacity() throws InterruptedException {
+		if(inboundPending.get()<=inboundHighWatermark) return;
+		log.info("callbacks are behind, pausing reads from: "+getOtherEndpointId());
+		synchronized(inboundLock) {
+			readPaused=true;
+			try {
+				// timed, in case the notify comes before the wait
+				while(inboundPending.get()>inboundLowWatermark) inboundLock.wait(100);
+			} finally {
+				readPaused=false;
+			}
+		}
+		log.info("resuming reads from: "+getOtherEndpointId());
+	}
+	
+	@Override
+	protected void offloading(Object[] args) {
+		long size = sizeOf(args);
+		if(size>0) inboundPending.addAndGet(size);
+	}
+	
+	@Override
+	protected void offloaded(Object[] args) {
+		long size = sizeOf(args);
+		if(size==0) return;
+		long pending = inboundPending.addAndGet(-size);
+		if(readPaused && pending<=inboundLowWatermark) {
+			synchronized(inboundLock) {
+				inboundLock.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @param args event arguments
+	 * @return the number of characters in the string arguments
+	 */
+	private static long sizeOf(Object[] args) {
+		long size=0;
+		for(Object arg : args) {
+			if(arg instanceof String) size+=((String)arg).length();
+		}
+		return size;
+	}
+	
+	/**
+	 * 
+	 * @return true if called on an endpoint's thread, or an endpoint's
+	 * writer thread
+	 */
+	public static boolean isEndpointThread() {
+		Thread thread = Thread.currentThread();
+		return thread instanceof Endpoint || thread instanceof WriterThread;
+	}
+	
+	/**
+	 * 
+	 * @return false if more than the outbound high watermark is queued to be
+	 * written and it has not yet come down to the low watermark
+	 */
+	public boolean isWritable() {
+		return canWrite;
+	}
+	
+	/**
+	 * Wait until the endpoint is writable, see {@link #isWritable()}, or is
+	 * closed.
+	 * @param timeout the most ms to wait
+	 * @return true if the endpoint is writable
+	 * @throws InterruptedException
+	 */
+	public boolean awaitWritable(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis()+timeout;
+		synchronized(outboundLock) {
+			while(!canWrite && !stopped) {
+				long left = deadline-System.currentTimeMillis();
+				if(left<=0) break;
+				outboundLock.wait(left);
+			}
+			return canWrite;
+		}
+	}
+	
+	/**
+	 * 
+	 * @return characters of encoded messages queued but not yet written
+	 */
+	public long getPendingOutbound() {
+		return outboundPending.get();
+	}
+	
+	/**
+	 * 
+	 * @return characters of event data waiting for callbacks on other threads
+	 */
+	public long getPendingInbound() {
+		return inboundPending.get();
+	}
+	
+	/**
+	 * 
+	 * @return true if the endpoint has stopped reading until the callbacks
+	 * catch up, in which case nothing is received from the other side even
+	 * though it may be sending
+	 */
+	public boolean isReadPaused() {
+		return readPaused;
+	}
+	
+	/**
+	 * @param low characters queued at or below which the endpoint becomes
+	 * writable again
+	 * @param high characters queued above which the endpoint becomes
+	 * unwritable
+	 */
+	public void setOutboundWatermarks(long low, long high) {
+		outboundHighWatermark=Math.max(1, high);
+		outboundLowWatermark=Math.min(Math.max(0, low), outboundHighWatermark);
+		outboundLimit=Math.max(outboundLimit, outboundHighWatermark);
+	}
+	
+	/**
+	 * @param limit characters queued past which messages are refused and
+	 * the endpoint is disconnected, at least the high watermark
+	 */
+	public void setOutboundLimit(long limit) {
+		outboundLimit=Math.max(limit, outboundHighWatermark);
+	}
+	
+	/**
+	 * 
+	 * @return characters queued past which messages are refused
+	 */
+	public long getOutboundLimit() {
+		return outboundLimit;
+	}
+	
+	/**
+	 * Disconnect the endpoint because the other side is not keeping up with
+	 * what is being sent to it, e.g. it has reached the outbound limit or a
+	 * broadcast found it unwritable. The manager is told of an abrupt
+	 * disconnection, as if the socket had failed, on the shared pool of
+	 * threads since the caller is usually in the middle of sending. Only the
+	 * first call does anything.
+	 */
+	public void disconnectOverloaded() {
+		if(stopped || !overloaded.compareAndSet(false, true)) return;
+		log.warning("disconnecting "+getOtherEndpointId()+", "+outboundPending.get()
+			+" characters are waiting to be written to it");
+		try {
+			Utils.getInstance().execute(()->{
+				if(!stopped) manager.endpointDisconnectedAbruptly(this);
+			});
+		} catch (RejectedExecutionException e) {
+			manager.endpointDisconnectedAbruptly(this);
+		}
+	}
+	
+	/**
+	 * @param low characters of event data waiting at or below which reading
+	 * resumes
+	 * @param high characters of event data waiting above which reading pauses
+	 */
+	public void setInboundWatermarks(long low, long high) {
+		inboundHighWatermark=Math.max(1, high);
+		inboundLowWatermark=Math.min(Math.max(0, low), inboundHighWatermark);
+	}
+	
 	/**
 	 * Start handling a protocol. Only one instance of a protocol can be handled
 	 * at a time. Either client or server may start/initiate the use of the protocol.
@@ -314,6 +881,24 @@ public class Endpoint extends Eventable {
 		}
 	}
 	
+	/**
+	 * 
+	 * @return the time (ms since the epoch) that anything was last received
+	 * from the other endpoint, or 0 if nothing has been
+	 */
+	public long getTimeLastReceived() {
+		return timeLastReceived;
+	}
+	
+	/**
+	 * 
+	 * @return the time (ms since the epoch) that anything was last written to
+	 * the other endpoint, or 0 if nothing has been
+	 */
+	public long getTimeLastSent() {
+		return timeLastSent;
+	}
+	
 	/**
 	 * 
 	 * @return the id of the other endpoint
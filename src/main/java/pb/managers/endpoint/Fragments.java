@@ -0,0 +1,177 @@
+package pb.managers.endpoint;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import pb.protocols.InvalidMessage;
+
+/**
+ * Messages are written to the socket with {@link DataOutputStream#writeUTF(String)},
+ * which can't write more than 65535 bytes at a time. Larger messages are
+ * split into fragments, each written as a separate string, and reassembled by
+ * the reader. A message starts with '{' while a fragment starts with
+ * <code>+id:</code> if more fragments of the message follow or with
+ * <code>.id:</code> if it is the last one, followed by part of the message.
+ * The id tells fragments of different messages apart.
+ * <br/>
+ * Messages that fit are never fragmented, so peers that don't understand
+ * fragments are only affected by messages they could not have received
+ * anyway.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @author aaron
+ *
+ */
+class Fragments {
+
+	/**
+	 * The most characters of a message in one fragment. Each character takes
+	 * at most 3 bytes, so a fragment always fits.
+	 */
+	static final int fragmentSize = 16384;
+
+	/**
+	 * The largest message that will be reassembled, in characters.
+	 */
+	static final int maxMessageSize = 64*1024*1024;
+
+	/**
+	 * The most messages being reassembled at once. The writer only
+	 * interleaves messages on different streams, so there are never more than
+	 * one per {@link pb.protocols.Message.Priority}, and this allows plenty
+	 * more.
+	 */
+	static final int maxPartialMessages = 16;
+
+	/**
+	 * The most characters held by all of the messages being reassembled at
+	 * once.
+	 */
+	static final long maxPartialSize = 2L*maxMessageSize;
+
+	/**
+	 *
+	 * @param encoded a message
+	 * @return true if the message is too large to be written in one go
+	 */
+	static boolean needsFragments(String encoded) {
+		int length = encoded.length();
+		if(length<=65535/3) return false;
+		if(length>65535) return true;
+		// count the bytes as writeUTF would
+		int bytes=0;
+		for(int i=0;i<length;i++) {
+			char c = encoded.charAt(i);
+			bytes+=(c>=0x0001 && c<=0x007F)?1:(c<=0x07FF?2:3);
+		}
+		return bytes>65535;
+	}
+
+	/**
+	 * A message being written as fragments, one at a time.
+	 */
+	static class Outgoing {
+		private final int id;
+		private final String encoded;
+		private int written=0;
+
+		Outgoing(int id, String encoded) {
+			this.id=id;
+			this.encoded=encoded;
+		}
+
+		/**
+		 * Write the next fragment of the message.
+		 * @param out
+		 * @return the number of characters of the message written
+		 * @throws IOException
+		 */
+		int writeNext(DataOutputStream out) throws IOException {
+			int end = Math.min(written+fragmentSize, encoded.length());
+			StringBuilder sb = new StringBuilder(end-written+12);
+			sb.append(end==encoded.length()?'.':'+').append(id).append(':');
+			sb.append(encoded, written, end);
+			out.writeUTF(sb.toString());
+			int count = end-written;
+			written=end;
+			return count;
+		}
+
+		/**
+		 *
+		 * @return true if all of the message has been written
+		 */
+		boolean isDone() {
+			return written==encoded.length();
+		}
+	}
+
+	/**
+	 * Reassembles the fragments read from a socket. Only used by the thread
+	 * reading the socket.
+	 */
+	static class Incoming {
+		private final Map<Integer,StringBuilder> partial = new HashMap<>();
+
+		/**
+		 * Characters held by all of the partial messages.
+		 */
+		private long partialSize=0;
+
+		/**
+		 *
+		 * @param line a string read from the socket
+		 * @return true if it is a fragment rather than a whole message
+		 */
+		static boolean isFragment(String line) {
+			return line.length()>0 && (line.charAt(0)=='+' || line.charAt(0)=='.');
+		}
+
+		/**
+		 * Add a fragment to its message.
+		 * @param fragment
+		 * @return the whole message if this was its last fragment, otherwise
+		 * null
+		 * @throws InvalidMessage if the fragment is malformed, the message
+		 * is too large, or too many messages or characters are already being
+		 * reassembled
+		 */
+		String add(String fragment) throws InvalidMessage {
+			int colon = fragment.indexOf(':');
+			if(colon<2) throw new InvalidMessage();
+			int id;
+			try {
+				id = Integer.parseInt(fragment.substring(1, colon));
+			} catch (NumberFormatException e) {
+				throw new InvalidMessage();
+			}
+			boolean last = fragment.charAt(0)=='.';
+			int length = fragment.length()-colon-1;
+			StringBuilder sb = partial.get(id);
+			if(sb==null) {
+				// a message in one fragment isn't sent, but is fine
+				if(last) return fragment.substring(colon+1);
+				if(partial.size()>=maxPartialMessages) throw new InvalidMessage();
+				// grown as fragments arrive, so ids that are never finished cost little
+				sb = new StringBuilder(length);
+				partial.put(id, sb);
+			}
+			if(sb.length()+length>maxMessageSize || partialSize+length>maxPartialSize) {
+				remove(id);
+				throw new InvalidMessage();
+			}
+			sb.append(fragment, colon+1, fragment.length());
+			partialSize+=length;
+			if(!last) return null;
+			remove(id);
+			return sb.toString();
+		}
+
+		private void remove(int id) {
+			StringBuilder sb = partial.remove(id);
+			if(sb!=null) partialSize-=sb.length();
+		}
+	}
+}
@@ -1,7 +1,5 @@
 package pb.managers.endpoint;
 
-import pb.protocols.Protocol;
-
 public interface IEndpointHandler {
 	/**
 	 * The endpoint is ready to use.
@@ -27,14 +25,4 @@ public interface IEndpointHandler {
 	 * @param endpoint
 	 */
 	public void endpointSentInvalidMessage(Endpoint endpoint);
-	
-	/**
-	 * The endpoint has requested a protocol to start. If the protocol
-	 * is allowed then the manager should tell the endpoint to handle it
-	 * using {@link pb.managers.endpoint.Endpoint#handleProtocol(Protocol)}
-	 * before returning true.
-	 * @param protocol
-	 * @return true if the protocol was started, false if not (not allowed to run)
-	 */
-	public boolean protocolRequested(Endpoint endpoint, Protocol protocol);
 }
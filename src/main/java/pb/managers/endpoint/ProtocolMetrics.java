@@ -0,0 +1,122 @@
+package pb.managers.endpoint;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pb.utils.Metrics;
+
+/**
+ * The metrics kept by endpoints for each protocol, shared by all endpoints,
+ * and for the bytes that go over their sockets. The metrics of a protocol
+ * are found once, after that looking them up by protocol name neither locks
+ * nor allocates.
+ *
+ * @see {@link pb.utils.Metrics}
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @author aaron
+ *
+ */
+class ProtocolMetrics {
+
+	/**
+	 * Bytes written to the sockets of all endpoints.
+	 */
+	static final Metrics.Counter bytesSent = Metrics.getInstance().counter("bytes_sent_total");
+
+	/**
+	 * Bytes read from the sockets of all endpoints.
+	 */
+	static final Metrics.Counter bytesReceived = Metrics.getInstance().counter("bytes_received_total");
+
+	/**
+	 * Protocol name to its metrics.
+	 */
+	private static final ConcurrentHashMap<String,ProtocolMetrics> byName = new ConcurrentHashMap<>();
+
+	/**
+	 * Messages queued to be sent.
+	 */
+	final Metrics.Counter sent;
+
+	/**
+	 * Messages read and decoded.
+	 */
+	final Metrics.Counter received;
+
+	/**
+	 * Time (us) to encode a message.
+	 */
+	final Metrics.Histogram encodeTime;
+
+	/**
+	 * Time (us) to decode a message.
+	 */
+	final Metrics.Histogram decodeTime;
+
+	private ProtocolMetrics(String protocolName) {
+		Metrics metrics = Metrics.getInstance();
+		sent = metrics.counter("messages_sent_total","protocol",protocolName);
+		received = metrics.counter("messages_received_total","protocol",protocolName);
+		encodeTime = metrics.histogram("message_encode_us","protocol",protocolName);
+		decodeTime = metrics.histogram("message_decode_us","protocol",protocolName);
+	}
+
+	/**
+	 *
+	 * @param protocolName
+	 * @return the metrics of the protocol
+	 */
+	static ProtocolMetrics of(String protocolName) {
+		ProtocolMetrics metrics = byName.get(protocolName);
+		return metrics!=null?metrics:byName.computeIfAbsent(protocolName, ProtocolMetrics::new);
+	}
+
+	/**
+	 * Counts the bytes read from a socket.
+	 */
+	static class CountingInputStream extends FilterInputStream {
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if(b>=0) bytesReceived.increment();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if(read>0) bytesReceived.add(read);
+			return read;
+		}
+	}
+
+	/**
+	 * Counts the bytes written to a socket, put under the buffer so it sees
+	 * few, large writes.
+	 */
+	static class CountingOutputStream extends FilterOutputStream {
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytesSent.increment();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytesSent.add(len);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package pb.protocols;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * A compression codec for large message payloads. Codecs are negotiated per
+ * session, see {@link pb.protocols.session.SessionProtocol}: the client offers
+ * the codecs it knows in its session start request and the server picks one in
+ * its reply. A payload is only compressed if it is at least
+ * {@link #threshold} characters long and compressing it makes it smaller,
+ * see {@link #compress(String)}.
+ * <br/>
+ * Compressed payloads are Base64 encoded so that they remain a JSON string.
+ * The {@code deflate-wb} codec primes deflate with a dictionary of the text
+ * that fills whiteboard and event payloads, which matters most for the short
+ * payloads just above the threshold.
+ *
+ * @see {@link pb.protocols.event.EventRequest}
+ * @author aaron
+ *
+ */
+public class Codec {
+
+	/**
+	 * Payloads shorter than this are never compressed.
+	 */
+	public static final int threshold = 512;
+
+	/**
+	 * Decompressed payloads longer than this, in bytes, are rejected, so a
+	 * small compressed payload can't be made to fill the heap.
+	 */
+	private static volatile int maxPayloadSize = 64*1024*1024;
+
+	/**
+	 * Text that typically appears in payloads: whiteboard paths and
+	 * operations, peer and board names, and the ends of Base64 file chunks.
+	 * Deflate favours the end of the dictionary, so the most common strings
+	 * come last.
+	 */
+	private static final byte[] whiteboardDictionary = (
+			"FILE_CONTENTS;QUERY_RESPONSE;localhost:127.0.0.1:"
+			+ "==/+ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789"
+			+ "clear:%undo:%add:red>add:black>"
+			+ "0,1>1,2>2,3>3,4>4,5>5,6>6,7>7,8>8,9>9,0>10,11>12,13>14,15>16,17>18,19>"
+			+ "%0%red>%1%black>%2%"
+			+ "127.0.0.1:3000:1%127.0.0.1:3000:0%black>1,1>2,2>3,3>black>").getBytes(StandardCharsets.US_ASCII);
+
+	private static final Map<String,Codec> codecs = new LinkedHashMap<>();
+
+	static {
+		register(new Codec("deflate-wb", whiteboardDictionary));
+		register(new Codec("deflate", null));
+		// register more codecs here, most preferred first
+	}
+
+	private static void register(Codec codec) {
+		codecs.put(codec.name, codec);
+	}
+
+	/**
+	 *
+	 * @param name
+	 * @return the codec with the name, or null if there is no such codec
+	 */
+	public static Codec get(String name) {
+		return codecs.get(name);
+	}
+
+	/**
+	 *
+	 * @param size bytes past which a decompressed payload is rejected
+	 */
+	public static void setMaxPayloadSize(int size) {
+		maxPayloadSize=Math.max(threshold, size);
+	}
+
+	/**
+	 *
+	 * @return bytes past which a decompressed payload is rejected
+	 */
+	public static int getMaxPayloadSize() {
+		return maxPayloadSize;
+	}
+
+	/**
+	 *
+	 * @return the names of all codecs, most preferred first, separated by
+	 * commas
+	 */
+	public static String supported() {
+		return String.join(",", codecs.keySet());
+	}
+
+	/**
+	 * Choose the codec to use from those that the other side offered.
+	 * @param offered codec names separated by commas, or null
+	 * @return the most preferred of our codecs that was offered, or null if
+	 * none were
+	 */
+	public static Codec choose(String offered) {
+		if(offered==null) return null;
+		for(Codec codec : codecs.values()) {
+			for(String name : offered.split(",")) {
+				if(codec.name.equals(name)) return codec;
+			}
+		}
+		return null;
+	}
+
+	private final String name;
+	private final byte[] dictionary;
+
+	/**
+	 * Deflaters and inflaters hold native memory, so each thread reuses its
+	 * own.
+	 */
+	private final ThreadLocal<Deflater> deflater;
+	private final ThreadLocal<Inflater> inflater;
+
+	private Codec(String name, byte[] dictionary) {
+		this.name=name;
+		this.dictionary=dictionary;
+		deflater=ThreadLocal.withInitial(()->new Deflater(Deflater.BEST_SPEED, true));
+		inflater=ThreadLocal.withInitial(()->new Inflater(true));
+	}
+
+	/**
+	 *
+	 * @return the name of the codec, as sent during negotiation
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Compress a payload.
+	 * @param data
+	 * @return the compressed payload, Base64 encoded, or null if the payload
+	 * is under the threshold or would not get smaller
+	 */
+	public String compress(String data) {
+		if(data.length()<threshold) return null;
+		byte[] in = data.getBytes(StandardCharsets.UTF_8);
+		Deflater d = deflater.get();
+		d.reset();
+		if(dictionary!=null) d.setDictionary(dictionary);
+		d.setInput(in);
+		d.finish();
+		// Base64 grows the output by a third, so give up once it can't pay off
+		byte[] out = new byte[data.length()*3/4];
+		int length=0;
+		while(!d.finished()) {
+			if(length==out.length) return null;
+			length+=d.deflate(out, length, out.length-length);
+		}
+		return new String(Base64.encodeBase64(length==out.length?out:Arrays.copyOf(out, length)));
+	}
+
+	/**
+	 * Decompress a payload made by {@link #compress(String)}.
+	 * @param data the Base64 encoded, compressed payload
+	 * @return the original payload
+	 * @throws InvalidMessage if the payload can't be decompressed, or would
+	 * be longer than the maximum payload size
+	 */
+	public String decompress(String data) throws InvalidMessage {
+		Inflater i = inflater.get();
+		i.reset();
+		if(dictionary!=null) i.setDictionary(dictionary);
+		i.setInput(Base64.decodeBase64(data));
+		int max = maxPayloadSize;
+		// the output grows as needed, a payload that claims a lot gets no head start
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(data.length()*2, max));
+		byte[] buffer = new byte[8192];
+		try {
+			while(!i.finished()) {
+				int length = i.inflate(buffer);
+				if(length==0 && (i.needsInput() || i.needsDictionary())) throw new InvalidMessage();
+				if(out.size()+length>max) throw new InvalidMessage();
+				out.write(buffer, 0, length);
+			}
+		} catch (DataFormatException e) {
+			throw new InvalidMessage();
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -45,20 +45,20 @@ public class Document {
 	@SuppressWarnings("unchecked")
 	public void append(String key,String val){
 		if(val==null){
-			obj.put(key, null);
+			object().put(key, null);
 		} else {
-			obj.put(key, new String(val));
+			object().put(key, new String(val));
 		}
 	}
 	
 	@SuppressWarnings("unchecked")
 	public void append(String key,Document doc){
-		obj.put(key, doc.obj);
+		object().put(key, doc.object());
 	}
 	
 	@SuppressWarnings("unchecked")
 	public void append(String key,boolean val){
-		obj.put(key, Boolean.valueOf(val));
+		object().put(key, Boolean.valueOf(val));
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -66,26 +66,35 @@ public class Document {
 		JSONArray list = new JSONArray();
 		for(Object o : val){
 			if(o instanceof Document){
-				list.add(((Document)o).obj);
+				list.add(((Document)o).object());
 			} else {
 				list.add(o);
 			}
 		}
-		obj.put(key,list);
+		object().put(key,list);
 	}
 	
 	@SuppressWarnings("unchecked")
 	public void append(String key,long val){
-		obj.put(key, Long.valueOf(val));
+		object().put(key, Long.valueOf(val));
 	}
 	
 	@SuppressWarnings("unchecked")
 	public void append(String key,int val){
-		obj.put(key, Integer.valueOf(val));
+		object().put(key, Integer.valueOf(val));
+	}
+	
+	/**
+	 * The JSON object holding the document, subclasses may build it on
+	 * demand.
+	 * @return the JSON object
+	 */
+	protected JSONObject object(){
+		return obj;
 	}
 	
 	public String toJson(){
-		return obj.toJSONString();
+		return object().toJSONString();
 	}
 	
 	public static Document parse(String json) {
@@ -101,11 +110,11 @@ public class Document {
 	}
 	
 	public boolean containsKey(String key){
-		return obj.containsKey(key);
+		return object().containsKey(key);
 	}
 	
 	public String getString(String key){
-		return (String) obj.get(key);
+		return (String) object().get(key);
 	}
 	
 	private ArrayList<Object> getList(JSONArray o){
@@ -123,7 +132,7 @@ public class Document {
 	}
 	
 	public Object get(String key){
-		Object o = obj.get(key);
+		Object o = object().get(key);
 		if(o instanceof JSONObject){
 			return (Object) new Document((JSONObject) o);
 		} else if(o instanceof JSONArray){
@@ -135,14 +144,14 @@ public class Document {
 	}
 	
 	public int getInteger(String key){
-		return (int) obj.get(key);
+		return (int) object().get(key);
 	}
 	
 	public long getLong(String key){
-		return (long) obj.get(key);
+		return (long) object().get(key);
 	}
 	
 	public boolean getBoolean(String key){
-		return (boolean) obj.get(key);
+		return (boolean) object().get(key);
 	}
 }
@@ -1,18 +1,17 @@
 package pb.protocols;
 
-import pb.protocols.event.EventReply;
-import pb.protocols.event.EventRequest;
-import pb.protocols.keepalive.KeepAliveReply;
-import pb.protocols.keepalive.KeepAliveRequest;
-import pb.protocols.session.SessionStartReply;
-import pb.protocols.session.SessionStartRequest;
-import pb.protocols.session.SessionStopReply;
-import pb.protocols.session.SessionStopRequest;
+import pb.protocols.MessageRegistry.MessageKind;
 
 /**
  * Message super class and factory for all protocol messages, to parse a
  * received UTF-8 line of text in JSON format, as an object that represents the
  * message.
+ * <br/>
+ * A message keeps its parameters in typed fields. The constant header of each
+ * kind of message is encoded once, by the {@link MessageRegistry}, so
+ * encoding a message only appends the timeout id and the message's own
+ * parameters to the header. Subclasses encode their parameters in
+ * {@link #encodeParameters(StringBuilder)}.
  * 
  * @see {@link pb.protocols.Protocol}
  * @author aaron
@@ -28,9 +27,36 @@ public class Message {
 	}
 	
 	/**
-	 * All of the message parameters are wrapped up in a Document class.
+	 * Messages are sent on one of these streams of an endpoint, in order of
+	 * priority. Messages on the same stream are sent in order, while
+	 * messages on different streams may overtake each other.
+	 * @see {@link pb.managers.endpoint.Endpoint}
 	 */
-	protected Document doc;
+	static public enum Priority {
+		/**
+		 * Keep alives, session start and replies that only cancel timeouts.
+		 */
+		Control,
+		/**
+		 * Events, by default.
+		 */
+		Interactive,
+		/**
+		 * Bulk transfers, e.g. file chunks, and session stop which waits for
+		 * everything else.
+		 */
+		Bulk
+	}
+	
+	/**
+	 * The kind of message, with its name, protocol name and type.
+	 */
+	private final MessageKind kind;
+	
+	/**
+	 * The timeout id, 0 if there is none.
+	 */
+	private long timeoutId=0;
 	
 	/**
 	 * Initialiser when given parameters explicitly.
@@ -39,10 +65,10 @@ public class Message {
 	 * @param type whether its a Request or a Reply message
 	 */
 	public Message(String name, String protocolName, Message.Type type) {
-		doc = new Document();
-		doc.append("name", name);
-		doc.append("protocolName", protocolName);
-		doc.append("type", type.toString());
+		kind = MessageRegistry.get(name);
+		if(kind==null || !kind.protocolName.equals(protocolName) || kind.type!=type) {
+			throw new IllegalArgumentException("message is not registered: "+name);
+		}
 	}
 	
 	static public void validateStringValue(String key,String val,Document doc) throws InvalidMessage {
@@ -73,37 +99,37 @@ public class Message {
 		validateStringValue("name",name,doc);
 		validateStringValue("protocolName",protocolName,doc);
 		validateStringValue("type",type.toString(),doc);
-		if(doc.containsKey("timeoutId")) validateLongType("timeoutId",doc);
+		if(doc.containsKey("timeoutId")) {
+			validateLongType("timeoutId",doc);
+			timeoutId = doc.getLong("timeoutId");
+		}
+		kind = MessageRegistry.get(name);
 	}
 	
 	/**
-	 * Turn a json string into an appropriate message object.
+	 * Turn a json string into an appropriate message object. Threads that
+	 * decode many messages should keep their own {@link MessageDecoder}.
 	 * @param json the string to parse, must be in JSON format
 	 * @return the appropriate message object
 	 * @throws InvalidMessage if no message object matches the message
 	 */
 	static public Message toMessage(String json) throws InvalidMessage {
-		Document doc = Document.parse(json);
-		// the following test is somewhat repetitive, but it avoids having
-		// to test each message type, handling exceptions for those that are
-		// not the matching message type
+		return new MessageDecoder().decode(json);
+	}
+	
+	/**
+	 * Turn a document into an appropriate message object.
+	 * @param doc the document holding the message
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 */
+	static public Message toMessage(Document doc) throws InvalidMessage {
 		if(!doc.containsKey("name")) throw new InvalidMessage();
 		if(!(doc.get("name") instanceof String)) throw new InvalidMessage();
-		String msg = doc.getString("name");
-		switch(msg) {
-			case KeepAliveRequest.name: return new KeepAliveRequest(doc);
-			case KeepAliveReply.name: return new KeepAliveReply(doc);
-			case SessionStartRequest.name: return new SessionStartRequest(doc);
-			case SessionStartReply.name: return new SessionStartReply(doc);
-			case SessionStopRequest.name: return new SessionStopRequest(doc);
-			case SessionStopReply.name: return new SessionStopReply(doc);
-			case EventRequest.name: return new EventRequest(doc);
-			case EventReply.name: return new EventReply(doc);
-			// put more message cases here
-			
-			// if nothing matches, its invalid
-			default: throw new InvalidMessage();
-		}
+		MessageKind kind = MessageRegistry.get(doc.getString("name"));
+		// if nothing matches, its invalid
+		if(kind==null) throw new InvalidMessage();
+		return kind.factory.fromDocument(doc);
 	}
 	
 	/**
@@ -111,7 +137,95 @@ public class Message {
 	 * @return
 	 */
 	public String toJsonString() {
-		return doc.toJson();
+		StringBuilder sb = new StringBuilder(kind.header.length()+32+parametersLength());
+		sb.append(kind.header);
+		if(timeoutId!=0) sb.append(",\"timeoutId\":").append(timeoutId);
+		encodeParameters(sb);
+		return sb.append('}').toString();
+	}
+	
+	/**
+	 * Append the message's own parameters to its JSON, each one as
+	 * <code>,"key":value</code>. Messages without parameters need not
+	 * override this.
+	 * @param sb
+	 */
+	protected void encodeParameters(StringBuilder sb) {
+		
+	}
+	
+	/**
+	 * 
+	 * @return about how many characters the message's own parameters need,
+	 * so the JSON is built without growing the buffer
+	 */
+	protected int parametersLength() {
+		return 0;
+	}
+	
+	/**
+	 * Append a parameter to a message's JSON.
+	 * @param sb
+	 * @param key
+	 * @param value
+	 */
+	protected static void appendParameter(StringBuilder sb, String key, String value) {
+		sb.append(",\"").append(key).append("\":");
+		appendString(sb, value);
+	}
+	
+	/**
+	 * Append a parameter to a message's JSON.
+	 * @param sb
+	 * @param key
+	 * @param value
+	 */
+	protected static void appendParameter(StringBuilder sb, String key, long value) {
+		sb.append(",\"").append(key).append("\":").append(value);
+	}
+	
+	/**
+	 * Append a string in JSON format, quoted and escaped.
+	 * @param sb
+	 * @param s the string, or null
+	 */
+	static void appendString(StringBuilder sb, String s) {
+		if(s==null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		int from=0;
+		for(int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			if(c>=0x20 && c!='"' && c!='\\') continue;
+			// copy the run of plain characters in one go
+			sb.append(s, from, i);
+			from=i+1;
+			switch(c) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\b': sb.append("\\b"); break;
+			case '\f': sb.append("\\f"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				String hex = Integer.toHexString(c);
+				sb.append("\\u");
+				for(int j=hex.length();j<4;j++) sb.append('0');
+				sb.append(hex);
+			}
+		}
+		sb.append(s, from, s.length()).append('"');
+	}
+	
+	/**
+	 * 
+	 * @return the kind of message
+	 */
+	public final MessageKind getKind() {
+		return kind;
 	}
 	
 	/**
@@ -119,7 +233,7 @@ public class Message {
 	 * @return
 	 */
 	public String getProtocolName() {
-		return doc.getString("protocolName");
+		return kind.protocolName;
 	}
 	
 	/**
@@ -127,7 +241,7 @@ public class Message {
 	 * @return
 	 */
 	public String getName() {
-		return doc.getString("name");
+		return kind.name;
 	}
 	
 	/**
@@ -135,7 +249,15 @@ public class Message {
 	 * @return
 	 */
 	public final Message.Type getType() {
-		return Message.Type.valueOf(doc.getString("type"));
+		return kind.type;
+	}
+	
+	/**
+	 * 
+	 * @return the stream the message is sent on
+	 */
+	public Message.Priority getPriority() {
+		return kind.priority;
 	}
 	
 	/**
@@ -143,7 +265,7 @@ public class Message {
 	 * @param id
 	 */
 	public final void setTimeoutId(long id) {
-		doc.append("timeoutId", id);
+		timeoutId=id;
 	}
 	
 	/**
@@ -151,8 +273,6 @@ public class Message {
 	 * @return id
 	 */
 	public final long getTimeoutId() {
-		if(doc.containsKey("timeoutId"))
-			return doc.getLong("timeoutId");
-		else return 0;
+		return timeoutId;
 	}
 }
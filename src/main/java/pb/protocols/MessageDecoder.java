@@ -0,0 +1,441 @@
+package pb.protocols;
+
+import java.util.Arrays;
+
+import org.json.simple.JSONObject;
+
+import pb.protocols.MessageRegistry.MessageKind;
+
+/**
+ * Decodes received messages without building a JSON object tree. A single
+ * pass over the JSON reads the header fields (name, protocolName, type and
+ * timeoutId) straight into the decoder and only notes where the other fields
+ * are; the message is then given a document that decodes a field when it is
+ * asked for, and builds the JSON object only if the message is changed or
+ * re-encoded. The header strings are matched against the
+ * {@link MessageRegistry} in place, so a valid header is decoded without
+ * making any strings.
+ * <br/>
+ * A decoder is reused for every message read by one thread, e.g. the
+ * endpoint's reader, and is not thread safe. Messages that hold nested
+ * objects or arrays are decoded with {@link Document#parse(String)} instead.
+ * @author aaron
+ *
+ */
+public class MessageDecoder {
+
+	/*
+	 * Kinds of field values.
+	 */
+	private static final int stringValue=0;
+	private static final int escapedStringValue=1;
+	private static final int longValue=2;
+	private static final int doubleValue=3;
+	private static final int trueValue=4;
+	private static final int falseValue=5;
+	private static final int nullValue=6;
+
+	/**
+	 * Ints noted for each field: key start, key end, value start, value end
+	 * and value kind. String positions exclude the quotes.
+	 */
+	private static final int fieldSize=5;
+
+	/*
+	 * Where the ints noted for each header start: value start, value end and
+	 * value kind, or -1 if the header is missing.
+	 */
+	private static final int nameHeader=0;
+	private static final int protocolNameHeader=3;
+	private static final int typeHeader=6;
+
+	/**
+	 * Thrown while scanning when the message needs the full parser.
+	 */
+	private static class NotFlat extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static final NotFlat notFlat = new NotFlat();
+
+	/*
+	 * State for the message being decoded, reused from message to message.
+	 */
+	private String json;
+	private int pos;
+	private int[] fields = new int[fieldSize*8];
+	private int numFields;
+	private int[] headers = new int[3*3];
+	private long timeoutId;
+	private boolean hasTimeoutId;
+	private boolean mayEscape;
+
+	/**
+	 * Turn a json string into an appropriate message object.
+	 * @param json the string to decode, must be in JSON format
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 */
+	public Message decode(String json) throws InvalidMessage {
+		try {
+			return decodeMessage(json);
+		} catch (RuntimeException e) {
+			// e.g. a truncated message, a malformed number or a field of the wrong type
+			throw new InvalidMessage();
+		}
+	}
+
+	private Message decodeMessage(String json) throws InvalidMessage {
+		this.json=json;
+		pos=0;
+		numFields=0;
+		Arrays.fill(headers, -1);
+		hasTimeoutId=false;
+		mayEscape=true;
+		try {
+			scanObject();
+		} catch (NotFlat e) {
+			return Message.toMessage(Document.parse(json));
+		} finally {
+			this.json=null;
+		}
+		MessageKind messageKind;
+		String name, protocolName, type;
+		try {
+			if(headers[nameHeader]<0) throw new InvalidMessage();
+			this.json=json;
+			messageKind = headers[nameHeader+2]==stringValue?
+					MessageRegistry.get(json, headers[nameHeader], headers[nameHeader+1]):
+					MessageRegistry.get(header(nameHeader, null));
+			// if nothing matches, its invalid
+			if(messageKind==null) throw new InvalidMessage();
+			name = messageKind.name;
+			protocolName = header(protocolNameHeader, messageKind.protocolName);
+			type = header(typeHeader, messageKind.type.toString());
+		} finally {
+			this.json=null;
+		}
+		return messageKind.factory.fromDocument(new DecodedDocument(json,
+				Arrays.copyOf(fields, numFields*fieldSize), name, protocolName, type,
+				hasTimeoutId?Long.valueOf(timeoutId):null));
+	}
+
+	/*
+	 * Scanning
+	 */
+
+	private void scanObject() throws NotFlat, InvalidMessage {
+		skipSpace();
+		expect('{');
+		skipSpace();
+		if(json.charAt(pos)=='}') return;
+		while(true) {
+			skipSpace();
+			expect('"');
+			int keyStart=pos;
+			if(scanString()) throw notFlat; // escaped keys are left to the parser
+			int keyEnd=pos-1;
+			skipSpace();
+			expect(':');
+			skipSpace();
+			scanValue(keyStart, keyEnd);
+			skipSpace();
+			char c = json.charAt(pos++);
+			if(c=='}') break;
+			if(c!=',') throw new InvalidMessage();
+		}
+		skipSpace();
+		if(pos!=json.length()) throw new InvalidMessage();
+	}
+
+	private void scanValue(int keyStart, int keyEnd) throws NotFlat, InvalidMessage {
+		int valueStart=pos, valueEnd, kind;
+		char c = json.charAt(pos);
+		if(c=='"') {
+			pos++;
+			valueStart=pos;
+			kind = scanString()?escapedStringValue:stringValue;
+			valueEnd=pos-1;
+		} else if(c=='-' || (c>='0' && c<='9')) {
+			kind=longValue;
+			pos++;
+			while(pos<json.length()) {
+				c=json.charAt(pos);
+				if(c>='0' && c<='9') {
+					pos++;
+				} else if(c=='.' || c=='e' || c=='E' || c=='+' || c=='-') {
+					kind=doubleValue;
+					pos++;
+				} else break;
+			}
+			valueEnd=pos;
+			if(json.charAt(valueStart)=='-' && valueEnd==valueStart+1) throw new InvalidMessage();
+			if(kind==doubleValue) Double.parseDouble(json.substring(valueStart, valueEnd));
+		} else if(json.startsWith("true", pos)) {
+			kind=trueValue;
+			pos+=4;
+			valueEnd=pos;
+		} else if(json.startsWith("false", pos)) {
+			kind=falseValue;
+			pos+=5;
+			valueEnd=pos;
+		} else if(json.startsWith("null", pos)) {
+			kind=nullValue;
+			pos+=4;
+			valueEnd=pos;
+		} else if(c=='{' || c=='[') {
+			throw notFlat;
+		} else {
+			throw new InvalidMessage();
+		}
+		if(isKey(keyStart, keyEnd, "name")) {
+			noteHeader(nameHeader, valueStart, valueEnd, kind);
+		} else if(isKey(keyStart, keyEnd, "protocolName")) {
+			noteHeader(protocolNameHeader, valueStart, valueEnd, kind);
+		} else if(isKey(keyStart, keyEnd, "type")) {
+			noteHeader(typeHeader, valueStart, valueEnd, kind);
+		} else if(isKey(keyStart, keyEnd, "timeoutId")) {
+			if(kind!=longValue) throw new InvalidMessage();
+			timeoutId = parseLong(json, valueStart, valueEnd);
+			hasTimeoutId=true;
+		} else {
+			if(numFields*fieldSize==fields.length) fields = Arrays.copyOf(fields, fields.length*2);
+			int i=numFields*fieldSize;
+			fields[i]=keyStart;
+			fields[i+1]=keyEnd;
+			fields[i+2]=valueStart;
+			fields[i+3]=valueEnd;
+			fields[i+4]=kind;
+			numFields++;
+		}
+	}
+
+	/**
+	 * Scan to the end of a string, just past the closing quote. Unicode
+	 * escapes are checked here, so that decoding the string later can't fail.
+	 * @return true if the string has escapes
+	 * @throws InvalidMessage if a unicode escape is malformed
+	 */
+	private boolean scanString() throws InvalidMessage {
+		boolean escaped=false;
+		int quote = json.indexOf('"', pos);
+		while(true) {
+			if(quote<0) throw new StringIndexOutOfBoundsException(pos);
+			int backslash = mayEscape?json.indexOf('\\', pos):-1;
+			if(backslash<0) mayEscape=false;
+			if(backslash<0 || backslash>quote) {
+				pos=quote+1;
+				return escaped;
+			}
+			// skip the escaped character, which may be the quote
+			escaped=true;
+			pos=backslash+2;
+			if(json.charAt(backslash+1)=='u') {
+				for(int i=0;i<4;i++) {
+					if(Character.digit(json.charAt(pos++), 16)<0) throw new InvalidMessage();
+				}
+			}
+			if(pos>quote) quote = json.indexOf('"', pos);
+		}
+	}
+
+	private void skipSpace() {
+		while(pos<json.length() && Character.isWhitespace(json.charAt(pos))) pos++;
+	}
+
+	private void expect(char c) throws InvalidMessage {
+		if(json.charAt(pos++)!=c) throw new InvalidMessage();
+	}
+
+	private boolean isKey(int keyStart, int keyEnd, String key) {
+		return keyEnd-keyStart==key.length() && json.startsWith(key, keyStart);
+	}
+
+	private void noteHeader(int header, int valueStart, int valueEnd, int kind) throws InvalidMessage {
+		if(kind!=stringValue && kind!=escapedStringValue) throw new InvalidMessage();
+		headers[header]=valueStart;
+		headers[header+1]=valueEnd;
+		headers[header+2]=kind;
+	}
+
+	/**
+	 * 
+	 * @param header
+	 * @param expected the value the header should have
+	 * @return the expected value if the header has it, otherwise the header's
+	 * value, or null if the header is missing
+	 */
+	private String header(int header, String expected) {
+		int start=headers[header], end=headers[header+1];
+		if(start<0) return null;
+		if(headers[header+2]==escapedStringValue) return unescape(json, start, end);
+		if(expected!=null && expected.length()==end-start && json.startsWith(expected, start)) {
+			return expected;
+		}
+		return json.substring(start, end);
+	}
+
+	/*
+	 * Value decoding, shared with the documents.
+	 */
+
+	private static long parseLong(String json, int start, int end) {
+		boolean negative = json.charAt(start)=='-';
+		int i = negative?start+1:start;
+		if(i==end || end-i>18) return Long.parseLong(json.substring(start, end));
+		long value=0;
+		for(;i<end;i++) value = value*10+(json.charAt(i)-'0');
+		return negative?-value:value;
+	}
+
+	private static String unescape(String json, int start, int end) {
+		StringBuilder sb = new StringBuilder(end-start);
+		int i=start;
+		while(i<end) {
+			// copy up to the next escape in one go
+			int backslash = json.indexOf('\\', i);
+			if(backslash<0 || backslash>=end) {
+				sb.append(json, i, end);
+				break;
+			}
+			sb.append(json, i, backslash);
+			i=backslash+1;
+			char c = json.charAt(i++);
+			switch(c) {
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'u':
+				sb.append((char)Integer.parseInt(json.substring(i, i+4), 16));
+				i+=4;
+				break;
+			default: sb.append(c); // quote, backslash and slash
+			}
+		}
+		return sb.toString();
+	}
+
+	private static Object value(String json, int[] fields, int i) {
+		int start=fields[i+2], end=fields[i+3];
+		switch(fields[i+4]) {
+		case stringValue: return json.substring(start, end);
+		case escapedStringValue: return unescape(json, start, end);
+		case longValue: return parseLong(json, start, end);
+		case doubleValue: return Double.valueOf(json.substring(start, end));
+		case trueValue: return Boolean.TRUE;
+		case falseValue: return Boolean.FALSE;
+		default: return null;
+		}
+	}
+
+	/**
+	 * A received document whose fields are decoded when asked for.
+	 */
+	private static class DecodedDocument extends Document {
+		private final String json;
+		private final int[] fields;
+		private final String name;
+		private final String protocolName;
+		private final String type;
+		private final Long timeoutId;
+		private final Object[] values;
+
+		DecodedDocument(String json, int[] fields, String name, String protocolName,
+				String type, Long timeoutId) {
+			super(null);
+			this.json=json;
+			this.fields=fields;
+			this.name=name;
+			this.protocolName=protocolName;
+			this.type=type;
+			this.timeoutId=timeoutId;
+			values=new Object[fields.length/fieldSize];
+		}
+
+		/**
+		 * The value of a field, decoded the first time it is asked for.
+		 * @param i
+		 * @return the value
+		 */
+		private Object valueAt(int i) {
+			Object value = values[i/fieldSize];
+			if(value==null && fields[i+4]!=nullValue) {
+				value = value(json, fields, i);
+				values[i/fieldSize]=value;
+			}
+			return value;
+		}
+
+		private int find(String key) {
+			for(int i=0;i<fields.length;i+=fieldSize) {
+				if(fields[i+1]-fields[i]==key.length() && json.startsWith(key, fields[i])) return i;
+			}
+			return -1;
+		}
+
+		@Override
+		public boolean containsKey(String key) {
+			if(obj!=null) return obj.containsKey(key);
+			switch(key) {
+			case "name": return true;
+			case "protocolName": return protocolName!=null;
+			case "type": return type!=null;
+			case "timeoutId": return timeoutId!=null;
+			default: return find(key)>=0;
+			}
+		}
+
+		@Override
+		public Object get(String key) {
+			if(obj!=null) return super.get(key);
+			switch(key) {
+			case "name": return name;
+			case "protocolName": return protocolName;
+			case "type": return type;
+			case "timeoutId": return timeoutId;
+			default:
+				int i = find(key);
+				return i<0?null:valueAt(i);
+			}
+		}
+
+		@Override
+		public String getString(String key) {
+			return (String) get(key);
+		}
+
+		@Override
+		public int getInteger(String key) {
+			return (int)(long) get(key);
+		}
+
+		@Override
+		public long getLong(String key) {
+			return (long) get(key);
+		}
+
+		@Override
+		public boolean getBoolean(String key) {
+			return (boolean) get(key);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		protected JSONObject object() {
+			if(obj==null) {
+				JSONObject built = new JSONObject();
+				built.put("name", name);
+				if(protocolName!=null) built.put("protocolName", protocolName);
+				if(type!=null) built.put("type", type);
+				if(timeoutId!=null) built.put("timeoutId", timeoutId);
+				for(int i=0;i<fields.length;i+=fieldSize) {
+					built.put(json.substring(fields[i], fields[i+1]), valueAt(i));
+				}
+				obj=built;
+			}
+			return obj;
+		}
+	}
+}
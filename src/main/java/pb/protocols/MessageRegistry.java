@@ -0,0 +1,160 @@
+package pb.protocols;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventReply;
+import pb.protocols.event.EventRequest;
+import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.keepalive.KeepAliveReply;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
+import pb.protocols.session.SessionStopReply;
+import pb.protocols.session.SessionStopRequest;
+
+/**
+ * All of the kinds of protocol messages. Each kind has a small numeric id, the
+ * JSON of its constant header (name, protocolName and type) encoded once, and
+ * a factory to make a message of that kind from a received document, as well
+ * as the stream it is sent on. New messages must be registered here.
+ *
+ * @see {@link pb.protocols.Message}
+ * @author aaron
+ *
+ */
+public class MessageRegistry {
+
+	/**
+	 * Makes a message from a received document.
+	 */
+	@FunctionalInterface
+	public interface IMessageFactory {
+		/**
+		 * @param doc with the message details
+		 * @return the message
+		 * @throws InvalidMessage when the doc does not contain all of the
+		 * required parameters
+		 */
+		public Message fromDocument(Document doc) throws InvalidMessage;
+	}
+
+	/**
+	 * A kind of message.
+	 */
+	public static class MessageKind {
+		public final int id;
+		public final String name;
+		public final String protocolName;
+		public final Message.Type type;
+
+		/**
+		 * The stream the message is sent on, messages of different streams
+		 * may overtake each other. Only messages that don't depend on the
+		 * order of other messages can be control messages.
+		 */
+		public final Message.Priority priority;
+
+		/**
+		 * Whether the message must not be sent before any message queued
+		 * ahead of it, on any stream, e.g. because the session stops after
+		 * it.
+		 */
+		public final boolean barrier;
+
+		/**
+		 * The start of the message's JSON, up to but not including the
+		 * closing brace.
+		 */
+		public final String header;
+
+		final IMessageFactory factory;
+
+		MessageKind(int id, String name, String protocolName, Message.Type type,
+				Message.Priority priority, boolean barrier, IMessageFactory factory) {
+			this.id=id;
+			this.name=name;
+			this.protocolName=protocolName;
+			this.type=type;
+			this.priority=priority;
+			this.barrier=barrier;
+			this.factory=factory;
+			StringBuilder sb = new StringBuilder("{\"name\":");
+			Message.appendString(sb, name);
+			sb.append(",\"protocolName\":");
+			Message.appendString(sb, protocolName);
+			sb.append(",\"type\":");
+			Message.appendString(sb, type.toString());
+			header=sb.toString();
+		}
+	}
+
+	private static final Map<String,MessageKind> byName = new HashMap<>();
+	private static MessageKind[] byId = new MessageKind[0];
+
+	static {
+		register(KeepAliveRequest.name, KeepAliveProtocol.protocolName, Message.Type.Request,
+				Message.Priority.Control, false, KeepAliveRequest::new);
+		register(KeepAliveReply.name, KeepAliveProtocol.protocolName, Message.Type.Reply,
+				Message.Priority.Control, false, KeepAliveReply::new);
+		register(SessionStartRequest.name, SessionProtocol.protocolName, Message.Type.Request,
+				Message.Priority.Control, false, SessionStartRequest::new);
+		register(SessionStartReply.name, SessionProtocol.protocolName, Message.Type.Reply,
+				Message.Priority.Control, false, SessionStartReply::new);
+		register(SessionStopRequest.name, SessionProtocol.protocolName, Message.Type.Request,
+				Message.Priority.Bulk, true, SessionStopRequest::new);
+		register(SessionStopReply.name, SessionProtocol.protocolName, Message.Type.Reply,
+				Message.Priority.Bulk, true, SessionStopReply::new);
+		register(EventRequest.name, EventProtocol.protocolName, Message.Type.Request,
+				Message.Priority.Interactive, false, EventRequest::new);
+		register(EventReply.name, EventProtocol.protocolName, Message.Type.Reply,
+				Message.Priority.Control, false, EventReply::new);
+		// register more messages here
+	}
+
+	private static void register(String name, String protocolName, Message.Type type,
+			Message.Priority priority, boolean barrier, IMessageFactory factory) {
+		MessageKind kind = new MessageKind(byId.length, name, protocolName, type,
+				priority, barrier, factory);
+		MessageKind[] grown = new MessageKind[byId.length+1];
+		System.arraycopy(byId, 0, grown, 0, byId.length);
+		grown[kind.id]=kind;
+		byId=grown;
+		byName.put(name, kind);
+	}
+
+	/**
+	 *
+	 * @param name message name
+	 * @return the kind of message, or null if there is no such message
+	 */
+	public static MessageKind get(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 *
+	 * @param id message id
+	 * @return the kind of message, or null if there is no such message
+	 */
+	public static MessageKind get(int id) {
+		return id>=0 && id<byId.length?byId[id]:null;
+	}
+
+	/**
+	 * Find the kind of message whose name is in part of a string, without
+	 * making a string of the name.
+	 * @param s
+	 * @param start
+	 * @param end
+	 * @return the kind of message, or null if there is no such message
+	 */
+	public static MessageKind get(String s, int start, int end) {
+		for(MessageKind kind : byId) {
+			if(kind.name.length()==end-start && s.startsWith(kind.name, start)) return kind;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,238 @@
+package pb.protocols;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import pb.managers.Manager;
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.ProtocolAlreadyRunning;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.IEventProtocolHandler;
+import pb.protocols.keepalive.IKeepAliveProtocolHandler;
+import pb.protocols.keepalive.KeepAliveProtocol;
+
+/**
+ * All of the protocols that run on an endpoint besides the session protocol,
+ * with their versions. Every registered protocol is made and handled by the
+ * endpoint as soon as it is ready, so the endpoint never has to make one when
+ * a message arrives for it. Connection protocols start straight away, session
+ * protocols start when the session does.
+ * <br/>
+ * The session start request lists the protocols and versions the client
+ * supports, as <code>name/version</code> separated by commas, and the reply
+ * lists those agreed on, at the lower of the two versions. Protocols that
+ * were not agreed on are stopped. A peer that doesn't list its protocols is
+ * taken to support all of them at version 1. New protocols must be
+ * registered here.
+ *
+ * @see {@link pb.protocols.session.SessionProtocol}
+ * @see {@link pb.protocols.MessageRegistry}
+ * @author aaron
+ *
+ */
+public class ProtocolRegistry {
+	private static Logger log = Logger.getLogger(ProtocolRegistry.class.getName());
+
+	/**
+	 * Makes a protocol for an endpoint.
+	 */
+	@FunctionalInterface
+	public interface IProtocolFactory {
+		/**
+		 * @param endpoint
+		 * @param manager the endpoint's manager, which handles the protocol's
+		 * events
+		 * @return the protocol
+		 */
+		public Protocol create(Endpoint endpoint, Manager manager);
+	}
+
+	/**
+	 * When a protocol starts.
+	 */
+	public static enum Stage {
+		/**
+		 * As soon as the endpoint is ready, before the session starts.
+		 */
+		Connection,
+		/**
+		 * When the session starts.
+		 */
+		Session
+	}
+
+	/**
+	 * A registered protocol.
+	 */
+	public static class ProtocolKind {
+		public final String name;
+		public final int version;
+		public final Stage stage;
+		public final IProtocolFactory factory;
+
+		ProtocolKind(String name, int version, Stage stage, IProtocolFactory factory) {
+			this.name=name;
+			this.version=version;
+			this.stage=stage;
+			this.factory=factory;
+		}
+	}
+
+	/**
+	 * The registered protocols, in the order they are made.
+	 */
+	private static final List<ProtocolKind> kinds = new ArrayList<>();
+
+	/**
+	 * The registered protocols and versions, as listed in a session start
+	 * request.
+	 */
+	private static String supported;
+
+	static {
+		register(KeepAliveProtocol.protocolName, 1, Stage.Connection,
+				(endpoint, manager)->new KeepAliveProtocol(endpoint, (IKeepAliveProtocolHandler)manager));
+		register(EventProtocol.protocolName, 1, Stage.Session,
+				(endpoint, manager)->new EventProtocol(endpoint, (IEventProtocolHandler)manager));
+	}
+
+	private static void register(String name, int version, Stage stage, IProtocolFactory factory) {
+		kinds.add(new ProtocolKind(name, version, stage, factory));
+		StringBuilder sb = new StringBuilder();
+		for(ProtocolKind kind : kinds) {
+			if(sb.length()>0) sb.append(',');
+			sb.append(kind.name).append('/').append(kind.version);
+		}
+		supported=sb.toString();
+	}
+
+	/**
+	 *
+	 * @return the registered protocols
+	 */
+	public static List<ProtocolKind> getKinds() {
+		return Collections.unmodifiableList(kinds);
+	}
+
+	/**
+	 *
+	 * @return the registered protocols and versions, separated by commas
+	 */
+	public static String supported() {
+		return supported;
+	}
+
+	/**
+	 * Parse a list of protocols and versions.
+	 * @param protocols <code>name/version</code> separated by commas
+	 * @return protocol name to version, leaving out malformed entries
+	 */
+	public static Map<String,Integer> parse(String protocols) {
+		Map<String,Integer> versions = new HashMap<>();
+		if(protocols==null || protocols.isEmpty()) return versions;
+		for(String protocol : protocols.split(",")) {
+			int slash = protocol.indexOf('/');
+			if(slash<=0) continue;
+			try {
+				versions.put(protocol.substring(0, slash), Integer.parseInt(protocol.substring(slash+1)));
+			} catch (NumberFormatException e) {
+				log.warning("malformed protocol version: "+protocol);
+			}
+		}
+		return versions;
+	}
+
+	/**
+	 * Agree on the protocols to use, those that are registered and offered,
+	 * each at the lower of the two versions.
+	 * @param offered the protocols offered by the other side, or null if it
+	 * didn't list them
+	 * @return the agreed protocols and versions, separated by commas
+	 */
+	public static String agree(String offered) {
+		if(offered==null) return agreeAll();
+		Map<String,Integer> versions = parse(offered);
+		StringBuilder sb = new StringBuilder();
+		for(ProtocolKind kind : kinds) {
+			Integer version = versions.get(kind.name);
+			if(version==null) continue;
+			if(sb.length()>0) sb.append(',');
+			sb.append(kind.name).append('/').append(Math.min(version, kind.version));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 *
+	 * @return all registered protocols at version 1, for peers that don't
+	 * list their protocols
+	 */
+	private static String agreeAll() {
+		StringBuilder sb = new StringBuilder();
+		for(ProtocolKind kind : kinds) {
+			if(sb.length()>0) sb.append(',');
+			sb.append(kind.name).append("/1");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Make every registered protocol and have the endpoint handle it, then
+	 * start the connection protocols. Called when the endpoint is ready.
+	 * @param endpoint
+	 * @param manager
+	 * @param asServer start the protocols as the server rather than the
+	 * client
+	 */
+	public static void install(Endpoint endpoint, Manager manager, boolean asServer) {
+		for(ProtocolKind kind : kinds) {
+			try {
+				endpoint.handleProtocol(kind.factory.create(endpoint, manager));
+			} catch (ProtocolAlreadyRunning e) {
+				log.warning("protocol already running: "+kind.name);
+			}
+		}
+		start(endpoint, Stage.Connection, asServer);
+	}
+
+	/**
+	 * Start the protocols of a stage that the endpoint is handling.
+	 * @param endpoint
+	 * @param stage
+	 * @param asServer start the protocols as the server rather than the
+	 * client
+	 */
+	public static void start(Endpoint endpoint, Stage stage, boolean asServer) {
+		for(ProtocolKind kind : kinds) {
+			if(kind.stage!=stage) continue;
+			Protocol protocol = endpoint.getProtocol(kind.name);
+			if(!(protocol instanceof IRequestReplyProtocol)) continue;
+			if(asServer) {
+				((IRequestReplyProtocol)protocol).startAsServer();
+			} else {
+				((IRequestReplyProtocol)protocol).startAsClient();
+			}
+		}
+	}
+
+	/**
+	 * Stop the protocols that were not agreed on.
+	 * @param endpoint
+	 * @param agreed the agreed protocols, or null if the other side didn't
+	 * list them, in which case all are kept
+	 */
+	public static void retain(Endpoint endpoint, String agreed) {
+		if(agreed==null) return;
+		Map<String,Integer> versions = parse(agreed);
+		for(ProtocolKind kind : kinds) {
+			if(!versions.containsKey(kind.name) && endpoint.getProtocol(kind.name)!=null) {
+				log.info("protocol not agreed on, stopping it: "+kind.name);
+				endpoint.stopProtocol(kind.name);
+			}
+		}
+	}
+}
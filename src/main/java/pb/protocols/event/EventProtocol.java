@@ -1,17 +1,48 @@
 package pb.protocols.event;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.Codec;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.protocols.session.SessionProtocol;
+import pb.utils.EventNames;
+import pb.utils.Metrics;
+import pb.utils.Utils;
 
 /**
  * An event protocol for applications communicate using an asynchronous
  * event system. Each event can include a simple parameter that must
  * be a String. Complex data should be marshaled into a String.
+ * <br/>
+ * Events are sent with the sender's id for the event name, see
+ * {@link EventNames}. The first time an id is sent on a connection it is sent
+ * along with the name, and the receiver remembers which of its own ids the
+ * sender's id stands for, so after that neither side handles the name.
+ * <br/>
+ * Large event data is compressed with the codec that the session protocol
+ * negotiated for the endpoint, if any.
+ * <br/>
+ * Events are sent on the interactive stream of the endpoint unless their
+ * event name is given another priority, e.g. bulk for file chunks, see
+ * {@link #setPriority(String, Message.Priority)}. All events with the same
+ * name are sent on the same stream and so stay in order.
+ * <br/>
+ * While the endpoint is unwritable, see {@link Endpoint#unwritable},
+ * {@link #sendEvent(String, String)} waits for it to become writable again,
+ * for at most {@link #eventTimeout} ms, after which the event is dropped and
+ * the endpoint disconnected, unless it is called on a thread that must not
+ * wait: the endpoint threads, which would stop the other side's events being
+ * read, and the timer thread. Those senders should check
+ * {@link Endpoint#isWritable()} themselves.
  * @author aaron
  *
  */
@@ -24,6 +55,50 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	public volatile boolean stopped=false;
 	
+	/**
+	 * The priority of each event id, null for the default.
+	 */
+	private static volatile Message.Priority[] priorities = new Message.Priority[0];
+	
+	/**
+	 * Events received of each event id, over all endpoints. The array is
+	 * replaced, never changed, when an event gets its counter.
+	 */
+	private static volatile Metrics.Counter[] received = new Metrics.Counter[0];
+	
+	/**
+	 * Events received with names that nothing here has used, which are
+	 * counted together so that the other side can't make a metric per name.
+	 */
+	private static final Metrics.Counter receivedOther =
+			Metrics.getInstance().counter("events_received_total","event","other");
+	
+	/**
+	 * Event ids at or above this are refused, see {@link EventRequest}, so
+	 * the other side can't make us keep arbitrarily large tables of ids.
+	 */
+	public static final int maxEventIds = 4096;
+	
+	/**
+	 * Ids of the event names already sent to the other side, guarded by this
+	 * protocol. An id is only marked once a request naming it has been
+	 * queued.
+	 */
+	private final BitSet named = new BitSet();
+	
+	/**
+	 * The other side's event ids to ours, -1 where not yet named or where
+	 * the name has no id here. Only used by the thread receiving requests.
+	 */
+	private int[] boundIds = new int[0];
+	
+	/**
+	 * The names the other side gave its event ids. The names are not given
+	 * ids here, an event with a name that nothing here has used can have no
+	 * callbacks, but are kept in case callbacks for them are added later.
+	 */
+	private String[] otherNames = new String[0];
+	
 	/**
 	 * Event protocol will listen to all events emitted on the endpoint and
 	 * transmit them over the endpoint.
@@ -46,14 +121,148 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 		});
 	}
 	
+	/**
+	 * Set the stream that events with the given name are sent on, for all
+	 * endpoints. Events are {@link Message.Priority#Interactive} unless set
+	 * otherwise. Set priorities before the events are first sent, so that
+	 * events of the same name are never on two streams.
+	 * @param eventName
+	 * @param priority
+	 */
+	public static synchronized void setPriority(String eventName, Message.Priority priority) {
+		int eventId = EventNames.intern(eventName);
+		Message.Priority[] grown = Arrays.copyOf(priorities, Math.max(priorities.length, eventId+1));
+		grown[eventId]=priority;
+		priorities=grown;
+	}
+	
+	/**
+	 * 
+	 * @param eventId event id from {@link EventNames}
+	 * @return the stream that events with the id are sent on
+	 */
+	public static Message.Priority getPriority(int eventId) {
+		Message.Priority[] current = priorities;
+		Message.Priority priority = eventId>=0 && eventId<current.length?current[eventId]:null;
+		return priority==null?Message.Priority.Interactive:priority;
+	}
+	
 	/**
 	 * Send and event to the other side, The Doors style :-)
+	 * If the endpoint is not writable the caller waits for it to be, up to
+	 * the event timeout, unless it is a thread that must not wait; if it is
+	 * still not writable after waiting the event is dropped and the endpoint
+	 * is disconnected. Events from threads that can't wait are queued
+	 * regardless, up to the endpoint's outbound limit.
 	 * @param eventName
 	 * @param eventData
 	 */
 	public void sendEvent(String eventName, String eventData) {
 		if(stopped)return;
-		sendRequest(new EventRequest(eventName,eventData));
+		if(!endpoint.isWritable() && mayWait()) {
+			try {
+				if(!endpoint.awaitWritable(eventTimeout)) {
+					log.warning("endpoint still unwritable, dropping "+eventName+": "+endpoint.getOtherEndpointId());
+					endpoint.disconnectOverloaded();
+					return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if(stopped)return;
+		}
+		int eventId = EventNames.intern(eventName);
+		// the request naming the id must be queued before any without the name
+		synchronized(this) {
+			boolean naming = !named.get(eventId);
+			if(sendEventRequest(new EventRequest(eventId,naming?eventName:null,eventData,getCodec()))
+					&& naming) named.set(eventId);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return true if the calling thread may wait for the endpoint to become
+	 * writable
+	 */
+	private static boolean mayWait() {
+		return !Endpoint.isEndpointThread() && !Utils.getInstance().isTimerThread();
+	}
+	
+	/**
+	 * 
+	 * @return the codec negotiated for the endpoint, or null if event data
+	 * is not compressed
+	 */
+	private Codec getCodec() {
+		Protocol sessionProtocol = endpoint.getProtocol(SessionProtocol.protocolName);
+		if(!(sessionProtocol instanceof SessionProtocol)) return null;
+		return ((SessionProtocol)sessionProtocol).getCodec();
+	}
+	
+	/**
+	 * The requests made for one codec by {@link #broadcast}, without and
+	 * with the event name, and their encodings.
+	 */
+	private static class Encodings {
+		final EventRequest[] requests = new EventRequest[2];
+		final String[] encoded = new String[2];
+	}
+	
+	/**
+	 * Send the same event to a number of endpoints. The event is encoded
+	 * at most twice for each codec in use, with and without the event name,
+	 * and compressed at most once for each codec, and the (immutable)
+	 * encoding is queued on each endpoint, so the caller pays for the
+	 * encoding once no matter how many endpoints there are, and never waits
+	 * on the network. Endpoints that are not running
+	 * the event protocol are skipped. Unlike {@link #sendEvent(String, String)}
+	 * no reply timeout is set for broadcast events, the shared encoding
+	 * can't carry a timeout id per endpoint; the KeepAlive protocol still
+	 * detects endpoints that have died. Broadcasts never wait for an endpoint
+	 * to be writable, one slow endpoint must not hold up the rest; an
+	 * endpoint that is not writable is skipped and disconnected instead,
+	 * since it would otherwise silently miss the event.
+	 * @param endpoints
+	 * @param eventName
+	 * @param eventData
+	 * @return the number of endpoints the event was queued on
+	 */
+	public static int broadcast(Collection<Endpoint> endpoints, String eventName, String eventData) {
+		int eventId = EventNames.intern(eventName);
+		// usually every endpoint has the same codec, so this stays small
+		Map<Codec,Encodings> byCodec = new HashMap<>(4);
+		int sent=0;
+		for(Endpoint endpoint : endpoints) {
+			EventProtocol eventProtocol = (EventProtocol) endpoint.getProtocol(protocolName);
+			if(eventProtocol==null || eventProtocol.stopped) continue;
+			if(!endpoint.isWritable()) {
+				endpoint.disconnectOverloaded();
+				continue;
+			}
+			Codec codec = eventProtocol.getCodec();
+			Encodings encodings = byCodec.get(codec);
+			if(encodings==null) {
+				encodings = new Encodings();
+				byCodec.put(codec, encodings);
+			}
+			synchronized(eventProtocol) {
+				int withName = eventProtocol.named.get(eventId)?0:1;
+				if(encodings.requests[withName]==null) {
+					EventRequest other = encodings.requests[1-withName];
+					String name = withName==1?eventName:null;
+					encodings.requests[withName] = other==null?
+							new EventRequest(eventId,name,eventData,codec):other.withEventName(name);
+					encodings.encoded[withName] = encodings.requests[withName].toJsonString();
+				}
+				if(endpoint.sendEncoded(encodings.requests[withName],encodings.encoded[withName])) {
+					if(withName==1) eventProtocol.named.set(eventId);
+					sent++;
+				}
+			}
+		}
+		return sent;
 	}
 	
 	@Override
@@ -75,11 +284,19 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 
 	@Override
 	public void sendRequest(Message msg) {
-		if(stopped)return;
-		endpoint.sendWithTimeout(msg, ()->{
+		sendEventRequest(msg);
+	}
+	
+	/**
+	 * 
+	 * @param msg
+	 * @return true if the request was queued for sending
+	 */
+	private boolean sendEventRequest(Message msg) {
+		if(stopped)return false;
+		return endpoint.sendWithTimeout(msg, ()->{
 			if(!stopped) manager.endpointTimedOut(endpoint, this);
 		}, eventTimeout);
-		
 	}
 
 	@Override
@@ -93,7 +310,39 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 		if(stopped)return;
 		EventRequest eventRequest = (EventRequest)msg;
 		endpoint.sendAndCancelTimeout(new EventReply(), msg);
-		endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());	
+		int otherId = eventRequest.getEventId();
+		if(eventRequest.getEventName()==null && 
+				(otherId>=otherNames.length || otherNames[otherId]==null)) {
+			log.severe("event id "+otherId+" was never named by "
+					+endpoint.getOtherEndpointId());
+			return;
+		}
+		int eventId = bindId(otherId,eventRequest.getEventName());
+		if(eventId<0) {
+			// nothing here has used the name, so there are no callbacks for it
+			receivedOther.increment();
+			return;
+		}
+		receivedCounter(eventId).increment();
+		endpoint.localEmit(eventId,eventRequest.getEventData());	
+	}
+	
+	/**
+	 * 
+	 * @param eventId
+	 * @return the counter of the events received with the id
+	 */
+	private static Metrics.Counter receivedCounter(int eventId) {
+		Metrics.Counter[] current = received;
+		if(eventId<current.length && current[eventId]!=null) return current[eventId];
+		synchronized(EventProtocol.class) {
+			current = received;
+			if(eventId<current.length && current[eventId]!=null) return current[eventId];
+			Metrics.Counter[] grown = Arrays.copyOf(current, Math.max(current.length, eventId+1));
+			grown[eventId] = Metrics.getInstance().counter("events_received_total","event",EventNames.nameOf(eventId));
+			received=grown;
+			return grown[eventId];
+		}
 	}
 
 	@Override
@@ -102,6 +351,43 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 		
 	}
 	
+	/**
+	 * Our id for the other side's event id, remembering the name if it came
+	 * with it. Names are looked up, never given ids, so only names that
+	 * something here has used have ids.
+	 * @param otherId the other side's event id, below {@link #maxEventIds}
+	 * @param eventName the event name, or null if sent earlier
+	 * @return our id, or -1 if the name has no id here
+	 */
+	private int bindId(int otherId, String eventName) {
+		if(eventName!=null) {
+			if(otherId>=boundIds.length) {
+				int oldLength = boundIds.length;
+				int length = Math.min(Math.max(otherId+1, oldLength*2), maxEventIds);
+				boundIds = Arrays.copyOf(boundIds, length);
+				otherNames = Arrays.copyOf(otherNames, length);
+				Arrays.fill(boundIds, oldLength, length, -1);
+			}
+			otherNames[otherId] = eventName;
+			boundIds[otherId] = localId(eventName);
+		} else if(boundIds[otherId]<0) {
+			// callbacks for the name may have been added since
+			boundIds[otherId] = localId(otherNames[otherId]);
+		}
+		return boundIds[otherId];
+	}
+	
+	/**
+	 * 
+	 * @param eventName an event name from the other side
+	 * @return our id for the name, or -1 if it has none or is the wildcard,
+	 * which can't be sent
+	 */
+	private static int localId(String eventName) {
+		int eventId = EventNames.idOf(eventName);
+		return eventId==EventNames.all?-1:eventId;
+	}
+	
 	@Override
 	public String getProtocolName() {
 		return protocolName;
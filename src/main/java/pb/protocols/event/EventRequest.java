@@ -1,30 +1,153 @@
 package pb.protocols.event;
 
+import pb.protocols.Codec;
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 
+/**
+ * Carries an event to the other side. The event is identified by the
+ * sender's id for the event name; the name itself is only included the first
+ * time the id is used on a connection.
+ * <br/>
+ * Large event data is compressed with the codec negotiated for the session,
+ * in which case the request names the codec and its eventData is the
+ * compressed data.
+ * @see {@link pb.utils.EventNames}
+ * @see {@link pb.protocols.Codec}
+ */
 public class EventRequest extends Message {
 	static final public String name = "EventRequest";
 	
-	public EventRequest(String eventName, String eventData) {
+	private final int eventId;
+	private final String eventName;
+	private final String eventData;
+	
+	/**
+	 * The name of the codec the event data is compressed with, or null if
+	 * it is not compressed.
+	 */
+	private final String codec;
+	
+	/**
+	 * The event data as sent, i.e. compressed if there is a codec.
+	 */
+	private final String sentData;
+	
+	/**
+	 * 
+	 * @param eventId the sender's id for the event name
+	 * @param eventName the event name, or null if already sent with the id
+	 * @param eventData
+	 */
+	public EventRequest(int eventId, String eventName, String eventData) {
+		this(eventId, eventName, eventData, null);
+	}
+	
+	/**
+	 * 
+	 * @param eventId the sender's id for the event name
+	 * @param eventName the event name, or null if already sent with the id
+	 * @param eventData
+	 * @param codec to compress the event data with if it is large enough, or
+	 * null to not compress it
+	 */
+	public EventRequest(int eventId, String eventName, String eventData, Codec codec) {
 		super(name, EventProtocol.protocolName, Message.Type.Request);
-		doc.append("eventName", eventName);
-		doc.append("eventData", eventData);
+		this.eventId=eventId;
+		this.eventName=eventName;
+		this.eventData=eventData;
+		String compressed = codec==null?null:codec.compress(eventData);
+		this.codec=compressed==null?null:codec.getName();
+		this.sentData=compressed==null?eventData:compressed;
+	}
+	
+	private EventRequest(EventRequest other, String eventName) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		this.eventId=other.eventId;
+		this.eventName=eventName;
+		this.eventData=other.eventData;
+		this.codec=other.codec;
+		this.sentData=other.sentData;
 	}
 
 	public EventRequest(Document doc) throws InvalidMessage {
 		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
-		Message.validateStringType("eventName", doc);
+		Message.validateLongType("eventId", doc);
+		if(doc.containsKey("eventName")) Message.validateStringType("eventName", doc);
 		Message.validateStringType("eventData", doc);
-		this.doc=doc;
+		long id = doc.getLong("eventId");
+		if(id<0 || id>=EventProtocol.maxEventIds) throw new InvalidMessage();
+		eventId=(int) id;
+		eventName=doc.containsKey("eventName")?doc.getString("eventName"):null;
+		sentData=doc.getString("eventData");
+		if(doc.containsKey("codec")) {
+			Message.validateStringType("codec", doc);
+			codec=doc.getString("codec");
+			Codec decompressor = Codec.get(codec);
+			if(decompressor==null) throw new InvalidMessage();
+			eventData=decompressor.decompress(sentData);
+		} else {
+			codec=null;
+			eventData=sentData;
+		}
+	}
+	
+	/**
+	 * The same request with or without the event name, sharing the
+	 * compressed event data.
+	 * @param eventName the event name, or null
+	 * @return the request
+	 */
+	public EventRequest withEventName(String eventName) {
+		return new EventRequest(this, eventName);
 	}
 	
+	@Override
+	protected int parametersLength() {
+		return 64+sentData.length()+(eventName==null?0:eventName.length());
+	}
+	
+	@Override
+	protected void encodeParameters(StringBuilder sb) {
+		appendParameter(sb, "eventId", eventId);
+		if(eventName!=null) appendParameter(sb, "eventName", eventName);
+		if(codec!=null) appendParameter(sb, "codec", codec);
+		appendParameter(sb, "eventData", sentData);
+	}
+	
+	public int getEventId() {
+		return eventId;
+	}
+	
+	/**
+	 * 
+	 * @return the event name, or null if it was sent in an earlier request
+	 */
 	public String getEventName() {
-		return doc.getString("eventName");
+		return eventName;
 	}
 	
 	public String getEventData() {
-		return doc.getString("eventData");
+		return eventData;
+	}
+	
+	/**
+	 * 
+	 * @return the stream of the event, see
+	 * {@link EventProtocol#setPriority(String, Message.Priority)}
+	 */
+	@Override
+	public Message.Priority getPriority() {
+		return EventProtocol.getPriority(eventId);
+	}
+	
+	/**
+	 * 
+	 * @return the name of the codec the event data was sent with, or null if
+	 * it was not compressed
+	 */
+	public String getCodec() {
+		return codec;
 	}
 }
@@ -7,31 +7,46 @@ import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
-import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
 
 /**
  * Provides all of the protocol logic for both client and server to undertake
  * the KeepAlive protocol. In the KeepAlive protocol, the client sends a
- * KeepAlive request to the server every {@link #keepAliveInterval} seconds using
- * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}. The server must
+ * KeepAlive request to the server every {@link #keepAliveRequestInterval} ms.
+ * The server must
  * send a KeepAlive response to the client upon receiving the request. If the
- * client does not receive the response within {@link #keepAliveTimeout} seconds
+ * client does not receive a response within {@link #keepAliveTimeout} ms
  * it will assume the server is dead
  * and signal its manager using
  * {@link pb.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. If the server does
- * not receive a KeepAlive request at least every {@link #keepAliveTimeout} seconds (again using
- * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}), it will assume
+ * not receive a KeepAlive request at least every {@link #keepAliveTimeout} ms,
+ * it will assume
  * the client is dead and signal its manager. Upon initialisation, the client
  * should send the KeepAlive request immediately, whereas the server will wait
- * up to {@link #keepAliveTimeout} seconds before it assumes the client is dead. The protocol stops
+ * up to {@link #keepAliveTimeout} ms before it assumes the client is dead. The protocol stops
  * when a timeout occurs.
+ * <br/>
+ * Any message received on the endpoint counts as a sign of life, so on a
+ * busy connection keep alive requests are only sent if traffic stops in
+ * either direction.
+ * <br/>
+ * Requests carry the client's time, which the server echoes in its reply,
+ * so the client keeps a smoothed round trip time and its variation, as TCP
+ * does, and adapts the request interval and timeout to them, between
+ * bounds: a dead peer is noticed within a couple of seconds on a LAN while
+ * a slow link is given more time. Requests also carry the client's interval
+ * and timeout, which the server uses to time out the client.
+ * <br/>
+ * The protocol doesn't set timers of its own; its next deadline is kept by
+ * the manager's {@link KeepAliveScheduler}, which calls
+ * {@link #deadlineReached(long)} when it passes.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
  * @see {@link pb.protocols.Message}
  * @see {@link pb.protocols.keepalive.KeepAliveRequest}
  * @see {@link pb.protocols.keepalive.KeepaliveRespopnse}
+ * @see {@link pb.protocols.keepalive.KeepAliveScheduler}
  * @see {@link pb.protocols.Protocol}
  * @see {@link pb.protocols.IRequestReqplyProtocol}
  * @author aaron
@@ -47,20 +62,62 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	public static final String protocolName="KeepAliveProtocol";
 	
 	/**
-	 * Default keep alive request interval
+	 * Replies to requests without a time carry no parameters, so every
+	 * endpoint sends the same encoding.
 	 */
-	private int keepAliveRequestInterval = 20000;
+	private static final KeepAliveReply reply = new KeepAliveReply();
+	private static final String encodedReply = reply.toJsonString();
 	
 	/**
-	 * Default keep alive timeout
+	 * Keep alive request interval, until adapted
 	 */
-	private int keepAliveTimeout = 40000;
+	private volatile int keepAliveRequestInterval = 20000;
+	
+	/**
+	 * Keep alive timeout, until adapted
+	 */
+	private volatile int keepAliveTimeout = 40000;
+	
+	/*
+	 * The range the client adapts its request interval and timeout within.
+	 */
+	private volatile int minRequestInterval = 1000;
+	private volatile int maxRequestInterval = 20000;
+	private volatile int minTimeout = 2000;
+	private volatile int maxTimeout = 40000;
+	
+	/**
+	 * The clock granularity of the round trip timeout, the scheduler's tick.
+	 */
+	private static final int granularity = KeepAliveScheduler.tickMs;
+	
+	/**
+	 * Smoothed round trip time (ms), -1 until the first sample.
+	 */
+	private volatile double smoothedRtt=-1;
+	
+	/**
+	 * Round trip time variation (ms).
+	 */
+	private volatile double rttVariation=0;
+	
+	/**
+	 * Number of round trip times measured.
+	 */
+	private volatile long rttSamples=0;
+	
+	/**
+	 * The timeout given to the server in the last request, the request
+	 * interval is kept to half of it until the server has been told of a
+	 * longer one.
+	 */
+	private volatile int advertisedTimeout = 40000;
 	
 	// Use of volatile is because the timer thread is different to the endpoint thread
 	// and they make use of the same flags/variables.
 	
 	/**
-	 * Time that a request was last sent.
+	 * Time that a reply was last seen.
 	 */
 	private volatile long timeReplySeen;
 	
@@ -69,6 +126,10 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 */
 	private volatile long timeRequestSeen;
 	
+	/**
+	 * Time that a request was last sent, only used by the scheduler.
+	 */
+	private long timeRequestSent;
 	
 	/**
 	 * Set to true to avoid any further timeouts. 
@@ -76,9 +137,22 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	private volatile boolean stopped=false;
 	
 	/**
-	 * Whether we should timeout or not.
+	 * Whether the protocol was started as the server.
 	 */
-	private volatile boolean timeout=false; 
+	private volatile boolean asServer=false;
+	
+	/**
+	 * The scheduler keeping this protocol's deadline, once started.
+	 */
+	private volatile KeepAliveScheduler scheduler;
+	
+	/*
+	 * The scheduler's bookkeeping, guarded by the scheduler.
+	 */
+	KeepAliveProtocol wheelNext;
+	KeepAliveProtocol wheelPrev;
+	int wheelSlot=-1;
+	long deadline;
 	
 	/**
 	 * Initialise the protocol with an endopint and a manager.
@@ -98,11 +172,13 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	}
 
 	/**
-	 * Just set a flag to avoid any further timeout callbacks.
+	 * Set a flag to avoid any further timeouts, and leave the scheduler.
 	 */
 	@Override
 	public void stopProtocol() {
 		stopped=true;
+		KeepAliveScheduler current = scheduler;
+		if(current!=null) current.cancel(this);
 	}
 	
 	/*
@@ -111,78 +187,90 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	
 	/**
 	 * Called by the manager that is acting as the server. Basically
-	 * just wait for {@link #keepAliveTimeout} seconds and if no (new) request has been seen
+	 * wait for {@link #keepAliveTimeout} ms and if no (new) request has been seen
 	 * then timeout. Keep doing this until cancelled.
 	 */
 	public void startAsServer() {
+		asServer=true;
 		timeRequestSeen = Instant.now().toEpochMilli();
-		// set a timeout callback
-		Utils.getInstance().setTimeout(()->{
-			checkClientTimeout();
-		}, keepAliveTimeout);
-	}
-	
-	/**
-	 * callback to check for client timeout
-	 */
-	public void checkClientTimeout() {
-		if(stopped)return;
-		long now = Instant.now().toEpochMilli();
-		if(now-timeRequestSeen > keepAliveTimeout) {
-			// timeout :-(
-			manager.endpointTimedOut(endpoint,this);
-			stopProtocol();
-		} else {
-			// set a timeout callback
-			Utils.getInstance().setTimeout(()->{
-				checkClientTimeout();
-			}, keepAliveTimeout);
-		}
+		schedule(timeRequestSeen+keepAliveTimeout);
 	}
 	
 	/**
 	 * Called by the manager that is acting as the client. Basically
 	 * send a keep alive immediately and timeout if no response within
-	 * {@link #keepAliveTimeout} seconds.
-	 * Keep doing this every {@link #keepAliveRequestInterval} seconds until cancelled.
+	 * {@link #keepAliveTimeout} ms.
+	 * Keep doing this every {@link #keepAliveRequestInterval} ms until cancelled.
 	 */
 	public void startAsClient() {
 		// assume we saw a reply already
 		timeReplySeen = Instant.now().toEpochMilli();
 		// send a request straight away
-		sendAnotherRequest();	
+		schedule(deadlineReached(timeReplySeen));
 	}
 	
 	/**
-	 * callback to send new request
+	 * Called by the scheduler when this protocol's deadline has passed.
+	 * Anything received on the endpoint shows the other side is alive, not
+	 * just keep alive messages.
+	 * The server times out if nothing has been received within
+	 * {@link #keepAliveTimeout} ms. The client times out likewise, and
+	 * otherwise sends a request if {@link #keepAliveRequestInterval} ms have
+	 * passed since the last one and since traffic last went both ways; while
+	 * messages are flowing in both directions no requests are needed.
+	 * @param now ms since the epoch
+	 * @return the next deadline, or -1 if the protocol has stopped
 	 */
-	public void sendAnotherRequest() {
-		if(stopped)return;
-		sendRequest(new KeepAliveRequest());
-		final long timeSent = Instant.now().toEpochMilli();
-		Utils.getInstance().setTimeout(()->{
-			sendAnotherRequest();
-		}, keepAliveRequestInterval);
-		Utils.getInstance().setTimeout(()->{
-			checkServerTimeout(timeSent);
-		}, keepAliveTimeout);
+	long deadlineReached(long now) {
+		if(stopped) return -1;
+		// nothing is read while the endpoint is paused for its callbacks to
+		// catch up, that is not the other side's fault
+		long lastReceived = endpoint.isReadPaused()?now:endpoint.getTimeLastReceived();
+		int keepAliveTimeout = this.keepAliveTimeout;
+		if(asServer) {
+			long expires = Math.max(timeRequestSeen,lastReceived)+keepAliveTimeout;
+			if(now<expires) return expires;
+		} else {
+			long expires = Math.max(timeReplySeen,lastReceived)+keepAliveTimeout;
+			if(now<expires) {
+				long lastActive = Math.max(timeRequestSent,
+						Math.min(lastReceived,endpoint.getTimeLastSent()));
+				int interval = Math.min(keepAliveRequestInterval, advertisedTimeout/2);
+				if(now-lastActive>=interval) {
+					advertisedTimeout=keepAliveTimeout;
+					sendRequest(new KeepAliveRequest(now,keepAliveRequestInterval,keepAliveTimeout));
+					timeRequestSent=now;
+					lastActive=now;
+					interval = Math.min(keepAliveRequestInterval, advertisedTimeout/2);
+				}
+				return Math.min(lastActive+interval, expires);
+			}
+		}
+		// timeout :-(
+		manager.endpointTimedOut(endpoint,this);
+		stopProtocol();
+		return -1;
 	}
 	
 	/**
-	 * callback to check for server timeout
+	 * Have the scheduler look at this protocol again at its next tick, when
+	 * its deadline may have come closer.
 	 */
-	public void checkServerTimeout(long timeSent) {
-		if(stopped)return;
-		if(timeout) {
-			manager.endpointTimedOut(endpoint,this);
-			stopProtocol();
-		} else {
-			if(timeReplySeen-timeSent > keepAliveTimeout) {
-				//we timed out :-(
-				timeout=true;
-				manager.endpointDisconnectedAbruptly(endpoint);				
-			} 
-		}
+	private void reschedule() {
+		KeepAliveScheduler current = scheduler;
+		if(current!=null && !stopped) current.schedule(this, Instant.now().toEpochMilli());
+	}
+	
+	/**
+	 * Put this protocol on its manager's scheduler.
+	 * @param deadline
+	 */
+	private void schedule(long deadline) {
+		if(deadline<0) return;
+		scheduler = manager.getKeepAliveScheduler();
+		scheduler.schedule(this, deadline);
+		// a stop that came before the scheduler was known
+		if(stopped) scheduler.cancel(this);
 	}
 
 	/**
@@ -196,26 +284,63 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	}
 
 	/**
-	 * If we receive a keep alive reply, make a note of the time.
+	 * If we receive a keep alive reply, make a note of the time, and if it
+	 * echoes the time of our request then measure the round trip time.
 	 * @param msg
 	 */
 	@Override
 	public void receiveReply(Message msg) {
-		@SuppressWarnings("unused")
 		KeepAliveReply keepAliveResponse = (KeepAliveReply) msg;
 		timeReplySeen = Instant.now().toEpochMilli();
+		long sent = keepAliveResponse.getTime();
+		if(sent>0 && sent<=timeReplySeen) rttSample(timeReplySeen-sent);
+	}
+	
+	/**
+	 * Update the smoothed round trip time and its variation with a new
+	 * sample, as TCP does (Jacobson/Karels), and adapt the request interval
+	 * and timeout to the round trip timeout (RTO): requests are sent every
+	 * 2 RTO, and the peer is assumed dead if nothing is heard for a request
+	 * interval and 2 RTO after that, so one lost reply is tolerated.
+	 * @param rtt ms
+	 */
+	private synchronized void rttSample(long rtt) {
+		if(rttSamples==0) {
+			smoothedRtt=rtt;
+			rttVariation=rtt/2.0;
+		} else {
+			rttVariation=0.75*rttVariation+0.25*Math.abs(smoothedRtt-rtt);
+			smoothedRtt=0.875*smoothedRtt+0.125*rtt;
+		}
+		rttSamples++;
+		long rto = getRoundTripTimeout();
+		int interval = (int)Math.max(minRequestInterval, Math.min(maxRequestInterval, 2*rto));
+		keepAliveTimeout = (int)Math.max(minTimeout, Math.min(maxTimeout, interval+2*rto));
+		boolean sooner = interval<keepAliveRequestInterval;
+		keepAliveRequestInterval = interval;
+		if(sooner) reschedule();
 	}
 
 	/**
-	 * Received a keep alive request so make a note of when that was.
+	 * Received a keep alive request so make a note of when that was, and of
+	 * the client's interval and timeout if given, kept within this side's
+	 * ranges, then reply with the request's time.
 	 * @param msg
 	 */
 	@Override
 	public void receiveRequest(Message msg) {
-		@SuppressWarnings("unused")
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
 		timeRequestSeen = Instant.now().toEpochMilli();
-		sendReply(new KeepAliveReply());
+		if(keepAliveRequest.getTimeout()>0) {
+			// time out the client as it would time us out, within reason
+			int previous = keepAliveTimeout;
+			keepAliveRequestInterval=(int)Math.max(minRequestInterval,
+					Math.min(maxRequestInterval, keepAliveRequest.getInterval()));
+			keepAliveTimeout=(int)Math.max(minTimeout,
+					Math.min(maxTimeout, keepAliveRequest.getTimeout()));
+			if(keepAliveTimeout<previous) reschedule();
+		}
+		sendReply(keepAliveRequest.getTime()==0?reply:new KeepAliveReply(keepAliveRequest.getTime()));
 	}
 
 	/**
@@ -225,8 +350,81 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	@Override
 	public void sendReply(Message msg) {
 		KeepAliveReply keepAliveResponse = (KeepAliveReply) msg;
-		endpoint.send(keepAliveResponse);
+		endpoint.sendEncoded(keepAliveResponse,keepAliveResponse==reply?encodedReply:keepAliveResponse.toJsonString());
 	}
 	
+	/*
+	 * Metrics and settings
+	 */
 	
+	/**
+	 * 
+	 * @return the smoothed round trip time (ms), or -1 if none has been
+	 * measured
+	 */
+	public double getSmoothedRtt() {
+		return smoothedRtt;
+	}
+	
+	/**
+	 * 
+	 * @return the round trip time variation (ms)
+	 */
+	public double getRttVariation() {
+		return rttVariation;
+	}
+	
+	/**
+	 * 
+	 * @return the number of round trip times measured
+	 */
+	public long getRttSamples() {
+		return rttSamples;
+	}
+	
+	/**
+	 * 
+	 * @return the round trip timeout (ms), the smoothed round trip time plus
+	 * four times its variation, or the timeout if none has been measured
+	 */
+	public long getRoundTripTimeout() {
+		if(rttSamples==0) return keepAliveTimeout;
+		return (long)Math.ceil(smoothedRtt+Math.max(granularity, 4*rttVariation));
+	}
+	
+	/**
+	 * 
+	 * @return the current keep alive request interval (ms)
+	 */
+	public int getKeepAliveRequestInterval() {
+		return keepAliveRequestInterval;
+	}
+	
+	/**
+	 * 
+	 * @return the current keep alive timeout (ms)
+	 */
+	public int getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+	
+	/**
+	 * Set the range the client adapts its request interval within.
+	 * @param min ms
+	 * @param max ms
+	 */
+	public void setRequestIntervalRange(int min, int max) {
+		minRequestInterval=min;
+		maxRequestInterval=Math.max(min, max);
+	}
+	
+	/**
+	 * Set the range the client adapts its timeout within.
+	 * @param min ms
+	 * @param max ms
+	 */
+	public void setTimeoutRange(int min, int max) {
+		minTimeout=min;
+		maxTimeout=Math.max(min, max);
+	}
 }
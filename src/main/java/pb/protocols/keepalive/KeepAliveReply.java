@@ -5,7 +5,8 @@ import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 
 /**
- * Reply message for the KeepAlive protocol.
+ * Reply message for the KeepAlive protocol. The reply echoes the time given
+ * in the request, if any.
  * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
  * @author aaron
  *
@@ -14,11 +15,24 @@ public class KeepAliveReply extends Message {
 	static final public String name = "KeepAliveReply";
 	
 	/**
-	 * Initialiser when given message parameters explicitly. Note that
-	 * in this message there are no additional parameters.
+	 * The time from the request, 0 if not given.
+	 */
+	private final long time;
+	
+	/**
+	 * Initialiser when given message parameters explicitly, without a time.
 	 */
 	public KeepAliveReply() {
+		this(0);
+	}
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param time the time given in the request
+	 */
+	public KeepAliveReply(long time) {
 		super(name,KeepAliveProtocol.protocolName,Message.Type.Reply);
+		this.time=time;
 	}
 	
 	/**
@@ -29,8 +43,25 @@ public class KeepAliveReply extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public KeepAliveReply(Document doc) throws InvalidMessage {
-		super(name,KeepAliveProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		super(name,KeepAliveProtocol.protocolName,Message.Type.Reply,doc);
+		time=KeepAliveRequest.optionalLong("time", doc);
+	}
+	
+	@Override
+	protected int parametersLength() {
+		return time==0?0:28;
+	}
+	
+	@Override
+	protected void encodeParameters(StringBuilder sb) {
+		if(time!=0) appendParameter(sb, "time", time);
+	}
+	
+	/**
+	 * 
+	 * @return the time given in the request, 0 if not given
+	 */
+	public long getTime() {
+		return time;
 	}
-
 }
@@ -5,7 +5,11 @@ import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 
 /**
- * Request message for the KeepAlive protocol.
+ * Request message for the KeepAlive protocol. The request may carry the time
+ * it was sent, to be echoed in the reply so the client can measure the round
+ * trip time, and the request interval and timeout the client is using, so the
+ * server can time out the client accordingly. Requests without these
+ * parameters are still valid.
  * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
  * @author aaron
  *
@@ -14,11 +18,39 @@ public class KeepAliveRequest extends Message {
 	static final public String name = "KeepAliveRequest";
 	
 	/**
-	 * Initialiser when given message parameters explicitly. Note that
-	 * in this message there are no additional parameters.
+	 * The sender's time (ms) when the request was sent, 0 if not given.
+	 */
+	private final long time;
+	
+	/**
+	 * The client's request interval (ms), 0 if not given.
+	 */
+	private final long interval;
+	
+	/**
+	 * The client's timeout (ms), 0 if not given.
+	 */
+	private final long timeout;
+	
+	/**
+	 * Initialiser when given message parameters explicitly, without any
+	 * parameters.
 	 */
 	public KeepAliveRequest() {
+		this(0,0,0);
+	}
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param time the sender's time (ms), to be echoed in the reply
+	 * @param interval the client's request interval (ms)
+	 * @param timeout the client's timeout (ms)
+	 */
+	public KeepAliveRequest(long time, long interval, long timeout) {
 		super(name,KeepAliveProtocol.protocolName,Message.Type.Request);
+		this.time=time;
+		this.interval=interval;
+		this.timeout=timeout;
 	}
 	
 	/**
@@ -29,8 +61,57 @@ public class KeepAliveRequest extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public KeepAliveRequest(Document doc) throws InvalidMessage {
-		super(name,KeepAliveProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		super(name,KeepAliveProtocol.protocolName,Message.Type.Request,doc);
+		time=optionalLong("time", doc);
+		interval=optionalLong("interval", doc);
+		timeout=optionalLong("timeout", doc);
+	}
+	
+	/**
+	 * @param key
+	 * @param doc
+	 * @return the long parameter, or 0 if it is not in the doc
+	 * @throws InvalidMessage if the parameter is not a long
+	 */
+	static long optionalLong(String key, Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) return 0;
+		Message.validateLongType(key, doc);
+		return doc.getLong(key);
+	}
+	
+	@Override
+	protected int parametersLength() {
+		return time==0?0:80;
+	}
+	
+	@Override
+	protected void encodeParameters(StringBuilder sb) {
+		if(time!=0) appendParameter(sb, "time", time);
+		if(interval!=0) appendParameter(sb, "interval", interval);
+		if(timeout!=0) appendParameter(sb, "timeout", timeout);
+	}
+	
+	/**
+	 * 
+	 * @return the sender's time (ms) when the request was sent, 0 if not given
+	 */
+	public long getTime() {
+		return time;
+	}
+	
+	/**
+	 * 
+	 * @return the client's request interval (ms), 0 if not given
+	 */
+	public long getInterval() {
+		return interval;
 	}
 	
+	/**
+	 * 
+	 * @return the client's timeout (ms), 0 if not given
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
 }
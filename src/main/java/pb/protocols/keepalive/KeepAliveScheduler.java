@@ -0,0 +1,163 @@
+package pb.protocols.keepalive;
+
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+
+/**
+ * Keeps the next deadline of every KeepAlive protocol of a manager in a
+ * timing wheel, and handles all of the deadlines that have passed in a single
+ * sweep, so a manager with many connections has one timer task pending rather
+ * than one or two per connection.
+ * <br/>
+ * The wheel has {@link #slots} slots of {@link #tickMs} ms each; a protocol is
+ * kept in the slot of its deadline, in a list threaded through the protocols
+ * themselves, so scheduling allocates nothing. Deadlines more than one turn
+ * of the wheel away stay in their slot until the turn they are due. Each
+ * sweep visits the slots for the ticks that have passed since the last sweep.
+ * <br/>
+ * A protocol's deadline is not moved each time a message arrives; instead,
+ * when the deadline is reached the protocol looks at when it last heard from
+ * the other side and either times out or gives its next deadline.
+ * The wheel only ticks while it has protocols in it.
+ *
+ * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
+ * @see {@link pb.managers.Manager#getKeepAliveScheduler()}
+ * @author aaron
+ *
+ */
+public class KeepAliveScheduler {
+	private static Logger log = Logger.getLogger(KeepAliveScheduler.class.getName());
+
+	/**
+	 * ms per tick of the wheel, deadlines are met to within this.
+	 */
+	public static final int tickMs = 500;
+
+	/**
+	 * Number of slots in the wheel, a turn of the wheel is
+	 * {@link #tickMs}*{@link #slots} ms.
+	 */
+	public static final int slots = 128;
+
+	/**
+	 * The first protocol in each slot, guarded by this.
+	 */
+	private final KeepAliveProtocol[] heads = new KeepAliveProtocol[slots];
+
+	/**
+	 * Protocols whose deadlines have passed, reused by each sweep. Only used by
+	 * the sweeping thread.
+	 */
+	private final ArrayList<KeepAliveProtocol> due = new ArrayList<>();
+
+	/**
+	 * The last tick swept, it is swept again by the next sweep since deadlines
+	 * later in the tick may not have passed yet.
+	 */
+	private long sweptTick = System.currentTimeMillis()/tickMs;
+
+	/**
+	 * Number of protocols in the wheel.
+	 */
+	private int size=0;
+
+	/**
+	 * Whether a sweep is pending.
+	 */
+	private boolean ticking=false;
+
+	/**
+	 * Set or move the deadline of a protocol.
+	 * @param protocol
+	 * @param deadline ms since the epoch
+	 */
+	public synchronized void schedule(KeepAliveProtocol protocol, long deadline) {
+		if(protocol.wheelSlot>=0) unlink(protocol);
+		protocol.deadline=deadline;
+		// a deadline already passed is handled by the next sweep
+		long tick = Math.max(deadline/tickMs, sweptTick);
+		int slot = (int)(tick%slots);
+		protocol.wheelSlot=slot;
+		protocol.wheelPrev=null;
+		protocol.wheelNext=heads[slot];
+		if(heads[slot]!=null) heads[slot].wheelPrev=protocol;
+		heads[slot]=protocol;
+		size++;
+		if(!ticking) {
+			ticking=true;
+			Utils.getInstance().setTimeout(this::sweep, tickMs);
+		}
+	}
+
+	/**
+	 * Take a protocol out of the wheel.
+	 * @param protocol
+	 */
+	public synchronized void cancel(KeepAliveProtocol protocol) {
+		if(protocol.wheelSlot>=0) unlink(protocol);
+	}
+
+	/**
+	 *
+	 * @return the number of protocols in the wheel
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private void unlink(KeepAliveProtocol protocol) {
+		if(protocol.wheelPrev!=null) protocol.wheelPrev.wheelNext=protocol.wheelNext;
+		else heads[protocol.wheelSlot]=protocol.wheelNext;
+		if(protocol.wheelNext!=null) protocol.wheelNext.wheelPrev=protocol.wheelPrev;
+		protocol.wheelNext=null;
+		protocol.wheelPrev=null;
+		protocol.wheelSlot=-1;
+		size--;
+	}
+
+	/**
+	 * Handle every deadline that has passed, then tick again if any
+	 * protocols are left.
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		synchronized(this) {
+			long nowTick = now/tickMs;
+			// after a long pause every slot is visited once
+			long from = Math.max(sweptTick, nowTick-slots+1);
+			for(long tick=from;tick<=nowTick;tick++) {
+				KeepAliveProtocol protocol = heads[(int)(tick%slots)];
+				while(protocol!=null) {
+					KeepAliveProtocol next = protocol.wheelNext;
+					if(protocol.deadline<=now) {
+						unlink(protocol);
+						due.add(protocol);
+					}
+					protocol=next;
+				}
+			}
+			sweptTick=Math.max(sweptTick, nowTick);
+		}
+		// deadlines are handled outside of the lock, they may send messages
+		// or stop protocols
+		for(int i=0;i<due.size();i++) {
+			KeepAliveProtocol protocol = due.get(i);
+			try {
+				long next = protocol.deadlineReached(now);
+				if(next>0) schedule(protocol, next);
+			} catch (RuntimeException e) {
+				log.severe("keep alive deadline failed: "+e.getMessage());
+			}
+		}
+		due.clear();
+		synchronized(this) {
+			if(size>0) {
+				Utils.getInstance().setTimeout(this::sweep, tickMs);
+			} else {
+				ticking=false;
+			}
+		}
+	}
+}
@@ -9,6 +9,18 @@ public interface ISessionProtocolHandler {
 	 */
 	public void sessionStarted(Endpoint endpoint);
 	
+	/**
+	 * A session start request has been received, give the session's resume
+	 * token. Called before the session starts.
+	 * @param endpoint
+	 * @param resume the token of the session the other side wants to
+	 * resume, empty if it asks for a token, or null if it doesn't resume
+	 * sessions
+	 * @return the session's resume token, or null to not make the session
+	 * resumable
+	 */
+	public String sessionToken(Endpoint endpoint, String resume);
+	
 	/**
 	 * The session has been stopped.
 	 * @param endpoint
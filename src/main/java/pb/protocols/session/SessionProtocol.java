@@ -1,11 +1,14 @@
 package pb.protocols.session;
 
+import java.util.Map;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.Codec;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.protocols.ProtocolRegistry;
 import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
 
@@ -18,6 +21,18 @@ import pb.protocols.IRequestReplyProtocol;
  * session stop request to the client if it wants (needs) to stop the session,
  * e.g. perhaps the server is becoming overloaded and needs to shed some
  * clients.
+ * <br/>
+ * Starting the session also negotiates the compression codec, if any, that
+ * the event protocol uses for large payloads on the endpoint, see
+ * {@link pb.protocols.Codec}, and the other protocols that run on the
+ * endpoint and their versions, see {@link pb.protocols.ProtocolRegistry}.
+ * <br/>
+ * The server may give the session a resume token. A client that reconnects
+ * after its connection failed can resume the session with the token using
+ * {@link #resumeAsClient(String)}: the session is taken to have started
+ * straight away, so the client can send events right behind the start
+ * request without waiting for the reply, and the server may carry the state
+ * of the old session over to the new one.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -57,6 +72,27 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	private volatile boolean stopped=false;
 	
+	/**
+	 * The codec negotiated when the session started, or null to not compress.
+	 */
+	private volatile Codec codec=null;
+	
+	/**
+	 * The session's resume token, or null if it has none.
+	 */
+	private volatile String token=null;
+	
+	/**
+	 * The agreed protocols to their versions, all of them until agreed on.
+	 */
+	private volatile Map<String,Integer> protocolVersions=null;
+	
+	/**
+	 * Whether the client started the session without waiting for the reply,
+	 * resuming an earlier session.
+	 */
+	private volatile boolean resuming=false;
+	
 	/**
 	 * Initialise the protocol with an endpoint and manager.
 	 * @param endpoint
@@ -100,6 +136,30 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 		//  send the server a start session request
 		sendRequest(new SessionStartRequest());
 	}
+	
+	/**
+	 * Called by the manager that is acting as a client, to start a session
+	 * that asks the server for a resume token. Timeout if a response is not
+	 * seen.
+	 */
+	public void startResumableAsClient() {
+		sendRequest(new SessionStartRequest(Codec.supported(),""));
+	}
+	
+	/**
+	 * Called by the manager that is acting as a client, to resume an earlier
+	 * session. The session starts without waiting for the reply, so messages
+	 * sent from now on follow the request. If the server can't resume the
+	 * session it starts a new one instead, with a new token.
+	 * @param token the earlier session's resume token
+	 */
+	public void resumeAsClient(String token) {
+		this.token=token;
+		resuming=true;
+		protocolRunning=true;
+		sendRequest(new SessionStartRequest(Codec.supported(),token));
+		((ISessionProtocolHandler)manager).sessionStarted(endpoint);
+	}
 
 	/**
 	 * Called by the manager that is acting as a server.
@@ -144,11 +204,30 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void receiveReply(Message msg) {
 		if(msg instanceof SessionStartReply) {
+			if(resuming) {
+				// the session already started
+				resuming=false;
+				SessionStartReply reply = (SessionStartReply)msg;
+				if(reply.getCodec()!=null) codec = Codec.get(reply.getCodec());
+				agreed(reply.getProtocols());
+				if(!token.equals(reply.getToken())) {
+					log.warning("server could not resume the session, it started a new one");
+				}
+				token = reply.getToken();
+				return;
+			}
 			if(protocolRunning){
 				// error, received a second reply?
 				manager.protocolViolation(endpoint,this);
 				return;
 			}
+			String codecName = ((SessionStartReply)msg).getCodec();
+			if(codecName!=null) {
+				codec = Codec.get(codecName);
+				if(codec==null) log.warning("server chose an unknown codec: "+codecName);
+			}
+			token = ((SessionStartReply)msg).getToken();
+			agreed(((SessionStartReply)msg).getProtocols());
 			protocolRunning=true;
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopReply) {
@@ -178,7 +257,13 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
-			endpoint.sendAndCancelTimeout(new SessionStartReply(),msg);
+			SessionStartRequest request = (SessionStartRequest)msg;
+			codec = Codec.choose(request.getCodecs());
+			token = ((ISessionProtocolHandler)manager).sessionToken(endpoint, request.getResume());
+			String protocols = ProtocolRegistry.agree(request.getProtocols());
+			agreed(protocols);
+			endpoint.sendAndCancelTimeout(new SessionStartReply(codec==null?null:codec.getName(),
+					token,protocols),msg);
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopRequest) {
 			if(!protocolRunning) {
@@ -193,6 +278,47 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 		
 	}
 
+	/**
+	 * 
+	 * @return the codec negotiated when the session started, or null if
+	 * payloads should not be compressed
+	 */
+	public Codec getCodec() {
+		return codec;
+	}
+	
+	/**
+	 * The protocols to run on the endpoint have been agreed on, stop the
+	 * others.
+	 * @param protocols the agreed protocols and versions, or null if the
+	 * other side didn't list them
+	 */
+	private void agreed(String protocols) {
+		if(protocols==null) return;
+		protocolVersions = ProtocolRegistry.parse(protocols);
+		ProtocolRegistry.retain(endpoint, protocols);
+	}
+	
+	/**
+	 * 
+	 * @param protocolName
+	 * @return the agreed version of the protocol, or 0 if it was not agreed
+	 * on
+	 */
+	public int getProtocolVersion(String protocolName) {
+		Map<String,Integer> versions = protocolVersions;
+		if(versions==null) return 1; // not agreed on yet, or not listed by the other side
+		return versions.getOrDefault(protocolName, 0);
+	}
+	
+	/**
+	 * 
+	 * @return the session's resume token, or null if it has none
+	 */
+	public String getToken() {
+		return token;
+	}
+	
 	/**
 	 * Just send a reply, nothing special to do.
 	 * @param msg
@@ -5,7 +5,12 @@ import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 
 /**
- * Message sent in response to a start request.
+ * Message sent in response to a start request. The reply names the codec
+ * chosen from those offered in the request, if any, and gives the session's
+ * resume token if one was asked for. The token is the one in the request if
+ * the session was resumed. It also lists the protocols and versions agreed
+ * on, see {@link pb.protocols.ProtocolRegistry}.
+ * @see {@link pb.protocols.Codec}
  * @see {@link pb.protocols.session.SessionProtocol}
  * @author aaron
  *
@@ -14,11 +19,58 @@ public class SessionStartReply extends Message {
 	static final public String name = "SessionStartReply";
 	
 	/**
-	 * Initialiser when given message parameters explicitly. Note that
-	 * in this message there are no additional parameters.
+	 * The chosen codec name, or null if no codec was chosen.
+	 */
+	private final String codec;
+	
+	/**
+	 * The session's resume token, or null if there is none.
+	 */
+	private final String token;
+	
+	/**
+	 * The agreed protocols and versions separated by commas, or null if not
+	 * listed.
+	 */
+	private final String protocols;
+	
+	/**
+	 * Initialiser when given message parameters explicitly, choosing no
+	 * codec.
 	 */
 	public SessionStartReply() {
+		this((String)null);
+	}
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param codec the chosen codec name, or null if none was chosen
+	 */
+	public SessionStartReply(String codec) {
+		this(codec,null);
+	}
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param codec the chosen codec name, or null if none was chosen
+	 * @param token the session's resume token, or null if there is none
+	 */
+	public SessionStartReply(String codec, String token) {
+		this(codec,token,null);
+	}
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param codec the chosen codec name, or null if none was chosen
+	 * @param token the session's resume token, or null if there is none
+	 * @param protocols the agreed protocols and versions separated by commas,
+	 * or null to not list them
+	 */
+	public SessionStartReply(String codec, String token, String protocols) {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply);
+		this.codec=codec;
+		this.token=token;
+		this.protocols=protocols;
 	}
 	
 	/**
@@ -29,7 +81,62 @@ public class SessionStartReply extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public SessionStartReply(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc);
+		if(doc.containsKey("codec")) {
+			Message.validateStringType("codec", doc);
+			codec=doc.getString("codec");
+		} else {
+			codec=null;
+		}
+		if(doc.containsKey("token")) {
+			Message.validateStringType("token", doc);
+			token=doc.getString("token");
+		} else {
+			token=null;
+		}
+		if(doc.containsKey("protocols")) {
+			Message.validateStringType("protocols", doc);
+			protocols=doc.getString("protocols");
+		} else {
+			protocols=null;
+		}
+	}
+	
+	@Override
+	protected int parametersLength() {
+		return (codec==null?0:12+codec.length())+(token==null?0:12+token.length())
+				+(protocols==null?0:16+protocols.length());
+	}
+	
+	@Override
+	protected void encodeParameters(StringBuilder sb) {
+		if(codec!=null) appendParameter(sb, "codec", codec);
+		if(token!=null) appendParameter(sb, "token", token);
+		if(protocols!=null) appendParameter(sb, "protocols", protocols);
+	}
+	
+	/**
+	 * 
+	 * @return the chosen codec name, or null if none was chosen
+	 */
+	public String getCodec() {
+		return codec;
+	}
+	
+	/**
+	 * 
+	 * @return the session's resume token, or null if there is none
+	 */
+	public String getToken() {
+		return token;
+	}
+	
+	/**
+	 * 
+	 * @return the agreed protocols and versions, separated by commas, or null
+	 * if they were not listed
+	 */
+	public String getProtocols() {
+		return protocols;
 	}
 }
@@ -1,11 +1,23 @@
 package pb.protocols.session;
 
+import pb.protocols.Codec;
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
+import pb.protocols.ProtocolRegistry;
 
 /**
- * Message sent to request the session to start.
+ * Message sent to request the session to start. The request offers the
+ * compression codecs that the sender can use, the receiver chooses one of
+ * them in its reply. A request without codecs comes from an older peer.
+ * <br/>
+ * The request may also ask for a resume token, with an empty resume
+ * parameter, or give the token of an earlier session to resume it. A request
+ * without the parameter comes from a peer that doesn't resume sessions.
+ * <br/>
+ * The request lists the protocols and versions the sender supports, see
+ * {@link pb.protocols.ProtocolRegistry}.
+ * @see {@link pb.protocols.Codec}
  * @see {@link pb.protocols.session.SessionProtocol}
  * @author aaron
  *
@@ -14,11 +26,60 @@ public class SessionStartRequest extends Message {
 	static final public String name = "SessionStartRequest";
 	
 	/**
-	 * Initialiser when given message parameters explicitly. Note that
-	 * in this message there are no additional parameters.
+	 * Codec names separated by commas, or null if none are offered.
+	 */
+	private final String codecs;
+	
+	/**
+	 * The token of the session to resume, empty to ask for a token, or null
+	 * if sessions are not resumed.
+	 */
+	private final String resume;
+	
+	/**
+	 * Protocols and versions separated by commas, or null if not listed.
+	 */
+	private final String protocols;
+	
+	/**
+	 * Initialiser when given message parameters explicitly, offering all of
+	 * the codecs this side supports.
 	 */
 	public SessionStartRequest() {
+		this(Codec.supported(),null);
+	}
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param codecs codec names separated by commas, or null to offer none
+	 */
+	public SessionStartRequest(String codecs) {
+		this(codecs,null);
+	}
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param codecs codec names separated by commas, or null to offer none
+	 * @param resume the token of the session to resume, empty to ask for a
+	 * token, or null to not resume
+	 */
+	public SessionStartRequest(String codecs, String resume) {
+		this(codecs,resume,ProtocolRegistry.supported());
+	}
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param codecs codec names separated by commas, or null to offer none
+	 * @param resume the token of the session to resume, empty to ask for a
+	 * token, or null to not resume
+	 * @param protocols protocols and versions separated by commas, or null
+	 * to not list them
+	 */
+	public SessionStartRequest(String codecs, String resume, String protocols) {
 		super(name,SessionProtocol.protocolName,Message.Type.Request);
+		this.codecs=codecs;
+		this.resume=resume;
+		this.protocols=protocols;
 	}
 	
 	/**
@@ -29,7 +90,64 @@ public class SessionStartRequest extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public SessionStartRequest(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		super(name,SessionProtocol.protocolName,Message.Type.Request,doc);
+		if(doc.containsKey("codecs")) {
+			Message.validateStringType("codecs", doc);
+			codecs=doc.getString("codecs");
+		} else {
+			codecs=null;
+		}
+		if(doc.containsKey("resume")) {
+			Message.validateStringType("resume", doc);
+			resume=doc.getString("resume");
+		} else {
+			resume=null;
+		}
+		if(doc.containsKey("protocols")) {
+			Message.validateStringType("protocols", doc);
+			protocols=doc.getString("protocols");
+		} else {
+			protocols=null;
+		}
+	}
+	
+	@Override
+	protected int parametersLength() {
+		return (codecs==null?0:12+codecs.length())+(resume==null?0:12+resume.length())
+				+(protocols==null?0:16+protocols.length());
+	}
+	
+	@Override
+	protected void encodeParameters(StringBuilder sb) {
+		if(codecs!=null) appendParameter(sb, "codecs", codecs);
+		if(resume!=null) appendParameter(sb, "resume", resume);
+		if(protocols!=null) appendParameter(sb, "protocols", protocols);
+	}
+	
+	/**
+	 * 
+	 * @return the codec names offered, separated by commas, or null if none
+	 * were
+	 */
+	public String getCodecs() {
+		return codecs;
+	}
+	
+	/**
+	 * 
+	 * @return the token of the session to resume, empty if a token is asked
+	 * for, or null if sessions are not resumed
+	 */
+	public String getResume() {
+		return resume;
+	}
+	
+	/**
+	 * 
+	 * @return the protocols and versions supported, separated by commas, or
+	 * null if they were not listed
+	 */
+	public String getProtocols() {
+		return protocols;
 	}
 }
@@ -0,0 +1,76 @@
+package pb.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives every event name used in the system a small integer id, the first
+ * time it is seen. Eventable objects keep their callbacks in an array indexed
+ * by id, and the event protocol sends ids rather than names over a connection
+ * once the name has been sent.
+ * <br/>
+ * The wildcard event "*" always has id 0.
+ * @author aaron
+ *
+ */
+public class EventNames {
+
+	/**
+	 * The id of the wildcard event "*".
+	 */
+	public static final int all = 0;
+
+	/**
+	 * Event name to id.
+	 */
+	private static final ConcurrentHashMap<String,Integer> ids = new ConcurrentHashMap<>();
+
+	/**
+	 * Id to event name.
+	 */
+	private static volatile String[] names = new String[64];
+
+	static {
+		intern("*");
+	}
+
+	/**
+	 * The id of an event name, giving the name a new id if it has none.
+	 * @param eventName
+	 * @return the id
+	 */
+	public static int intern(String eventName) {
+		Integer id = ids.get(eventName);
+		if(id!=null) return id;
+		synchronized(EventNames.class) {
+			id = ids.get(eventName);
+			if(id!=null) return id;
+			int newId = ids.size();
+			String[] grown = names.length>newId?names:Arrays.copyOf(names, names.length*2);
+			grown[newId]=eventName;
+			names=grown;
+			ids.put(eventName, newId);
+			return newId;
+		}
+	}
+
+	/**
+	 * The id of an event name, without giving it one.
+	 * @param eventName
+	 * @return the id, or -1 if the name has no id
+	 */
+	public static int idOf(String eventName) {
+		Integer id = ids.get(eventName);
+		return id==null?-1:id;
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return the event name with the id, or null if there is none
+	 */
+	public static String nameOf(int id) {
+		String[] current = names;
+		return id>=0 && id<current.length?current[id]:null;
+	}
+}
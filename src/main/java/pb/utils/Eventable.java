@@ -1,16 +1,25 @@
 package pb.utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 import pb.protocols.event.IEventCallback;
 
 /**
- * Simple eventable object. Does not provide for
- * canceling event callbacks.
+ * Simple eventable object. The callbacks for each event are kept in a
+ * copy-on-write list, so emitting never takes a lock and never waits for
+ * another thread's callbacks, and callbacks can be added and removed while
+ * events are being emitted. The lists are found by event id rather than by
+ * hashing the event name, see {@link EventNames}.
+ * <br/>
+ * By default a callback runs on the thread that emits the event, which for
+ * events from a remote endpoint is the thread reading the socket. Slow
+ * callbacks should be registered with a {@link Policy} that runs them
+ * elsewhere. The time the emitting thread spends in each event's callbacks
+ * is recorded, see {@link Metrics}.
  * @author aaron
  *
  */
@@ -18,38 +27,128 @@ public class Eventable extends Thread {
 	private static Logger log = Logger.getLogger(Eventable.class.getName());
 	
 	/**
-	 * Event callbacks
+	 * Where a callback runs.
 	 */
-	private Map<String,List<IEventCallback>> callbacks;
+	public static enum Policy {
+		/**
+		 * On the thread that emits the event.
+		 */
+		Inline,
+		/**
+		 * On the shared pool of threads, concurrently with other callbacks.
+		 */
+		Executor,
+		/**
+		 * On the shared pool of threads, one at a time in the order the
+		 * events were emitted, together with all other ordered callbacks of
+		 * this eventable object.
+		 */
+		Ordered
+	}
+	
+	/**
+	 * A callback that runs somewhere other than the emitting thread.
+	 */
+	private class PolicyCallback implements IEventCallback {
+		final IEventCallback callback;
+		final Executor executor;
+		
+		PolicyCallback(IEventCallback callback, Executor executor) {
+			this.callback=callback;
+			this.executor=executor;
+		}
+		
+		@Override
+		public void callback(Object... args) {
+			offloading(args);
+			executor.execute(()->{
+				try {
+					callback.callback(args);
+				} finally {
+					offloaded(args);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Time (us) the emitting thread spends in the callbacks of each event,
+	 * indexed by event id, over all eventable objects. The array is replaced,
+	 * never changed, when an event gets its histogram. Only events with
+	 * callbacks are timed, so every label is a name used here; names from
+	 * the other side of a connection are never given ids, see
+	 * {@link pb.protocols.event.EventProtocol}.
+	 */
+	private static volatile Metrics.Histogram[] handlerTimes = new Metrics.Histogram[0];
+	
+	/**
+	 * Runs the ordered callbacks, created when first needed.
+	 */
+	private SerialExecutor ordered;
+	
+	/**
+	 * Event callbacks, indexed by the event id from {@link EventNames}. The
+	 * array is replaced, never changed, when a new event gets callbacks.
+	 */
+	private volatile List<IEventCallback>[] callbacks;
 	
 	/**
 	 * Initializer
 	 */
 	public Eventable() {
-		callbacks=new HashMap<>();
+		callbacks=noCallbacks();
+	}
+	
+	/**
+	 * 
+	 * @return an empty array of callback lists, generic arrays can't be
+	 * made directly
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	private static List<IEventCallback>[] noCallbacks() {
+		return new List[0];
 	}
 	
 	/**
 	 * Send event args to all of the callbacks registered
 	 * for event name, and to all callbacks registered for special
-	 * event "*".
+	 * event "*". The callbacks for "*" all receive the same arguments
+	 * array, with the event name first, and must not change it.
 	 * @param eventName event name
 	 * @param args event arguments
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean emit(String eventName, Object... args) {
+	public boolean emit(String eventName, Object... args) {
+		return dispatch(EventNames.idOf(eventName), eventName, args);
+	}
+	
+	/**
+	 * Send event args to all of the callbacks registered for the event
+	 * with the given id, and to all callbacks registered for special event
+	 * "*".
+	 * @param eventId event id from {@link EventNames}
+	 * @param args event arguments
+	 * @return true if at least one callback received the event
+	 */
+	public boolean emit(int eventId, Object... args) {
+		return dispatch(eventId, EventNames.nameOf(eventId), args);
+	}
+	
+	private boolean dispatch(int eventId, String eventName, Object[] args) {
 		boolean hit=false;
-		if(callbacks.containsKey("*")) {
-			callbacks.get("*").forEach((callback)->{
-				// TODO: make this little bit of code more efficient
-				Object[] newargs=new Object[args.length+1];
-				newargs[0]=eventName;
-				for(int i=0;i<args.length;i++) newargs[i+1]=args[i];
+		List<IEventCallback> all = callbacksFor(EventNames.all);
+		if(all!=null) {
+			Object[] newargs=new Object[args.length+1];
+			newargs[0]=eventName;
+			System.arraycopy(args, 0, newargs, 1, args.length);
+			long start = System.nanoTime();
+			for(IEventCallback callback : all) {
 				callback.callback(newargs);
-			});
+			}
+			handlerTime(EventNames.all).recordMicrosSince(start);
 			hit=true;
 		}
-		if(localEmit(eventName,args)) hit=true;
+		if(localEmit(eventId,args)) hit=true;
 		if(!hit)log.warning("no callbacks for event: "+eventName);
 		return hit;
 	}
@@ -61,15 +160,26 @@ public class Eventable extends Thread {
 	 * @param args
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean localEmit(String eventName, Object... args) {
-		boolean hit=false;
-		if(callbacks.containsKey(eventName)) {
-			callbacks.get(eventName).forEach((callback)->{
-				callback.callback(args);
-			});
-			hit=true;
+	public boolean localEmit(String eventName, Object... args) {
+		return localEmit(EventNames.idOf(eventName), args);
+	}
+	
+	/**
+	 * Send event args to all of the callbacks registered
+	 * for the event with the given id.
+	 * @param eventId event id from {@link EventNames}
+	 * @param args
+	 * @return true if at least one callback received the event
+	 */
+	public boolean localEmit(int eventId, Object... args) {
+		List<IEventCallback> list = callbacksFor(eventId);
+		if(list==null) return false;
+		long start = System.nanoTime();
+		for(IEventCallback callback : list) {
+			callback.callback(args);
 		}
-		return hit;
+		handlerTime(eventId).recordMicrosSince(start);
+		return true;
 	}
 	
 	/**
@@ -79,11 +189,110 @@ public class Eventable extends Thread {
 	 * @param callback callback to handle event
 	 * @return this event handler for chaining
 	 */
-	public synchronized Eventable on(String eventName, IEventCallback callback) {
-		if(!callbacks.containsKey(eventName)) {
-			callbacks.put(eventName,new ArrayList<IEventCallback>());
+	public Eventable on(String eventName, IEventCallback callback) {
+		int eventId = EventNames.intern(eventName);
+		synchronized(this) {
+			List<IEventCallback> list = eventId<callbacks.length?callbacks[eventId]:null;
+			if(list==null) {
+				list = new CopyOnWriteArrayList<>();
+				List<IEventCallback>[] grown = Arrays.copyOf(callbacks,
+						Math.max(callbacks.length, eventId+1));
+				grown[eventId]=list;
+				callbacks=grown;
+			}
+			list.add(callback);
 		}
-		callbacks.get(eventName).add(callback);
 		return this;
 	}
+	
+	/**
+	 * Add a new callback for an event, to run according to the given policy.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @param policy where the callback runs
+	 * @return this event handler for chaining
+	 */
+	public Eventable on(String eventName, IEventCallback callback, Policy policy) {
+		switch(policy) {
+		case Executor:
+			return on(eventName, new PolicyCallback(callback, Utils.getInstance()::execute));
+		case Ordered:
+			return on(eventName, new PolicyCallback(callback, getOrderedExecutor()));
+		default:
+			return on(eventName, callback);
+		}
+	}
+	
+	/**
+	 * Remove a callback for an event, that was added with
+	 * {@link #on(String, IEventCallback)} or
+	 * {@link #on(String, IEventCallback, Policy)}. Events being emitted at the
+	 * time may still reach the callback.
+	 * @param eventName event name
+	 * @param callback callback to remove
+	 * @return true if the callback was registered for the event
+	 */
+	public boolean off(String eventName, IEventCallback callback) {
+		List<IEventCallback> list = callbacksFor(EventNames.idOf(eventName));
+		if(list==null) return false;
+		return list.removeIf((registered)->registered==callback ||
+				(registered instanceof PolicyCallback
+						&& ((PolicyCallback)registered).callback==callback));
+	}
+	
+	/**
+	 * 
+	 * @param eventId
+	 * @return the histogram of the time spent in the event's callbacks
+	 */
+	private static Metrics.Histogram handlerTime(int eventId) {
+		Metrics.Histogram[] current = handlerTimes;
+		if(eventId<current.length && current[eventId]!=null) return current[eventId];
+		synchronized(Eventable.class) {
+			current = handlerTimes;
+			if(eventId<current.length && current[eventId]!=null) return current[eventId];
+			Metrics.Histogram[] grown = Arrays.copyOf(current, Math.max(current.length, eventId+1));
+			grown[eventId] = Metrics.getInstance().histogram("event_handler_us","event",EventNames.nameOf(eventId));
+			handlerTimes=grown;
+			return grown[eventId];
+		}
+	}
+	
+	/**
+	 * Called on the emitting thread when a callback is handed to another
+	 * thread to run, e.g. so that a subclass can keep track of how much
+	 * work is waiting. Does nothing by default.
+	 * @param args the event arguments
+	 */
+	protected void offloading(Object[] args) {
+	}
+	
+	/**
+	 * Called on the thread that ran a callback handed to it, after the
+	 * callback has finished. Does nothing by default.
+	 * @param args the event arguments
+	 */
+	protected void offloaded(Object[] args) {
+	}
+	
+	/**
+	 * 
+	 * @param eventId
+	 * @return the callbacks for the event, or null if there are none
+	 */
+	private List<IEventCallback> callbacksFor(int eventId) {
+		List<IEventCallback>[] current = callbacks;
+		if(eventId<0 || eventId>=current.length) return null;
+		List<IEventCallback> list = current[eventId];
+		return list==null || list.isEmpty()?null:list;
+	}
+	
+	/**
+	 * 
+	 * @return the executor for the ordered callbacks of this eventable object
+	 */
+	private synchronized SerialExecutor getOrderedExecutor() {
+		if(ordered==null) ordered=new SerialExecutor();
+		return ordered;
+	}
 }
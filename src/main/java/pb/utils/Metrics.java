@@ -0,0 +1,300 @@
+package pb.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A singleton registry of counters, gauges and histograms, shared by the
+ * whole system. It must always be accessed statically as
+ * Metrics.getInstance()...
+ * <br/>
+ * Metrics are found by name and labels, given as pairs of label name and
+ * value, e.g. <code>counter("messages_sent_total","protocol","EventProtocol")</code>.
+ * Finding a metric builds its key, so code on a hot path should find its
+ * metrics once and keep them. Recording never takes a lock: counters are
+ * {@link LongAdder}s and histograms keep an array of atomic bucket counts.
+ * <br/>
+ * Histograms have log-linear buckets in the style of HDR histograms: values
+ * below 16 have a bucket each, and every power of two above that is split
+ * into 8 buckets, so any value is placed to within 12.5%.
+ *
+ * @author aaron
+ *
+ */
+public class Metrics {
+	private static Metrics metrics;
+
+	/**
+	 * A named and labelled metric.
+	 */
+	public static abstract class Metric {
+		private final String name;
+		private final String labels;
+
+		Metric(String name, String labels) {
+			this.name=name;
+			this.labels=labels;
+		}
+
+		/**
+		 *
+		 * @return the metric's name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 *
+		 * @return the metric's labels as <code>name="value"</code> separated
+		 * by commas, empty if it has none
+		 */
+		public String getLabels() {
+			return labels;
+		}
+
+		/**
+		 *
+		 * @return the metric's name followed by its labels in braces, if it
+		 * has any
+		 */
+		public String getKey() {
+			return key(name, labels);
+		}
+	}
+
+	/**
+	 * A count that only goes up.
+	 */
+	public static class Counter extends Metric {
+		private final LongAdder count = new LongAdder();
+
+		Counter(String name, String labels) {
+			super(name, labels);
+		}
+
+		public void increment() {
+			count.increment();
+		}
+
+		public void add(long amount) {
+			count.add(amount);
+		}
+
+		public long get() {
+			return count.sum();
+		}
+	}
+
+	/**
+	 * A value read when it is wanted.
+	 */
+	public static class Gauge extends Metric {
+		private final LongSupplier value;
+
+		Gauge(String name, String labels, LongSupplier value) {
+			super(name, labels);
+			this.value=value;
+		}
+
+		public long get() {
+			return value.getAsLong();
+		}
+	}
+
+	/**
+	 * The distribution of recorded values, e.g. latencies.
+	 */
+	public static class Histogram extends Metric {
+		/**
+		 * Values below this have a bucket each.
+		 */
+		private static final int linear = 16;
+
+		/**
+		 * Buckets per power of two above {@link #linear}.
+		 */
+		private static final int subBuckets = 8;
+
+		private static final int buckets = linear+(63-4)*subBuckets;
+
+		private final AtomicLongArray counts = new AtomicLongArray(buckets);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram(String name, String labels) {
+			super(name, labels);
+		}
+
+		/**
+		 * Record a value, negative values are recorded as 0.
+		 * @param value
+		 */
+		public void record(long value) {
+			if(value<0) value=0;
+			counts.incrementAndGet(bucketOf(value));
+			count.increment();
+			sum.add(value);
+			long current = max.get();
+			while(value>current && !max.compareAndSet(current, value)) current=max.get();
+		}
+
+		/**
+		 * Record the time since a start time.
+		 * @param startNanos the start time from {@link System#nanoTime()}
+		 */
+		public void recordMicrosSince(long startNanos) {
+			record((System.nanoTime()-startNanos)/1000);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getSum() {
+			return sum.sum();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 *
+		 * @param quantile between 0 and 1
+		 * @return the largest value of the bucket that the quantile falls in,
+		 * or 0 if nothing has been recorded
+		 */
+		public long getQuantile(double quantile) {
+			long total=0;
+			long[] snapshot = new long[buckets];
+			for(int i=0;i<buckets;i++) {
+				snapshot[i]=counts.get(i);
+				total+=snapshot[i];
+			}
+			if(total==0) return 0;
+			long rank = Math.max(1, (long)Math.ceil(quantile*total));
+			long seen=0;
+			for(int i=0;i<buckets;i++) {
+				seen+=snapshot[i];
+				if(seen>=rank) return Math.min(upperBoundOf(i), getMax());
+			}
+			return getMax();
+		}
+
+		private static int bucketOf(long value) {
+			if(value<linear) return (int)value;
+			int exponent = 63-Long.numberOfLeadingZeros(value);
+			int sub = (int)(value>>>(exponent-3))&(subBuckets-1);
+			return linear+(exponent-4)*subBuckets+sub;
+		}
+
+		private static long lowerBoundOf(int bucket) {
+			if(bucket<linear) return bucket;
+			int exponent = (bucket-linear)/subBuckets+4;
+			int sub = (bucket-linear)%subBuckets;
+			return (long)(subBuckets+sub)<<(exponent-3);
+		}
+
+		private static long upperBoundOf(int bucket) {
+			return bucket+1<buckets?lowerBoundOf(bucket+1)-1:Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Name and labels to metric.
+	 */
+	private final ConcurrentHashMap<String,Metric> registry = new ConcurrentHashMap<>();
+
+	public static synchronized Metrics getInstance() {
+		if(metrics==null) metrics=new Metrics();
+		return metrics;
+	}
+
+	/**
+	 * Find a counter, making it if there is none.
+	 * @param name
+	 * @param labels pairs of label name and value
+	 * @return the counter
+	 */
+	public Counter counter(String name, String... labels) {
+		String formatted = format(labels);
+		return (Counter) registry.computeIfAbsent(key(name, formatted),
+				(k)->new Counter(name, formatted));
+	}
+
+	/**
+	 * Find a histogram, making it if there is none.
+	 * @param name
+	 * @param labels pairs of label name and value
+	 * @return the histogram
+	 */
+	public Histogram histogram(String name, String... labels) {
+		String formatted = format(labels);
+		return (Histogram) registry.computeIfAbsent(key(name, formatted),
+				(k)->new Histogram(name, formatted));
+	}
+
+	/**
+	 * Set a gauge, replacing any with the same name and labels.
+	 * @param name
+	 * @param value read each time the gauge is
+	 * @param labels pairs of label name and value
+	 * @return the gauge
+	 */
+	public Gauge gauge(String name, LongSupplier value, String... labels) {
+		String formatted = format(labels);
+		Gauge gauge = new Gauge(name, formatted, value);
+		registry.put(key(name, formatted), gauge);
+		return gauge;
+	}
+
+	/**
+	 * Remove a metric, e.g. a gauge of something that has gone away.
+	 * @param name
+	 * @param labels pairs of label name and value
+	 */
+	public void remove(String name, String... labels) {
+		registry.remove(key(name, format(labels)));
+	}
+
+	/**
+	 *
+	 * @return all of the metrics, sorted by name and then labels, so that
+	 * metrics with the same name are together
+	 */
+	public List<Metric> getMetrics() {
+		List<Metric> all = new ArrayList<>(registry.values());
+		all.sort(Comparator.comparing(Metric::getName).thenComparing(Metric::getLabels));
+		return all;
+	}
+
+	private static String key(String name, String labels) {
+		return labels.isEmpty()?name:name+"{"+labels+"}";
+	}
+
+	private static String format(String[] labels) {
+		if(labels.length==0) return "";
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i+1<labels.length;i+=2) {
+			if(sb.length()>0) sb.append(',');
+			sb.append(labels[i]).append("=\"");
+			String value = labels[i+1];
+			for(int j=0;j<value.length();j++) {
+				char c = value.charAt(j);
+				if(c=='"' || c=='\\') sb.append('\\');
+				if(c=='\n') sb.append("\\n");
+				else sb.append(c);
+			}
+			sb.append('"');
+		}
+		return sb.toString();
+	}
+}
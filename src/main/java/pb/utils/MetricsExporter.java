@@ -0,0 +1,110 @@
+package pb.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics in {@link Metrics} over HTTP, at <code>/metrics</code>
+ * in the Prometheus text format, so they can be scraped from outside the
+ * JVM. Counters and gauges are written as they are, histograms are written
+ * as summaries with their 0.5, 0.9 and 0.99 quantiles, sum and count.
+ * <br/>
+ * Nothing is done until a scrape arrives: gauges are read and the text is
+ * written on the HTTP server's own thread, one scrape at a time.
+ *
+ * @see {@link pb.managers.ServerManager#setMetricsPort(int)}
+ * @author aaron
+ *
+ */
+public class MetricsExporter {
+	private static Logger log = Logger.getLogger(MetricsExporter.class.getName());
+
+	private static final double[] quantiles = {0.5, 0.9, 0.99};
+
+	private final HttpServer server;
+
+	/**
+	 * Start serving the metrics.
+	 * @param port the port to listen on
+	 * @throws IOException if the port can't be listened on
+	 */
+	public MetricsExporter(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", this::scrape);
+		server.start();
+		log.info("serving metrics on port "+getPort());
+	}
+
+	/**
+	 *
+	 * @return the port being listened on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stop serving the metrics.
+	 */
+	public void stop() {
+		server.stop(0);
+	}
+
+	private void scrape(HttpExchange exchange) throws IOException {
+		byte[] body = render().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 *
+	 * @return all of the metrics in the Prometheus text format
+	 */
+	public static String render() {
+		StringBuilder sb = new StringBuilder();
+		String lastName = null;
+		for(Metrics.Metric metric : Metrics.getInstance().getMetrics()) {
+			String name = metric.getName();
+			String labels = metric.getLabels();
+			if(!name.equals(lastName)) {
+				sb.append("# TYPE ").append(name).append(' ').append(typeOf(metric)).append('\n');
+				lastName=name;
+			}
+			if(metric instanceof Metrics.Counter) {
+				line(sb, name, labels, ((Metrics.Counter)metric).get());
+			} else if(metric instanceof Metrics.Gauge) {
+				line(sb, name, labels, ((Metrics.Gauge)metric).get());
+			} else if(metric instanceof Metrics.Histogram) {
+				Metrics.Histogram histogram = (Metrics.Histogram)metric;
+				for(double quantile : quantiles) {
+					String withQuantile = (labels.isEmpty()?"":labels+",")+"quantile=\""+quantile+"\"";
+					line(sb, name, withQuantile, histogram.getQuantile(quantile));
+				}
+				line(sb, name+"_sum", labels, histogram.getSum());
+				line(sb, name+"_count", labels, histogram.getCount());
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String typeOf(Metrics.Metric metric) {
+		if(metric instanceof Metrics.Counter) return "counter";
+		if(metric instanceof Metrics.Histogram) return "summary";
+		return "gauge";
+	}
+
+	private static void line(StringBuilder sb, String name, String labels, long value) {
+		sb.append(name);
+		if(!labels.isEmpty()) sb.append('{').append(labels).append('}');
+		sb.append(' ').append(value).append('\n');
+	}
+}
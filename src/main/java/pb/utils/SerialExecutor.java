@@ -0,0 +1,64 @@
+package pb.utils;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks one at a time, in the order they were given, on the shared pool
+ * of threads from {@link Utils#execute(Runnable)}. No thread is held while
+ * there is nothing to run, so there can be one of these for every endpoint.
+ * @author aaron
+ *
+ */
+public class SerialExecutor implements Executor {
+	private static Logger log = Logger.getLogger(SerialExecutor.class.getName());
+
+	/**
+	 * Tasks waiting to run.
+	 */
+	private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+	/**
+	 * Whether a task is running or about to run on the pool.
+	 */
+	private boolean running=false;
+
+	/**
+	 * Queue a task to run after all of the tasks given before it.
+	 * @param task
+	 */
+	@Override
+	public void execute(Runnable task) {
+		synchronized(this) {
+			tasks.add(task);
+			if(running) return;
+			running=true;
+		}
+		Utils.getInstance().execute(this::runTasks);
+	}
+
+	/**
+	 * Run the queued tasks until there are none left.
+	 */
+	private void runTasks() {
+		while(true) {
+			Runnable task;
+			synchronized(this) {
+				task = tasks.poll();
+				if(task==null) {
+					running=false;
+					return;
+				}
+			}
+			try {
+				task.run();
+			} catch (Throwable e) {
+				// one failing task must not stop the tasks queued after it
+				log.log(Level.SEVERE, "task failed", e);
+			}
+		}
+	}
+}
@@ -2,6 +2,8 @@ package pb.utils;
 
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import pb.protocols.ICallback;
 
@@ -41,8 +43,37 @@ public class Utils {
 	 */
 	private Timer timer = new Timer();
 	
+	/**
+	 * A single pool of threads over the entire system to run event callbacks
+	 * off the threads that emit them. Threads are created as needed and
+	 * retired when idle.
+	 */
+	private ExecutorService executor = Executors.newCachedThreadPool((runnable)->{
+		Thread thread = new Thread(runnable,"EventExecutor");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	/**
+	 * Timer tasks scheduled and run, and how late (ms) they ran.
+	 */
+	private final Metrics.Counter timersScheduled = Metrics.getInstance().counter("timers_scheduled_total");
+	private final Metrics.Counter timersFired = Metrics.getInstance().counter("timers_fired_total");
+	private final Metrics.Histogram timerLag = Metrics.getInstance().histogram("timer_lag_ms");
+	
+	/**
+	 * The thread that runs the timer's tasks, once it has run one.
+	 */
+	private volatile Thread timerThread;
+	
 	public Utils() {
 		timer=new Timer();
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				timerThread=Thread.currentThread();
+			}
+		}, 0);
 	}
 	
 	public static synchronized Utils getInstance() {
@@ -66,10 +97,30 @@ public class Utils {
 		timer.schedule(new TimerTask() {
 			@Override
 			public void run() {
+				timersFired.increment();
+				timerLag.record(System.currentTimeMillis()-scheduledExecutionTime());
 				callback.callback();
 			}
 			
 		}, delay);
+		timersScheduled.increment();
+	}
+	
+	/**
+	 * 
+	 * @return true if called by a timer task, which must not wait since all
+	 * other timer tasks wait for it
+	 */
+	public boolean isTimerThread() {
+		return Thread.currentThread()==timerThread;
+	}
+	
+	/**
+	 * Run a task on the shared pool of threads.
+	 * @param task the task to run
+	 */
+	public void execute(Runnable task) {
+		executor.execute(task);
 	}
 	
 	/**
@@ -77,6 +128,7 @@ public class Utils {
 	 */
 	public void cleanUp() {
 		timer.cancel();
+		executor.shutdown();
 		System.gc(); // need to do this to cleanup timer tasks and allow jvm to quit
 	}
 }
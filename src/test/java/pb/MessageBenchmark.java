@@ -0,0 +1,203 @@
+package pb;
+
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.codec.binary.Base64;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.protocols.MessageDecoder;
+import pb.protocols.event.EventRequest;
+import pb.protocols.keepalive.KeepAliveReply;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.SessionStartRequest;
+
+/**
+ * Measures how many messages per second can be decoded, with the JSON object
+ * tree ({@link Document#parse(String)} then {@link Message#toMessage(Document)})
+ * and with the streaming {@link MessageDecoder}. Each decoded message has its
+ * header and payload read, as a protocol would.
+ * <br/>
+ * Also measures how many messages per second can be made and encoded, by
+ * filling a {@link Document} and with {@link Message#toJsonString()}.
+ * <br/>
+ * Kept with the test sources so that it is not part of the jar, run it with
+ * <code>mvn test-compile exec:java -Dexec.mainClass=pb.MessageBenchmark
+ * -Dexec.classpathScope=test</code>.
+ *
+ * @see {@link pb.protocols.MessageDecoder}
+ * @see {@link pb.protocols.MessageRegistry}
+ * @author aaron
+ *
+ */
+public class MessageBenchmark {
+	private static int iterations = 200000;
+	private static int dataSize = 16*1024;
+
+	private static void help(Options options){
+		String header = "PB Message Benchmark for Unimelb COMP90015\n\n";
+		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.MessageBenchmark", header, options, footer, true);
+		System.exit(-1);
+	}
+
+	/**
+	 * Read the message as a protocol would, so that lazy decoding is not
+	 * given an unfair advantage.
+	 * @param msg
+	 * @return something that depends on the message
+	 */
+	private static long use(Message msg) {
+		long sum = msg.getName().length()+msg.getType().ordinal()+msg.getTimeoutId();
+		if(msg instanceof EventRequest) {
+			EventRequest eventRequest = (EventRequest) msg;
+			sum+=eventRequest.getEventId()+eventRequest.getEventData().length();
+		}
+		return sum;
+	}
+
+	private static double treeOpsPerSecond(String[] messages, int count) throws InvalidMessage {
+		long sum=0;
+		long start=System.nanoTime();
+		for(int i=0;i<count;i++) {
+			sum+=use(Message.toMessage(Document.parse(messages[i%messages.length])));
+		}
+		long elapsed=System.nanoTime()-start;
+		if(sum==42) System.out.println(); // keep the work from being optimised away
+		return count*1e9/elapsed;
+	}
+
+	private static double streamingOpsPerSecond(String[] messages, int count) throws InvalidMessage {
+		MessageDecoder decoder = new MessageDecoder();
+		long sum=0;
+		long start=System.nanoTime();
+		for(int i=0;i<count;i++) {
+			sum+=use(decoder.decode(messages[i%messages.length]));
+		}
+		long elapsed=System.nanoTime()-start;
+		if(sum==42) System.out.println(); // keep the work from being optimised away
+		return count*1e9/elapsed;
+	}
+
+	private static double documentEncodeOpsPerSecond(String eventData, int count) {
+		long sum=0;
+		long start=System.nanoTime();
+		for(int i=0;i<count;i++) {
+			Document doc = new Document();
+			doc.append("name", EventRequest.name);
+			doc.append("protocolName", "EventProtocol");
+			doc.append("type", Message.Type.Request.toString());
+			doc.append("timeoutId", (long)i);
+			doc.append("eventId", 7L);
+			doc.append("eventData", eventData);
+			sum+=doc.toJson().length();
+		}
+		long elapsed=System.nanoTime()-start;
+		if(sum==42) System.out.println(); // keep the work from being optimised away
+		return count*1e9/elapsed;
+	}
+
+	private static double messageEncodeOpsPerSecond(String eventData, int count) {
+		long sum=0;
+		long start=System.nanoTime();
+		for(int i=0;i<count;i++) {
+			Message msg = new EventRequest(7, null, eventData);
+			msg.setTimeoutId(i);
+			sum+=msg.toJsonString().length();
+		}
+		long elapsed=System.nanoTime()-start;
+		if(sum==42) System.out.println(); // keep the work from being optimised away
+		return count*1e9/elapsed;
+	}
+
+	private static void reportEncode(String kind, String eventData) {
+		// warm up both paths
+		documentEncodeOpsPerSecond(eventData, iterations/10);
+		messageEncodeOpsPerSecond(eventData, iterations/10);
+		double document = documentEncodeOpsPerSecond(eventData, iterations);
+		double message = messageEncodeOpsPerSecond(eventData, iterations);
+		System.out.println(String.format("%-12s document: %8.0f ops/sec  message: %12.0f ops/sec  speedup: %.2fx",
+				kind, document, message, message/document));
+	}
+
+	private static void report(String kind, String[] messages) throws InvalidMessage {
+		// warm up both paths
+		treeOpsPerSecond(messages, iterations/10);
+		streamingOpsPerSecond(messages, iterations/10);
+		double tree = treeOpsPerSecond(messages, iterations);
+		double streaming = streamingOpsPerSecond(messages, iterations);
+		System.out.println(String.format("%-12s tree: %12.0f ops/sec  streaming: %12.0f ops/sec  speedup: %.2fx",
+				kind, tree, streaming, streaming/tree));
+	}
+
+	public static void main( String[] args ) throws InvalidMessage
+	{
+		// parse command line options
+		Options options = new Options();
+		options.addOption("iterations",true,"messages decoded per measurement, an integer");
+		options.addOption("dataSize",true,"bytes of file data in the bulk event, an integer");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse( options, args);
+		} catch (ParseException e1) {
+			help(options);
+		}
+
+		try {
+			if(cmd.hasOption("iterations")) iterations = Integer.parseInt(cmd.getOptionValue("iterations"));
+			if(cmd.hasOption("dataSize")) dataSize = Integer.parseInt(cmd.getOptionValue("dataSize"));
+		} catch (NumberFormatException e) {
+			System.out.println("-iterations and -dataSize require integers");
+			help(options);
+		}
+
+		// messages as they appear on the wire
+		Message keepAlive = new KeepAliveRequest();
+		keepAlive.setTimeoutId(12345);
+		Message keepAliveReply = new KeepAliveReply();
+		keepAliveReply.setTimeoutId(12345);
+		Message sessionStart = new SessionStartRequest();
+		sessionStart.setTimeoutId(1);
+		Message event = new EventRequest(7, null, "127.0.0.1:3000:1%5%-16777216>1,1>2,2");
+		event.setTimeoutId(99);
+		byte[] bytes = new byte[dataSize];
+		new Random(1).nextBytes(bytes);
+		Message bulk = new EventRequest(8, "FILE_CONTENTS", new String(Base64.encodeBase64(bytes)));
+		bulk.setTimeoutId(100);
+
+		String[] control = new String[] {keepAlive.toJsonString(),keepAliveReply.toJsonString(),
+				sessionStart.toJsonString()};
+		String[] events = new String[] {event.toJsonString()};
+		String[] bulkEvents = new String[] {bulk.toJsonString()};
+
+		// both paths must agree before they are timed
+		MessageDecoder decoder = new MessageDecoder();
+		for(String[] messages : new String[][] {control, events, bulkEvents}) {
+			for(String json : messages) {
+				if(use(decoder.decode(json))!=use(Message.toMessage(Document.parse(json)))) {
+					System.out.println("decoders disagree on: "+json);
+					System.exit(-1);
+				}
+			}
+		}
+
+		System.out.println("decoding "+iterations+" messages per measurement");
+		report("control", control);
+		report("event", events);
+		report("bulk "+dataSize, bulkEvents);
+		
+		System.out.println("encoding "+iterations+" events per measurement");
+		reportEncode("event", ((EventRequest)event).getEventData());
+		reportEncode("bulk "+dataSize, ((EventRequest)bulk).getEventData());
+	}
+}